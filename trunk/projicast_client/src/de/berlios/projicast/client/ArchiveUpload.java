@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * Sends many files to a ProjiCast server as one archive, which the server extracts
+ * into the folder of the type while it arrives. This saves the work per file,
+ * which dominates for many small files such as the images of a slide deck.
+ * <p>
+ * An existing zip or tar archive is sent as it is. A list of files is sent as a tar
+ * archive made on the way, so no archive is written on either side.
+ */
+public class ArchiveUpload
+{
+    public enum Format { ZIP, TAR }
+    
+    private static final int BLOCK_SIZE = 512;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    
+    private String host;
+    private int port;
+    private String password;
+    private ServerFile.Type type;
+    private boolean playlist = false;
+    private volatile long sent = 0;
+    
+    /**
+     * Constructs a new ArchiveUpload.
+     * 
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param password  the password to log in with
+     * @param type      the type of the files
+     */
+    public ArchiveUpload(String host, int port, String password, ServerFile.Type type)
+    {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.type = type;
+    }
+    
+    /**
+     * Sets whether the images sent are made the slideshow playlist, in order.
+     * 
+     * @param playlist  <i>true</i> to set the playlist, <i>false</i> by default
+     */
+    public void setPlaylist(boolean playlist)
+    {
+        this.playlist = playlist;
+    }
+    
+    /**
+     * @return Returns the number of bytes sent so far.
+     */
+    public long getSent()
+    {
+        return sent;
+    }
+    
+    /**
+     * Sends a zip or tar archive, told apart by the name ending in ".zip".
+     * 
+     * @param archive  the archive
+     * 
+     * @return the number of files the server extracted
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws MalformedAnswerException  if the server replied something unexpected
+     */
+    public int send(File archive) throws IOException,ProjiCastException
+    {
+        Format format = archive.getName().toLowerCase().endsWith(".zip") ? Format.ZIP : Format.TAR;
+        long size = archive.length();
+        ProjiCastOutputStream out = new ProjiCastOutputStream(host, port, size, type, password, format, playlist);
+        try
+        {
+            sendFile(out, archive);
+            out.finish();
+            return out.getFileCount();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Sends files as a tar archive made on the way. The files are stored under their
+     * own names.
+     * 
+     * @param files  the files to send
+     * 
+     * @return the number of files the server extracted
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws MalformedAnswerException  if the server replied something unexpected
+     */
+    public int send(List<File> files) throws IOException,ProjiCastException
+    {
+        //The size is known beforehand, a tar archive has no compression
+        long size = 2 * BLOCK_SIZE;
+        for(File file : files)
+        {
+            size += BLOCK_SIZE + padded(file.length());
+            byte[] name = file.getName().getBytes("UTF-8");
+            if(name.length > 100)
+            {
+                size += BLOCK_SIZE + padded(name.length + 1);
+            }
+        }
+        ProjiCastOutputStream out = new ProjiCastOutputStream(
+                host, port, size, type, password, Format.TAR, playlist);
+        try
+        {
+            for(File file : files)
+            {
+                byte[] name = file.getName().getBytes("UTF-8");
+                long length = file.length();
+                if(name.length > 100)
+                {
+                    //GNU long name, for the entry following
+                    byte[] longName = new byte[name.length + 1];
+                    System.arraycopy(name, 0, longName, 0, name.length);
+                    out.write(header("././@LongLink".getBytes("UTF-8"), longName.length, 0, 'L'));
+                    out.write(longName);
+                    pad(out, longName.length);
+                }
+                out.write(header(name, length, file.lastModified() / 1000, '0'));
+                sendFile(out, file);
+                pad(out, length);
+            }
+            out.write(new byte[2 * BLOCK_SIZE]);
+            sent += 2 * BLOCK_SIZE;
+            out.finish();
+            return out.getFileCount();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Sends the content of a file, in chunks to count the progress.
+     */
+    private void sendFile(ProjiCastOutputStream out, File file) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            long length = file.length();
+            for(long pos = 0; pos < length; pos += CHUNK_SIZE)
+            {
+                long n = Math.min(CHUNK_SIZE, length - pos);
+                out.transferFrom(in.getChannel(), pos, n);
+                sent += n;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    private void pad(ProjiCastOutputStream out, long length) throws IOException
+    {
+        int n = (int)(padded(length) - length);
+        out.write(new byte[n]);
+        sent += n;
+    }
+    
+    private static long padded(long length)
+    {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+    
+    /**
+     * Makes the header block of a tar entry.
+     */
+    private static byte[] header(byte[] name, long size, long mtime, char flag)
+    {
+        byte[] h = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, h, 0, Math.min(name.length, 100));
+        octal(h, 100, 8, 0644);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        octal(h, 124, 12, size);
+        octal(h, 136, 12, mtime);
+        h[156] = (byte)flag;
+        System.arraycopy(new byte[] { 'u', 's', 't', 'a', 'r', 0, '0', '0' }, 0, h, 257, 8);
+        //The checksum is taken with its own field as spaces
+        for(int i = 148; i < 156; i++)
+        {
+            h[i] = ' ';
+        }
+        long sum = 0;
+        for(byte b : h)
+        {
+            sum += b & 0xFF;
+        }
+        octal(h, 148, 7, sum);
+        return h;
+    }
+    
+    /**
+     * Writes a number as octal digits, padded with zeros and ended by a NUL.
+     */
+    private static void octal(byte[] h, int off, int len, long value)
+    {
+        String s = Long.toOctalString(value);
+        while(s.length() < (len - 1))
+        {
+            s = "0" + s;
+        }
+        for(int i = 0; i < (len - 1); i++)
+        {
+            h[off + i] = (byte)s.charAt(i);
+        }
+        h[off + len - 1] = 0;
+    }
+}
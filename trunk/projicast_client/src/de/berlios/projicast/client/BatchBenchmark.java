@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ * Compares sending the same small files one connection each, waiting for the
+ * server to confirm each file as {@link FileTransferWindow} used to, with sending
+ * them all as one {@link BatchUpload}. Needs a running server. Prints the wall
+ * time and the files sent per second.
+ * <p>
+ * Usage: BatchBenchmark host port password [files [bytes [rounds]]]
+ */
+public class BatchBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3)
+        {
+            System.err.println("Usage: BatchBenchmark host port password [files [bytes [rounds]]]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String password = args[2];
+        int count = (args.length > 3) ? Integer.parseInt(args[3]) : 400;
+        int size = (args.length > 4) ? Integer.parseInt(args[4]) : 16 * 1024;
+        int rounds = (args.length > 5) ? Integer.parseInt(args[5]) : 2;
+        
+        File folder = File.createTempFile("projicast", "");
+        folder.delete();
+        folder.mkdir();
+        File[] files = new File[count];
+        Random random = new Random(1);
+        for(int i = 0; i < count; i++)
+        {
+            files[i] = new File(folder, "batch-benchmark" + i + ".jpg");
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            FileOutputStream out = new FileOutputStream(files[i]);
+            try
+            {
+                out.write(data);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        System.out.println(count + " files of " + size + " bytes, " + rounds + " rounds each");
+        
+        for(int i = 0; i < rounds; i++)
+        {
+            report("one connection each", count, sendSingly(host, port, password, files));
+            report("one batch          ", count, sendBatch(host, port, password, files));
+        }
+        
+        for(File file : files)
+        {
+            file.delete();
+        }
+        folder.delete();
+    }
+    
+    /**
+     * Sends each file over a connection of its own, one after the other.
+     * 
+     * @return the wall time taken in nanoseconds
+     */
+    private static long sendSingly(String host, int port, String password, File[] files) throws Exception
+    {
+        long start = System.nanoTime();
+        for(File file : files)
+        {
+            ProjiCastOutputStream out = new ProjiCastOutputStream(
+                    host, port, file.getName(), file.length(), ServerFile.Type.IMAGE, password);
+            FileInputStream in = new FileInputStream(file);
+            try
+            {
+                out.transferFrom(in.getChannel(), 0, file.length());
+                out.finish();
+            }
+            finally
+            {
+                in.close();
+                out.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+    
+    /**
+     * Sends all files as one batch.
+     * 
+     * @return the wall time taken in nanoseconds
+     */
+    private static long sendBatch(String host, int port, String password, File[] files) throws Exception
+    {
+        long start = System.nanoTime();
+        BatchUpload upload = new BatchUpload(host, port, password);
+        for(File file : files)
+        {
+            upload.add(file, ServerFile.Type.IMAGE);
+        }
+        upload.start();
+        while(!upload.waitFor(1000)) {}
+        if(!upload.getFailed().isEmpty())
+        {
+            throw new IOException(upload.getFailed().size() + " files of the batch failed");
+        }
+        return System.nanoTime() - start;
+    }
+    
+    private static void report(String name, int count, long time)
+    {
+        System.out.println(name + ": " + (time / 1000000) + " ms, " + (long)(count / (time / 1e9)) + " files/s");
+    }
+}
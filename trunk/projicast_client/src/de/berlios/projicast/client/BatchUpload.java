@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sends many files to a ProjiCast server over a single connection, logging in only
+ * once. The files are sent back to back without waiting for any reply, and the
+ * server acknowledges each of them as it is stored, which a thread of its own
+ * reads meanwhile.
+ * <p>
+ * If the connection breaks, or a file arrives damaged, the files not acknowledged
+ * are sent again over a new connection, a few times before giving up on them.
+ */
+public class BatchUpload
+{
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private String host;
+    private int port;
+    private String password;
+    private List<Entry> entries;
+    private long total = 0;
+    
+    //Guarded by this
+    private boolean finished = false;
+    private Exception failure;
+    private volatile boolean cancelled = false;
+    private AtomicLong sent;
+    
+    /**
+     * Constructs a new BatchUpload.
+     * 
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param password  the password to log in with
+     */
+    public BatchUpload(String host, int port, String password)
+    {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        entries = new ArrayList<Entry>();
+        sent = new AtomicLong();
+    }
+    
+    /**
+     * Adds a file to send under its own name. Files must be added before starting.
+     * 
+     * @param file  the file to send
+     * @param type  the type of the file
+     */
+    public synchronized void add(File file, ServerFile.Type type)
+    {
+        entries.add(new Entry(file, type));
+        total += file.length();
+    }
+    
+    /**
+     * Starts sending the files.
+     */
+    public synchronized void start()
+    {
+        Thread sender = new Thread("ProjiCast batch upload")
+        {
+            public void run()
+            {
+                send();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+    
+    /**
+     * Waits for the upload to finish.
+     * 
+     * @param timeout  the longest time to wait in milliseconds
+     * 
+     * @return <i>true</i> if the upload has finished, see {@link #getFailed()} for
+     *         the files that could not be sent
+     * 
+     * @throws IOException          if the upload failed as a whole
+     * @throws ProjiCastException   if the server refused the login
+     */
+    public synchronized boolean waitFor(long timeout) throws IOException, ProjiCastException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        try
+        {
+            long left;
+            while(!finished && !cancelled && ((left = end - System.currentTimeMillis()) > 0))
+            {
+                wait(left);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for upload");
+        }
+        if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        }
+        if(failure instanceof ProjiCastException)
+        {
+            throw (ProjiCastException)failure;
+        }
+        return finished;
+    }
+    
+    /**
+     * Stops sending. The files already acknowledged are kept by the server.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns the number of bytes sent so far.
+     */
+    public long getSent()
+    {
+        return sent.get();
+    }
+    
+    /**
+     * @return Returns the number of bytes of all files.
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+    
+    /**
+     * @return Returns the number of files stored by the server so far.
+     */
+    public synchronized int getDone()
+    {
+        int done = 0;
+        for(Entry e : entries)
+        {
+            if(e.done)
+            {
+                done++;
+            }
+        }
+        return done;
+    }
+    
+    /**
+     * @return Returns the files not stored by the server, once finished.
+     */
+    public synchronized List<File> getFailed()
+    {
+        List<File> failed = new ArrayList<File>();
+        for(Entry e : entries)
+        {
+            if(!e.done)
+            {
+                failed.add(e.file);
+            }
+        }
+        return failed;
+    }
+    
+    /**
+     * Sends the files not yet stored, over a new connection each round.
+     */
+    private void send()
+    {
+        Exception last = null;
+        for(int attempt = 0; (attempt < MAX_ATTEMPTS) && !cancelled; attempt++)
+        {
+            List<Entry> batch = new ArrayList<Entry>();
+            synchronized(this)
+            {
+                //The files not stored are sent again, and counted again
+                long stored = 0;
+                for(Entry e : entries)
+                {
+                    if(e.done)
+                    {
+                        stored += e.file.length();
+                    }
+                    else
+                    {
+                        batch.add(e);
+                    }
+                }
+                sent.set(stored);
+            }
+            if(batch.isEmpty())
+            {
+                break;
+            }
+            try
+            {
+                sendBatch(batch);
+                last = null;
+            }
+            catch(ProjiCastException e)
+            {
+                last = e;
+                break;
+            }
+            catch(IOException e)
+            {
+                last = e;
+            }
+        }
+        synchronized(this)
+        {
+            if(getFailed().size() == entries.size())
+            {
+                //Nothing got through, the reason is worth telling
+                failure = last;
+            }
+            finished = true;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Sends files back to back over one connection and waits for them to be
+     * acknowledged.
+     */
+    private void sendBatch(List<Entry> batch) throws IOException, ProjiCastException
+    {
+        //A channel so that files can be sent with transferTo
+        SocketChannel sc = SocketChannel.open(new InetSocketAddress(host, port));
+        Socket socket = sc.socket();
+        FileInputStream in = null;
+        try
+        {
+            socket.setTrafficClass(0x08);
+            socket.setSoTimeout(10000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            writeLine(out, "PROJICAST TRANSFER");
+            out.flush();
+            String command = reader.readLine();
+            String[] split = (command == null) ? new String[0] : command.split(" ");
+            if((split.length != 4) || !command.startsWith("PROJICAST TRANSFER AUTH "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            writeLine(out, "AUTH " + Security.digest(password + split[3]));
+            writeLine(out, "BATCH");
+            writeLine(out, "CHECK SHA-256");
+            
+            Acknowledgements acks = new Acknowledgements(reader, batch);
+            acks.start();
+            MessageDigest digest;
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new IOException("SHA-256 not supported");
+            }
+            for(Entry e : batch)
+            {
+                if(cancelled || acks.isOver())
+                {
+                    break;
+                }
+                long size = e.file.length();
+                String type = (e.type == ServerFile.Type.VIDEO) ? "VIDEO" : "IMAGE";
+                writeLine(out, "FILE " + type + " " + size + " " + URLEncoder.encode(e.file.getName(), "UTF-8"));
+                in = new FileInputStream(e.file);
+                FileChannel src = in.getChannel();
+                long position = 0;
+                while(position < size)
+                {
+                    if(cancelled)
+                    {
+                        //The server drops the file it gets only part of
+                        return;
+                    }
+                    long n;
+                    try
+                    {
+                        out.flush();
+                        n = src.transferTo(position, Math.min(CHUNK_SIZE, size - position), sc);
+                    }
+                    catch(IOException ex)
+                    {
+                        throw acks.refused(ex);
+                    }
+                    if(n <= 0)
+                    {
+                        if(position >= src.size())
+                        {
+                            //Nothing the server could make sense of can follow
+                            throw new IOException("File ended early: " + e.file);
+                        }
+                        continue;
+                    }
+                    digest.update(src.map(FileChannel.MapMode.READ_ONLY, position, n));
+                    position += n;
+                    sent.addAndGet(n);
+                }
+                in.close();
+                in = null;
+                writeLine(out, "DIGEST " + Security.toHex(digest.digest()));
+            }
+            out.flush();
+            acks.await();
+        }
+        finally
+        {
+            if(in != null)
+            {
+                in.close();
+            }
+            socket.close();
+        }
+    }
+    
+    private static void writeLine(OutputStream out, String line) throws IOException
+    {
+        out.write((line + "\n").getBytes("UTF-8"));
+    }
+    
+    /**
+     * Notes the reply for a file.
+     */
+    private synchronized void acknowledged(Entry e, boolean done)
+    {
+        e.done = done;
+        notifyAll();
+    }
+    
+    /**
+     * A file to send.
+     */
+    private static class Entry
+    {
+        private File file;
+        private ServerFile.Type type;
+        private boolean done = false;
+        
+        private Entry(File file, ServerFile.Type type)
+        {
+            this.file = file;
+            this.type = type;
+        }
+    }
+    
+    /**
+     * Thread reading the replies of one connection, while the files are being sent.
+     */
+    private class Acknowledgements extends Thread
+    {
+        private BufferedReader reader;
+        private List<Entry> batch;
+        private int received = 0;
+        private boolean over = false;
+        private Exception error;
+        
+        public Acknowledgements(BufferedReader reader, List<Entry> batch)
+        {
+            super("ProjiCast batch acknowledgements");
+            setDaemon(true);
+            this.reader = reader;
+            this.batch = batch;
+        }
+        
+        public void run()
+        {
+            try
+            {
+                int idle = 0;
+                while(received < batch.size())
+                {
+                    String command;
+                    try
+                    {
+                        command = reader.readLine();
+                    }
+                    catch(SocketTimeoutException e)
+                    {
+                        //A large file takes a while, but some reply should come now and then
+                        if((++idle * 10) >= 60)
+                        {
+                            throw e;
+                        }
+                        continue;
+                    }
+                    idle = 0;
+                    if(command == null)
+                    {
+                        throw new IOException("Connection closed by server");
+                    }
+                    if(command.equals("ERROR Invalid auth"))
+                    {
+                        throw new InvalidAuthException("Wrong password!");
+                    }
+                    if(command.startsWith("ERROR "))
+                    {
+                        throw new IOException("Server refused the file: " + command.substring(6));
+                    }
+                    if(command.startsWith("FILE DONE ") || command.startsWith("FILE FAILED "))
+                    {
+                        int n = Integer.parseInt(command.substring(command.lastIndexOf(' ') + 1));
+                        if((n < 1) || (n > batch.size()))
+                        {
+                            throw new MalformedAnswerException("Unexpected answer: " + command);
+                        }
+                        acknowledged(batch.get(n - 1), command.startsWith("FILE DONE "));
+                        received++;
+                    }
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                end(new MalformedAnswerException("Unexpected answer, invalid integer."));
+                return;
+            }
+            catch(Exception e)
+            {
+                end(e);
+                return;
+            }
+            end(null);
+        }
+        
+        private synchronized void end(Exception e)
+        {
+            error = e;
+            over = true;
+            notifyAll();
+        }
+        
+        /**
+         * @return Returns <i>true</i> once no more replies will be read.
+         */
+        public synchronized boolean isOver()
+        {
+            return over;
+        }
+        
+        /**
+         * Waits until every file sent has been acknowledged, or the connection failed.
+         */
+        public synchronized void await() throws IOException, ProjiCastException
+        {
+            try
+            {
+                while(!over && !cancelled)
+                {
+                    wait(1000);
+                }
+            }
+            catch(InterruptedException e)
+            {
+                throw new IOException("Interrupted while waiting for upload");
+            }
+            if(error instanceof ProjiCastException)
+            {
+                throw (ProjiCastException)error;
+            }
+            if(error != null)
+            {
+                throw (IOException)error;
+            }
+        }
+        
+        /**
+         * Looks for the reason the server stopped taking data, see
+         * {@link ProjiCastOutputStream}.
+         */
+        public IOException refused(IOException e) throws ProjiCastException
+        {
+            try
+            {
+                synchronized(this)
+                {
+                    long end = System.currentTimeMillis() + 1000;
+                    long left;
+                    while(!over && ((left = end - System.currentTimeMillis()) > 0))
+                    {
+                        wait(left);
+                    }
+                }
+            }
+            catch(InterruptedException e2)
+            {
+                //The exception given is as good
+            }
+            if(error instanceof ProjiCastException)
+            {
+                throw (ProjiCastException)error;
+            }
+            return (error instanceof IOException) ? (IOException)error : e;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * ClientCodec for the {@link BinaryProtocol}.
+ */
+class BinaryClientCodec implements ClientCodec
+{
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    
+    private InputStream in;
+    private OutputStream out;
+    private BinaryProtocol.FrameWriter frames;
+    
+    /**
+     * Constructs a new BinaryClientCodec.
+     * 
+     * @param input   the stream to read from
+     * @param output  the stream to write to
+     */
+    public BinaryClientCodec(InputStream input, OutputStream output)
+    {
+        in = input;
+        out = output;
+        frames = new BinaryProtocol.FrameWriter();
+    }
+    
+    public boolean isBinary()
+    {
+        return true;
+    }
+    
+    public void refresh(int id, String epoch, long version)
+    {
+        frames.begin(BinaryProtocol.REFRESH).putVarLong(id).putString((epoch == null) ? "-" : epoch).putVarLong(version).end();
+    }
+    
+    public void subscribe(int id, String epoch, long version)
+    {
+        frames.begin(BinaryProtocol.SUBSCRIBE).putVarLong(id).putString(epoch).putVarLong(version).end();
+    }
+    
+    public void slideshow(int id)
+    {
+        frames.begin(BinaryProtocol.SLIDESHOW).putVarLong(id).end();
+    }
+    
+    public void stop(int id)
+    {
+        frames.begin(BinaryProtocol.STOP).putVarLong(id).end();
+    }
+    
+    public void limit(int id, long rate)
+    {
+        frames.begin(BinaryProtocol.LIMIT).putVarLong(id).putVarLong(rate).end();
+    }
+    
+    public void play(int id, int fileID)
+    {
+        frames.begin(BinaryProtocol.PLAY).putVarLong(id).putVarLong(fileID).end();
+    }
+    
+    public void image(int id, int fileID)
+    {
+        frames.begin(BinaryProtocol.IMAGE).putVarLong(id).putVarLong(fileID).end();
+    }
+    
+    public void text(int id, String text)
+    {
+        frames.begin(BinaryProtocol.TEXT).putVarLong(id).putString(text).end();
+    }
+    
+    public void delete(int id, ServerFile.Type type, int fileID)
+    {
+        frames.begin(BinaryProtocol.DELETE).putVarLong(id)
+            .put(BinaryProtocol.typeCode(type)).putVarLong(fileID).end();
+    }
+    
+    public void playlist(int beginID, int endID, List<ServerFile> files)
+    {
+        frames.begin(BinaryProtocol.SET_PLAYLIST).putVarLong(endID).putVarLong(files.size());
+        for(ServerFile file : files)
+        {
+            frames.putVarLong(file.getID());
+        }
+        frames.end();
+    }
+    
+    public void flush() throws IOException
+    {
+        frames.writeTo(out);
+        out.flush();
+    }
+    
+    public boolean read(Handler handler) throws ProjiCastException, IOException
+    {
+        ByteBuffer frame = BinaryProtocol.readFrame(in, MAX_FRAME_LENGTH);
+        if(frame == null)
+        {
+            return false;
+        }
+        
+        try
+        {
+            byte opcode = frame.get();
+            int id = BinaryProtocol.getVarInt(frame);
+            switch(opcode)
+            {
+                case BinaryProtocol.OK:
+                    handler.reply(id, null);
+                    break;
+                case BinaryProtocol.ERROR:
+                    handler.reply(id, "ERROR " + BinaryProtocol.getString(frame));
+                    break;
+                case BinaryProtocol.SYNC_FULL:
+                case BinaryProtocol.SYNC_DELTA:
+                    boolean full = (opcode == BinaryProtocol.SYNC_FULL);
+                    String epoch = BinaryProtocol.getString(frame);
+                    long version = BinaryProtocol.getVarLong(frame);
+                    readSync(handler, full);
+                    String reply = "SYNC " + (full ? "FULL " : "DELTA ") + epoch + " " + version;
+                    handler.endSync(id, id == 0, reply, epoch, version);
+                    break;
+                case BinaryProtocol.PLAYER:
+                    handler.playerState(BinaryProtocol.getString(frame));
+                    break;
+                case BinaryProtocol.UPLOAD:
+                    ServerFile.Type type = BinaryProtocol.getType(frame);
+                    handler.uploaded(type, BinaryProtocol.getString(frame));
+                    break;
+                default:
+                    //Unknown events are ignored so that newer servers can add more
+                    if(id != 0)
+                    {
+                        throw new MalformedAnswerException("Unknown opcode: " + opcode);
+                    }
+            }
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new MalformedAnswerException("Frame too short");
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new MalformedAnswerException(e.getMessage());
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the frames of a file list or its changes up to SYNC_END.
+     */
+    private void readSync(Handler handler, boolean full) throws ProjiCastException, IOException
+    {
+        handler.beginSync(full);
+        for(;;)
+        {
+            ByteBuffer frame = nextFrame();
+            byte opcode = frame.get();
+            switch(opcode)
+            {
+                case BinaryProtocol.FILE:
+                case BinaryProtocol.RENAME:
+                    ServerFile.Type type = BinaryProtocol.getType(frame);
+                    int id = BinaryProtocol.getVarInt(frame);
+                    handler.putFile(new ServerFile(BinaryProtocol.getString(frame), type, id));
+                    break;
+                case BinaryProtocol.REMOVE:
+                    type = BinaryProtocol.getType(frame);
+                    handler.removeFile(type, BinaryProtocol.getVarInt(frame));
+                    break;
+                case BinaryProtocol.PLAYLIST:
+                    int count = BinaryProtocol.getVarInt(frame);
+                    List<Integer> ids = new ArrayList<Integer>(count);
+                    for(int i = 0; i < count; i++)
+                    {
+                        ids.add(BinaryProtocol.getVarInt(frame));
+                    }
+                    handler.setPlaylist(ids);
+                    break;
+                case BinaryProtocol.SYNC_END:
+                    return;
+                default:
+                    throw new MalformedAnswerException("Unexpected opcode in file list: " + opcode);
+            }
+        }
+    }
+    
+    /**
+     * Reads a frame belonging to the current reply.
+     */
+    private ByteBuffer nextFrame() throws ProjiCastException, IOException
+    {
+        ByteBuffer frame = BinaryProtocol.readFrame(in, MAX_FRAME_LENGTH);
+        if(frame == null)
+        {
+            throw new MalformedAnswerException("Reply cut off");
+        }
+        return frame;
+    }
+    
+    public void close() throws IOException
+    {
+        in.close();
+        out.close();
+    }
+}
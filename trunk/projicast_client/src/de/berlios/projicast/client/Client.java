@@ -19,41 +19,67 @@
 
 package de.berlios.projicast.client;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
  * ProjiCast Client class.
+ * <p>
+ * Once connected, everything the server sends is read by a reader thread. Replies
+ * are handed to the thread that sent the command, while file list changes are
+ * applied and events passed on to the ClientListeners as soon as they arrive.
+ * <p>
+ * The Client asks for the binary protocol when logging in and falls back to the
+ * text protocol if the server does not know it.
  */
 public class Client
 {
     private enum State { NOT_CONNECTED, AUTHING, CONNECTED, DEAD }
     
-    private State state = State.NOT_CONNECTED;
+    private volatile State state = State.NOT_CONNECTED;
     
     private String host;
     private int port;
     private String password;
     
+    private boolean binaryProtocol = true;
+    
     private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private ClientCodec codec;
     
     private Map<Integer, ServerFile> videoFiles;
     private Map<Integer, ServerFile> imageFiles;
-    private List<ServerFile> playlist;
+    private volatile List<ServerFile> playlist;
+    private volatile String catalogEpoch = "-";
+    private volatile long catalogVersion = 0;
+    
+    //Replies waiting to be passed from the reader thread, guarded by untaggedReplies
+    private ArrayDeque<PendingReply> untaggedReplies;
+    private Map<Integer, PendingReply> taggedReplies;
+    private int nextRequestID = 1;
+    private boolean lost = false;
+    
+    private List<ClientListener> listeners;
+    private ExecutorService eventDispatcher;
     
     
     
@@ -73,6 +99,29 @@ public class Client
         videoFiles = new HashMap<Integer, ServerFile>();
         imageFiles = new HashMap<Integer, ServerFile>();
         playlist = new ArrayList<ServerFile>();
+        untaggedReplies = new ArrayDeque<PendingReply>();
+        taggedReplies = new HashMap<Integer, PendingReply>();
+        listeners = new CopyOnWriteArrayList<ClientListener>();
+    }
+    
+    /**
+     * Adds a listener to tell about events on the server.
+     * 
+     * @param listener  the listener to add
+     */
+    public void addClientListener(ClientListener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    /**
+     * Removes a listener.
+     * 
+     * @param listener  the listener to remove
+     */
+    public void removeClientListener(ClientListener listener)
+    {
+        listeners.remove(listener);
     }
     
     /**
@@ -99,6 +148,25 @@ public class Client
         return port;
     }
     
+    /**
+     * Sets whether the binary protocol is asked for when connecting. The text
+     * protocol is used anyway if the server does not offer it.
+     * 
+     * @param binaryProtocol  <i>false</i> to always use the text protocol
+     */
+    public void setBinaryProtocol(boolean binaryProtocol)
+    {
+        this.binaryProtocol = binaryProtocol;
+    }
+    
+    /**
+     * @return Returns <i>true</i> if connected with the binary protocol.
+     */
+    public boolean isBinaryProtocol()
+    {
+        return (codec != null) && codec.isBinary();
+    }
+    
     /**
      * Connects this Client to the server.
      * 
@@ -116,23 +184,41 @@ public class Client
         try
         {
             socket = new Socket(host, port);
+            //Interactive traffic, ahead of bulk data where routers care
+            socket.setTrafficClass(0x10);
             socket.setSoTimeout(10000);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream());
+            //The handshake is read byte by byte so nothing after it is lost to a reader
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
             state = State.AUTHING;
             
             String command;
             String[] split;
             
-            out.println("PROJICAST");
-            out.flush();
-            command = in.readLine();
+            writeLine(output, binaryProtocol ? "PROJICAST BINARY" : "PROJICAST");
+            command = readLine(input);
+            if((command == null) && binaryProtocol)
+            {
+                //Older servers hang up on the binary greeting
+                socket.close();
+                state = State.NOT_CONNECTED;
+                binaryProtocol = false;
+                try
+                {
+                    connect();
+                }
+                finally
+                {
+                    binaryProtocol = true;
+                }
+                return;
+            }
             split = command.split(" ");
-            if((split.length == 3) && split[0].equals("PROJICAST") && split[1].equals("AUTH"))
+            boolean binary = (split.length == 4) && split[3].equals("BINARY");
+            if(((split.length == 3) || binary) && split[0].equals("PROJICAST") && split[1].equals("AUTH"))
             {
                 String auth = Security.digest(password + split[2]);
-                out.println("AUTH " + auth);
-                out.flush();
+                writeLine(output, "AUTH " + auth);
             }
             else
             {
@@ -140,7 +226,7 @@ public class Client
                 throw new MalformedAnswerException("Unexpected answer: " + command);
             }
             
-            command = in.readLine();
+            command = readLine(input);
             if(!command.equals("AUTH OK"))
             {
                 close();
@@ -155,9 +241,27 @@ public class Client
                 }
             }
             
-            receiveLists();
+            codec = binary ? new BinaryClientCodec(input, output) : new TextClientCodec(input, output);
+            eventDispatcher = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "ProjiCast events");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            if(!codec.read(new ReplyHandler()))
+            {
+                throw new MalformedAnswerException("Null read from stream.");
+            }
             
+            //From now on the reader thread is the only one reading
+            socket.setSoTimeout(0);
             state = State.CONNECTED; //connected
+            Thread reader = new ReaderThread();
+            reader.setDaemon(true);
+            reader.start();
         }
         catch(NumberFormatException e)
         {
@@ -173,6 +277,11 @@ public class Client
         {
             throw new MalformedAnswerException("Null read from stream.");
         }
+        catch(MalformedAnswerException e)
+        {
+            close();
+            throw e;
+        }
     }
     
     /**
@@ -248,59 +357,150 @@ public class Client
     }
     
     /**
-     * Refreshes the file list from the server.
+     * Refreshes the file list from the server. Only the changes since the last refresh
+     * are sent if the server still knows them, otherwise the whole list.
      * 
      * @throws MalformedAnswerException if the server sends something unexpected
      */
     public synchronized void refreshFiles() throws ProjiCastException,IOException
+    {
+        //The reader thread has already applied the changes when the reply is handed over
+        finish(refreshFiles(false));
+    }
+    
+    /**
+     * Sends a refresh without waiting for the reply.
+     * 
+     * @return the reply, which has been applied to the file lists when it arrives
+     * 
+     * @see #refreshFiles()
+     */
+    public synchronized PendingReply refreshFilesAsync() throws IOException
+    {
+        return refreshFiles(true);
+    }
+    
+    private PendingReply refreshFiles(boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
             throw new IllegalStateException("Must be connected");
         }
-        out.println("REFRESH");
-        out.flush();
-        String command = null;
-        
-        receiveLists();
+        //Servers that never sent an epoch may only know the plain, untagged form
+        String epoch = catalogEpoch;
+        boolean versioned = !epoch.equals("-");
+        PendingReply reply = expect("REFRESH", versioned ? "SYNC" : "LIST BEGIN", tagged && versioned);
+        codec.refresh(reply.getRequestID(), versioned ? epoch : null, catalogVersion);
+        codec.flush();
+        return reply;
     }
     
     /**
-     * Starts the slideshow.
+     * Subscribes to events from the server. The file lists and playlist are then kept
+     * up to date without calling {@link #refreshFiles()}, and the ClientListeners are
+     * told about changes.
+     * 
+     * @throws MalformedAnswerException if the server sends something unexpected
      */
-    public synchronized void slideshow() throws ProjiCastException, IOException
+    public synchronized void subscribe() throws ProjiCastException, IOException
     {
         if(state != State.CONNECTED)
         {
             throw new IllegalStateException("Must be connected");
         }
-        out.println("SLIDESHOW");
-        out.flush();
-        String command = in.readLine();
-        if(!command.equals("SLIDESHOW OK"))
+        PendingReply reply = expect("SUBSCRIBE", "SUBSCRIBE OK", false);
+        codec.subscribe(reply.getRequestID(), catalogEpoch, catalogVersion);
+        codec.flush();
+        finish(reply);
+    }
+    
+    /**
+     * Starts the slideshow.
+     */
+    public synchronized void slideshow() throws ProjiCastException, IOException
+    {
+        finish(slideshow(false));
+    }
+    
+    /**
+     * Starts the slideshow without waiting for the reply.
+     */
+    public synchronized PendingReply slideshowAsync() throws IOException
+    {
+        return slideshow(true);
+    }
+    
+    private PendingReply slideshow(boolean tagged) throws IOException
+    {
+        if(state != State.CONNECTED)
         {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
+            throw new IllegalStateException("Must be connected");
         }
+        PendingReply reply = expect("SLIDESHOW", "SLIDESHOW OK", tagged);
+        codec.slideshow(reply.getRequestID());
+        codec.flush();
+        return reply;
     }
     
     /**
      * Stops all playing/showing.
      */
     public synchronized void stop() throws ProjiCastException, IOException
+    {
+        finish(stop(false));
+    }
+    
+    /**
+     * Stops all playing/showing without waiting for the reply.
+     */
+    public synchronized PendingReply stopAsync() throws IOException
+    {
+        return stop(true);
+    }
+    
+    private PendingReply stop(boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
             throw new IllegalStateException("Must be connected");
         }
-        out.println("STOP");
-        out.flush();
-        String command = in.readLine();
-        if(!command.equals("STOP OK"))
+        PendingReply reply = expect("STOP", "STOP OK", tagged);
+        codec.stop(reply.getRequestID());
+        codec.flush();
+        return reply;
+    }
+    
+    /**
+     * Limits the bandwidth the server receives uploads with, shared among all uploads.
+     * The unit is the same as that of the transferLimit key of the server's config file.
+     * 
+     * @param rate  the most kilobytes per second, 0 for no limit
+     */
+    public synchronized void setTransferLimit(long rate) throws ProjiCastException, IOException
+    {
+        finish(setTransferLimit(rate, false));
+    }
+    
+    /**
+     * Limits the bandwidth for uploads without waiting for the reply.
+     * 
+     * @param rate  the most kilobytes per second, 0 for no limit
+     */
+    public synchronized PendingReply setTransferLimitAsync(long rate) throws IOException
+    {
+        return setTransferLimit(rate, true);
+    }
+    
+    private PendingReply setTransferLimit(long rate, boolean tagged) throws IOException
+    {
+        if(state != State.CONNECTED)
         {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
+            throw new IllegalStateException("Must be connected");
         }
+        PendingReply reply = expect("LIMIT", "LIMIT OK", tagged);
+        codec.limit(reply.getRequestID(), rate);
+        codec.flush();
+        return reply;
     }
     
     /**
@@ -312,6 +512,21 @@ public class Client
      *                                   somtehing like that
      */
     public synchronized void playVideo(ServerFile file) throws ProjiCastException, IOException
+    {
+        finish(playVideo(file, false));
+    }
+    
+    /**
+     * Plays a video file on the server without waiting for the reply.
+     * 
+     * @param file  the file to play (ServerFile)
+     */
+    public synchronized PendingReply playVideoAsync(ServerFile file) throws IOException
+    {
+        return playVideo(file, true);
+    }
+    
+    private PendingReply playVideo(ServerFile file, boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
@@ -321,18 +536,10 @@ public class Client
         {
             throw new IllegalArgumentException("File must be of type VIDEO");
         }
-        out.println("PLAY " + file.getID());
-        out.flush();
-        String command = in.readLine();
-        if(command.equals("ERROR File not on server"))
-        {
-            throw new FileNotOnServerException("File not on server!");
-        }
-        else if(!command.equals("PLAY OK"))
-        {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
-        }
+        PendingReply reply = expect("PLAY", "PLAY OK", tagged);
+        codec.play(reply.getRequestID(), file.getID());
+        codec.flush();
+        return reply;
     }
     
     /**
@@ -344,6 +551,21 @@ public class Client
      *                                   somtehing like that
      */
     public synchronized void displayImage(ServerFile file) throws ProjiCastException, IOException
+    {
+        finish(displayImage(file, false));
+    }
+    
+    /**
+     * Displays an image file on the server without waiting for the reply.
+     * 
+     * @param file  the file to display (ServerFile)
+     */
+    public synchronized PendingReply displayImageAsync(ServerFile file) throws IOException
+    {
+        return displayImage(file, true);
+    }
+    
+    private PendingReply displayImage(ServerFile file, boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
@@ -353,18 +575,10 @@ public class Client
         {
             throw new IllegalArgumentException("File must be of type IMAGE");
         }
-        out.println("IMAGE " + file.getID());
-        out.flush();
-        String command = in.readLine();
-        if(command.equals("ERROR File not on server"))
-        {
-            throw new FileNotOnServerException("File not on server!");
-        }
-        else if(!command.equals("IMAGE OK"))
-        {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
-        }
+        PendingReply reply = expect("IMAGE", "IMAGE OK", tagged);
+        codec.image(reply.getRequestID(), file.getID());
+        codec.flush();
+        return reply;
     }
     
     /**
@@ -373,19 +587,92 @@ public class Client
      * @param text  the text to display
      */
     public synchronized void displayText(String text) throws ProjiCastException, IOException
+    {
+        finish(displayText(text, false));
+    }
+    
+    /**
+     * Displays the specified text on the server without waiting for the reply.
+     * 
+     * @param text  the text to display
+     */
+    public synchronized PendingReply displayTextAsync(String text) throws IOException
+    {
+        return displayText(text, true);
+    }
+    
+    private PendingReply displayText(String text, boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
             throw new IllegalStateException("Must be connected!");
         }
-        
-        out.println("TEXT " + URLEncoder.encode(text, "UTF-8"));
-        out.flush();
-        String command = in.readLine();
-        if(!command.equals("TEXT OK"))
+        PendingReply reply = expect("TEXT", "TEXT OK", tagged);
+        codec.text(reply.getRequestID(), text);
+        codec.flush();
+        return reply;
+    }
+    
+    /**
+     * Opens a stream downloading a file from the server over the file transfer port.
+     * 
+     * @param file          the file to download
+     * @param transferPort  the file transfer port of the server
+     * @param offset        the position in the file to start at
+     * 
+     * @return the stream, which ends at the end of the file
+     * 
+     * @throws FileNotOnServerException  if the file has been removed from the server
+     */
+    public ProjiCastInputStream openFile(ServerFile file, int transferPort, long offset)
+            throws ProjiCastException, IOException
+    {
+        return new ProjiCastInputStream(host, transferPort, password, file, offset);
+    }
+    
+    /**
+     * Downloads a file from the server into a local file, replacing it. The data is
+     * written to a file named like the local file with ".part" appended, which is
+     * renamed once complete. If such a file is left from a download that broke off
+     * and is shorter than the file on the server, the download continues at its end.
+     * 
+     * @param file          the file to download
+     * @param transferPort  the file transfer port of the server
+     * @param dest          the local file to download to
+     * 
+     * @throws FileNotOnServerException  if the file has been removed from the server
+     */
+    public void download(ServerFile file, int transferPort, File dest) throws ProjiCastException, IOException
+    {
+        File part = new File(dest.getPath() + ".part");
+        ProjiCastInputStream in;
+        try
         {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
+            in = openFile(file, transferPort, part.length());
+        }
+        catch(MalformedAnswerException e)
+        {
+            //Longer than the file on the server, so something else
+            in = openFile(file, transferPort, 0);
+        }
+        FileOutputStream out = new FileOutputStream(part, in.getOffset() > 0);
+        try
+        {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while((n = in.read(buf)) != -1)
+            {
+                out.write(buf, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        if(!part.renameTo(dest) && !(dest.delete() && part.renameTo(dest)))
+        {
+            throw new IOException("Could not rename " + part + " to " + dest);
         }
     }
     
@@ -398,34 +685,30 @@ public class Client
      *                                   somtehing like that
      */
     public synchronized void deleteFile(ServerFile file) throws ProjiCastException, IOException
+    {
+        finish(deleteFile(file, false));
+    }
+    
+    /**
+     * Deletes the specified file from the server without waiting for the reply.
+     * 
+     * @param file  the file to delete (ServerFile)
+     */
+    public synchronized PendingReply deleteFileAsync(ServerFile file) throws IOException
+    {
+        return deleteFile(file, true);
+    }
+    
+    private PendingReply deleteFile(ServerFile file, boolean tagged) throws IOException
     {
         if(state != State.CONNECTED)
         {
             throw new IllegalStateException("Must be connected");
         }
-        String type = null;
-        switch(file.getType())
-        {
-            case VIDEO:
-                type = "VIDEO";
-                break;
-            case IMAGE:
-                type = "IMAGE";
-                break;
-        }
-        
-        out.println("DELETE " + type + " " + file.getID());
-        out.flush();
-        String command = in.readLine();
-        if(command.equals("ERROR File not on server"))
-        {
-            throw new FileNotOnServerException("File not on server!");
-        }
-        else if(!command.equals("DELETE OK"))
-        {
-            close();
-            throw new MalformedAnswerException("Unexpected answer: " + command);
-        }
+        PendingReply reply = expect("DELETE", "DELETE OK", tagged);
+        codec.delete(reply.getRequestID(), file.getType(), file.getID());
+        codec.flush();
+        return reply;
     }
     
     /**
@@ -435,6 +718,52 @@ public class Client
      *                                   or if they don't exist
      */
     public synchronized void setSlideshowPlaylist(List<ServerFile> pl) throws ProjiCastException, IOException
+    {
+        checkPlaylist(pl);
+        PendingReply[] replies = sendPlaylist(pl, false);
+        if(replies[0] != null)
+        {
+            finish(replies[0]);
+        }
+        finish(replies[1]);
+        playlist = pl;
+    }
+    
+    /**
+     * Sets the slideshow playlist on the server without waiting for the reply.
+     * The playlist returned by {@link #getSlideshowPlaylist()} is updated when
+     * the server tells about the change.
+     * 
+     * @throws InvalidArgumentException  if any of the files aren't of the type IMAGE
+     *                                   or if they don't exist
+     */
+    public synchronized PendingReply setSlideshowPlaylistAsync(List<ServerFile> pl) throws IOException
+    {
+        checkPlaylist(pl);
+        //The reply to BEGIN is not needed, END fails as well if BEGIN did
+        return sendPlaylist(pl, true)[1];
+    }
+    
+    /**
+     * Sends a playlist, which takes two commands in the text protocol and one in the
+     * binary protocol.
+     * 
+     * @return the replies to "PLIST BEGIN", <i>null</i> for the binary protocol,
+     *         and to "PLIST END"
+     */
+    private PendingReply[] sendPlaylist(List<ServerFile> pl, boolean tagged) throws IOException
+    {
+        PendingReply begin = codec.isBinary() ? null : expect("PLIST BEGIN", "PLIST READY", tagged);
+        PendingReply end = expect("PLIST END", "PLIST OK", tagged);
+        codec.playlist((begin == null) ? 0 : begin.getRequestID(), end.getRequestID(), pl);
+        codec.flush();
+        return new PendingReply[] { begin, end };
+    }
+    
+    /**
+     * Checks that the client is connected and that all files can be put in the playlist.
+     */
+    private void checkPlaylist(List<ServerFile> pl)
     {
         if(state != State.CONNECTED)
         {
@@ -449,32 +778,58 @@ public class Client
                 throw new IllegalArgumentException("Invalid ServerFile.");
             }
         }
-        
-        out.println("PLIST BEGIN");
-        out.flush();
-        
-        String command = in.readLine();
-        if(!command.equals("PLIST READY"))
+    }
+    
+    /**
+     * Registers the reply to a command about to be written. Tagged commands carry a
+     * request ID, which the server repeats in front of the reply, so their replies are
+     * matched by ID. Untagged replies are matched to the untagged commands in the order
+     * they were sent. The binary protocol always uses request IDs.
+     * 
+     * @param command   the name of the command
+     * @param expected  the expected reply
+     * @param tagged    <i>true</i> to send a request ID with the command
+     * 
+     * @return the reply to wait for, with the request ID to write
+     */
+    private PendingReply expect(String command, String expected, boolean tagged) throws IOException
+    {
+        PendingReply reply = new PendingReply(command, expected);
+        synchronized(untaggedReplies)
         {
-            throw new MalformedAnswerException("Unexpected answer: " + command);
+            if(lost)
+            {
+                throw new IOException("Connection to server lost");
+            }
+            if(tagged || codec.isBinary())
+            {
+                int id = nextRequestID++;
+                reply.setRequestID(id);
+                taggedReplies.put(id, reply);
+            }
+            else
+            {
+                untaggedReplies.add(reply);
+            }
         }
-        
-        for(ServerFile file : pl)
+        return reply;
+    }
+    
+    /**
+     * Waits for a reply to a blocking call, closing the connection if the reply
+     * is not understood.
+     */
+    private void finish(PendingReply reply) throws ProjiCastException, IOException
+    {
+        try
         {
-            out.println("PLIST " + file.getID());
-            out.flush();
+            reply.await();
         }
-        
-        out.println("PLIST END");
-        out.flush();
-        
-        command = in.readLine();
-        if(!command.equals("PLIST OK"))
+        catch(MalformedAnswerException e)
         {
-            throw new MalformedAnswerException("Unexpected answer: " + command);
+            close();
+            throw e;
         }
-        
-        playlist = pl;
     }
     
     /**
@@ -494,91 +849,294 @@ public class Client
         {
             throw new IllegalStateException("Must be connected");
         }
+        state = State.DEAD;
         try
         {
-            in.close();
-            out.close();
+            //Closing the socket first wakes up the reader thread blocked on it
             socket.close();
-            state = State.DEAD;
+            if(codec != null)
+            {
+                codec.close();
+            }
         }
         catch(IOException e)
         {
             e.printStackTrace();
         }
+        if(eventDispatcher != null)
+        {
+            eventDispatcher.shutdown();
+        }
+    }
+    
+    /**
+     * Writes a line of the handshake.
+     */
+    private static void writeLine(OutputStream output, String line) throws IOException
+    {
+        output.write((line + "\n").getBytes());
+        output.flush();
+    }
+    
+    /**
+     * Reads a line of the handshake without reading ahead.
+     * 
+     * @return the line, or <i>null</i> if the server closed the connection
+     */
+    private static String readLine(InputStream input) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = input.read()) != '\n')
+        {
+            if(b == -1)
+            {
+                return null;
+            }
+            if(b != '\r')
+            {
+                line.write(b);
+            }
+        }
+        return line.toString();
+    }
+    
+    /**
+     * Runs the listeners for an event on the event thread.
+     */
+    private void fireEvent(Runnable r)
+    {
+        if(!listeners.isEmpty())
+        {
+            eventDispatcher.execute(r);
+        }
     }
     
-    private synchronized void receiveLists() throws ProjiCastException, IOException
+    /**
+     * Thread reading everything the server sends once connected.
+     */
+    private class ReaderThread extends Thread
     {
-        String command = null;
+        public ReaderThread()
+        {
+            super("ProjiCast reader");
+        }
         
-        try
+        public void run()
+        {
+            try
+            {
+                ClientCodec.Handler handler = new ReplyHandler();
+                while(codec.read(handler))
+                {
+                }
+            }
+            catch(IOException e)
+            {
+                if(state == Client.State.CONNECTED)
+                {
+                    e.printStackTrace();
+                }
+            }
+            catch(ProjiCastException e)
+            {
+                System.err.println("Unexpected data from server: " + e.getMessage());
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e2)
+                {
+                    e2.printStackTrace();
+                }
+            }
+            catch(RuntimeException e)
+            {
+                System.err.println("Unexpected data from server: " + e.getMessage());
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e2)
+                {
+                    e2.printStackTrace();
+                }
+            }
+            finally
+            {
+                //Nothing more will arrive, so let everyone waiting know
+                List<PendingReply> waiting = new ArrayList<PendingReply>();
+                synchronized(untaggedReplies)
+                {
+                    lost = true;
+                    waiting.addAll(untaggedReplies);
+                    waiting.addAll(taggedReplies.values());
+                    untaggedReplies.clear();
+                    taggedReplies.clear();
+                }
+                for(PendingReply reply : waiting)
+                {
+                    reply.fail(new IOException("Connection to server lost"));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Applies what the codec reads to the file lists, hands replies to the threads
+     * waiting for them and passes events on to the ClientListeners.
+     */
+    private class ReplyHandler implements ClientCodec.Handler
+    {
+        private List<Integer> playlistIDs;
+        
+        public void reply(int id, String line) throws ProjiCastException
         {
-            command = in.readLine();
+            PendingReply reply;
+            synchronized(untaggedReplies)
+            {
+                reply = (id == 0) ? untaggedReplies.poll() : taggedReplies.remove(id);
+            }
+            if(reply == null)
+            {
+                //The file list sent after login is not a reply to anything
+                if(state != Client.State.AUTHING)
+                {
+                    System.err.println("Reply to no command: " + line);
+                }
+            }
+            else if(line == null)
+            {
+                reply.completeOk();
+            }
+            else
+            {
+                reply.complete(line);
+            }
+        }
+        
+        public void beginSync(boolean full)
+        {
+            playlistIDs = new ArrayList<Integer>();
+            for(ServerFile file : playlist)
+            {
+                playlistIDs.add(file.getID());
+            }
+            if(full)
+            {
+                synchronized(videoFiles)
+                {
+                    videoFiles.clear();
+                }
+                synchronized(imageFiles)
+                {
+                    imageFiles.clear();
+                }
+                playlistIDs.clear();
+            }
+        }
+        
+        public void putFile(ServerFile file)
+        {
+            Map<Integer, ServerFile> files = filesFor(file.getType());
+            synchronized(files)
+            {
+                files.put(file.getID(), file);
+            }
+        }
+        
+        public void removeFile(ServerFile.Type type, int id)
+        {
+            Map<Integer, ServerFile> files = filesFor(type);
+            synchronized(files)
+            {
+                files.remove(id);
+            }
+        }
+        
+        public void setPlaylist(List<Integer> ids)
+        {
+            playlistIDs = ids;
+        }
+        
+        public void endSync(int id, boolean event, String line, String epoch, long version)
+                throws ProjiCastException
+        {
+            //Point the playlist at the current ServerFiles, renamed ones are new objects
+            List<ServerFile> newPlaylist = new ArrayList<ServerFile>();
+            for(Integer fileID : playlistIDs)
+            {
+                ServerFile file = imageFiles.get(fileID);
+                if(file != null)
+                {
+                    newPlaylist.add(file);
+                }
+            }
+            playlist = newPlaylist;
+            playlistIDs = null;
+            if(epoch != null)
+            {
+                catalogEpoch = epoch;
+                catalogVersion = version;
+            }
             
-            if(command.equals("LIST BEGIN"))
+            if(state == Client.State.AUTHING)
             {
-                videoFiles.clear();
-                imageFiles.clear();
-                playlist = new ArrayList<ServerFile>(); //TODO good?
-                for(;;)
+                return;
+            }
+            if(event)
+            {
+                fireEvent(new Runnable()
                 {
-                    command = in.readLine();
-                    String[] split = command.split(" ");
-                    if(split.length == 3)
-                    {
-                        if(split[0].equals("VIDEO"))
-                        {
-                            Integer id = new Integer(split[1]);
-                            String name = URLDecoder.decode(split[2], "UTF-8");
-                            synchronized(videoFiles)
-                            {
-                                videoFiles.put(id, new ServerFile(name, ServerFile.Type.VIDEO, id));
-                            }
-                        }
-                        else if(split[0].equals("IMAGE"))
-                        {
-                            Integer id = new Integer(split[1]);
-                            String name = URLDecoder.decode(split[2], "UTF-8");
-                            synchronized(imageFiles)
-                            {
-                                imageFiles.put(id, new ServerFile(name, ServerFile.Type.IMAGE, id));
-                            }
-                        }
-                        else
-                        {
-                            close();
-                            throw new MalformedAnswerException("Unexpected answer: " + command);
-                        }
-                    }
-                    else if((split.length == 2) && split[0].equals("PLIST"))
+                    public void run()
                     {
-                        ServerFile file = imageFiles.get(new Integer(split[1]));
-                        if(file != null)
+                        for(ClientListener listener : listeners)
                         {
-                            playlist.add(file);
+                            listener.filesChanged(Client.this);
                         }
                     }
-                    else if(command.equals("LIST END"))
-                    {
-                        break;
-                    }
-                    else
-                    {
-                        close();
-                        throw new MalformedAnswerException("Unexpected answer: " + command);
-                    }
-                }
+                });
+            }
+            else
+            {
+                reply(id, line);
             }
         }
-        catch (NumberFormatException e)
+        
+        public void playerState(final String playerState)
         {
-            throw new MalformedAnswerException("Invalid integers in command: " + command);
+            fireEvent(new Runnable()
+            {
+                public void run()
+                {
+                    for(ClientListener listener : listeners)
+                    {
+                        listener.playerStateChanged(Client.this, playerState);
+                    }
+                }
+            });
         }
-        catch (UnsupportedEncodingException e)
+        
+        public void uploaded(final ServerFile.Type type, final String filename)
         {
-            close();
-            System.err.println(
-                    "System does not support UTF-8 which is required for ProjiCast Client. Disconnected.");
+            fireEvent(new Runnable()
+            {
+                public void run()
+                {
+                    for(ClientListener listener : listeners)
+                    {
+                        listener.uploadFinished(Client.this, type, filename);
+                    }
+                }
+            });
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Returns the map of files of the specified type.
+     */
+    private Map<Integer, ServerFile> filesFor(ServerFile.Type type)
+    {
+        return (type == ServerFile.Type.VIDEO) ? videoFiles : imageFiles;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * The encoding a Client talks to the server with once logged in, either the text
+ * protocol or the binary one. Commands are written with a request ID, where 0 means
+ * none; the codec reads what the server sends back and hands it to a Handler.
+ */
+interface ClientCodec
+{
+    /**
+     * Receives what is read from the server.
+     */
+    interface Handler
+    {
+        /**
+         * A reply that is not part of a file list has arrived.
+         * 
+         * @param id     the request ID, or 0 if untagged
+         * @param reply  the reply line, or <i>null</i> for the binary OK
+         */
+        void reply(int id, String reply) throws ProjiCastException;
+        
+        /**
+         * A file list or the changes to it begin.
+         * 
+         * @param full  <i>true</i> if the whole list follows
+         */
+        void beginSync(boolean full);
+        
+        void putFile(ServerFile file);
+        
+        void removeFile(ServerFile.Type type, int id);
+        
+        void setPlaylist(List<Integer> ids);
+        
+        /**
+         * The file list or its changes have been read.
+         * 
+         * @param id       the request ID, or 0 if untagged
+         * @param event    <i>true</i> if sent as an event
+         * @param reply    the header as a reply line
+         * @param epoch    the catalog epoch, or <i>null</i> if not sent
+         * @param version  the catalog version
+         */
+        void endSync(int id, boolean event, String reply, String epoch, long version) throws ProjiCastException;
+        
+        void playerState(String state);
+        
+        void uploaded(ServerFile.Type type, String filename);
+    }
+    
+    /**
+     * @return Returns <i>true</i> for the binary protocol.
+     */
+    boolean isBinary();
+    
+    /**
+     * Sends a refresh, the plain form if <code>epoch</code> is <i>null</i>.
+     */
+    void refresh(int id, String epoch, long version) throws IOException;
+    
+    void subscribe(int id, String epoch, long version) throws IOException;
+    
+    void slideshow(int id) throws IOException;
+    
+    void stop(int id) throws IOException;
+    
+    void limit(int id, long rate) throws IOException;
+    
+    void play(int id, int fileID) throws IOException;
+    
+    void image(int id, int fileID) throws IOException;
+    
+    void text(int id, String text) throws IOException;
+    
+    void delete(int id, ServerFile.Type type, int fileID) throws IOException;
+    
+    /**
+     * Writes a playlist. The text protocol needs a reply to "PLIST BEGIN" as well,
+     * the binary protocol ignores the first ID.
+     * 
+     * @param beginID  the request ID of "PLIST BEGIN"
+     * @param endID    the request ID of "PLIST END"
+     * @param files    the files in the playlist
+     */
+    void playlist(int beginID, int endID, List<ServerFile> files) throws IOException;
+    
+    /**
+     * Sends everything written so far.
+     */
+    void flush() throws IOException;
+    
+    /**
+     * Reads the next reply or event, with everything belonging to it.
+     * 
+     * @return <i>false</i> if the server closed the connection
+     */
+    boolean read(Handler handler) throws ProjiCastException, IOException;
+    
+    void close() throws IOException;
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+
+/**
+ * Interface for being told about events on a ProjiCast server. Events are only
+ * sent after {@link Client#subscribe()} has been called, and listeners are
+ * called on a separate thread of the Client, never on the Swing event thread.
+ */
+public interface ClientListener
+{
+    /**
+     * Called after the file lists or the playlist of the Client have been updated
+     * with changes on the server.
+     * 
+     * @param client  the Client
+     */
+    void filesChanged(Client client);
+    
+    /**
+     * Called when the player on the server changes state.
+     * 
+     * @param client  the Client
+     * @param state   the new state, such as PLAYING_VIDEO or STOPPED
+     */
+    void playerStateChanged(Client client, String state);
+    
+    /**
+     * Called when a file has been uploaded to the server.
+     * 
+     * @param client    the Client
+     * @param type      the type of the file
+     * @param filename  the name of the file
+     */
+    void uploadFinished(Client client, ServerFile.Type type, String filename);
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ * Compares sending a modified version of a file in full with sending it as a delta
+ * to the version the server has, see {@link DeltaUpload}. The modified versions
+ * have 1% and 10% of the file overwritten in regions spread over it, and a few
+ * bytes inserted in the middle, which moves everything after them. Needs a running
+ * server. Prints the bytes sent and the wall time.
+ * <p>
+ * Usage: DeltaBenchmark host port password [megabytes]
+ */
+public class DeltaBenchmark
+{
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int REGIONS = 64;
+    private static final String NAME = "delta-benchmark.bin";
+    
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3)
+        {
+            System.err.println("Usage: DeltaBenchmark host port password [megabytes]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String password = args[2];
+        long size = ((args.length > 3) ? Long.parseLong(args[3]) : 2048) * 1024 * 1024;
+        
+        File base = File.createTempFile("projicast", ".bin");
+        //Named as on the server, which is what the delta is sent against
+        File dir = File.createTempFile("projicast", "");
+        dir.delete();
+        dir.mkdir();
+        File modified = new File(dir, NAME);
+        base.deleteOnExit();
+        dir.deleteOnExit();
+        modified.deleteOnExit();
+        createFile(base, size);
+        System.out.println((size / 1024 / 1024) + " MB");
+        
+        for(int percent : new int[] { 1, 10 })
+        {
+            modify(base, modified, percent);
+            //The server gets the old version back before each run
+            long time = sendFull(host, port, password, base);
+            report("full upload of the old version", base.length(), time);
+            time = sendFull(host, port, password, modified);
+            report(percent + "% modified, full upload    ", modified.length(), time);
+            sendFull(host, port, password, base);
+            //Moved into place by the server after it replied
+            Thread.sleep(2000);
+            long start = System.nanoTime();
+            DeltaUpload upload = new DeltaUpload(host, port, password, modified, ServerFile.Type.VIDEO);
+            upload.start();
+            while(!upload.waitFor(1000)) {}
+            time = System.nanoTime() - start;
+            if(!upload.isSent())
+            {
+                System.err.println("The server had no version to send a delta to");
+                System.exit(1);
+            }
+            report(percent + "% modified, delta upload   ", upload.getSent(), time);
+        }
+        base.delete();
+        modified.delete();
+        dir.delete();
+    }
+    
+    /**
+     * Fills a file with random data.
+     */
+    private static void createFile(File file, long size) throws IOException
+    {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            for(long written = 0; written < size; written += block.length)
+            {
+                random.nextBytes(block);
+                out.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Copies a file, overwriting a percentage of it with new data in regions spread
+     * over it, and inserting a few bytes in the middle.
+     */
+    private static void modify(File base, File modified, int percent) throws IOException
+    {
+        long size = base.length();
+        long region = Math.max(1, size * percent / 100 / REGIONS);
+        long spacing = size / REGIONS;
+        Random random = new Random(percent);
+        byte[] buf = new byte[1024 * 1024];
+        FileInputStream in = new FileInputStream(base);
+        FileOutputStream out = new FileOutputStream(modified);
+        try
+        {
+            long pos = 0;
+            int n;
+            while((n = in.read(buf)) != -1)
+            {
+                for(int i = 0; i < n; )
+                {
+                    long at = pos + i;
+                    long start = (at / spacing) * spacing + spacing / 2;
+                    if((at >= start) && (at < (start + region)))
+                    {
+                        int len = (int)Math.min(n - i, start + region - at);
+                        for(int j = 0; j < len; j++)
+                        {
+                            buf[i + j] = (byte)random.nextInt();
+                        }
+                        i += len;
+                    }
+                    else
+                    {
+                        i += (int)Math.min(n - i, (at < start) ? (start - at) : (start + spacing - at));
+                    }
+                }
+                out.write(buf, 0, n);
+                pos += n;
+                if((pos - n) < (size / 3) && (pos >= (size / 3)))
+                {
+                    out.write("inserted".getBytes("UTF-8"));
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+    
+    /**
+     * Sends a file in full.
+     * 
+     * @return the wall time taken in nanoseconds
+     */
+    private static long sendFull(String host, int port, String password, File file) throws Exception
+    {
+        long size = file.length();
+        long start = System.nanoTime();
+        ProjiCastOutputStream out = new ProjiCastOutputStream(host, port, NAME, size, ServerFile.Type.VIDEO, password);
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            for(long written = 0; written < size; written += CHUNK_SIZE)
+            {
+                out.transferFrom(in.getChannel(), written, Math.min(CHUNK_SIZE, size - written));
+            }
+            out.finish();
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        return System.nanoTime() - start;
+    }
+    
+    private static void report(String name, long sent, long time)
+    {
+        System.out.println(name + ": " + (sent / 1024) + " KB sent, " + (time / 1000000) + " ms");
+    }
+}
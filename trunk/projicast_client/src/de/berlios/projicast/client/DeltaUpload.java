@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Sends a new version of a file the server already has as a delta, the way rsync
+ * does. The server sends the signatures of the blocks of its version. The new
+ * version is then scanned with a rolling checksum for those blocks, wherever they
+ * moved to, and only the data between the blocks found is sent, together with
+ * where to copy the blocks from.
+ * <p>
+ * If the server has no file of the name, nothing is sent and the file has to be
+ * sent in full, see {@link #isSent()}.
+ */
+public class DeltaUpload
+{
+    private static final int SIGNATURE_LENGTH = 4 + 16;
+    private static final int DIGEST_LENGTH = 16;
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024 * 1024;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int COPY = 0;
+    private static final int LITERAL = 1;
+    
+    private String host;
+    private int port;
+    private String password;
+    private File file;
+    private ServerFile.Type type;
+    private String hash;
+    
+    //The signatures of the server's version
+    private long baseSize;
+    private int blockSize;
+    private int[] weak;
+    private byte[] strong;
+    
+    private boolean done = false;
+    private boolean delta = false;
+    private Exception failure;
+    private volatile boolean cancelled = false;
+    private volatile long scanned = 0;
+    private volatile long sent = 0;
+    private volatile long length = -1;
+    
+    /**
+     * Constructs a new DeltaUpload.
+     * 
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param password  the password to log in with
+     * @param file      the new version of the file
+     * @param type      the type of the file
+     */
+    public DeltaUpload(String host, int port, String password, File file, ServerFile.Type type)
+    {
+        this(host, port, password, file, type, null);
+    }
+    
+    /**
+     * Constructs a new DeltaUpload for a file already hashed, which is then not
+     * hashed again while it is compared.
+     * 
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param password  the password to log in with
+     * @param file      the new version of the file
+     * @param type      the type of the file
+     * @param hash      the SHA-256 hash of the file in lower case hex, or <i>null</i>
+     */
+    public DeltaUpload(String host, int port, String password, File file, ServerFile.Type type, String hash)
+    {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.file = file;
+        this.type = type;
+        this.hash = hash;
+    }
+    
+    /**
+     * Starts sending the file.
+     */
+    public void start()
+    {
+        Thread thread = new Thread("ProjiCast delta upload")
+        {
+            public void run()
+            {
+                Exception e = null;
+                boolean sent = false;
+                try
+                {
+                    sent = send();
+                }
+                catch(Exception e2)
+                {
+                    e = e2;
+                }
+                synchronized(DeltaUpload.this)
+                {
+                    delta = sent;
+                    failure = e;
+                    done = true;
+                    DeltaUpload.this.notifyAll();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Waits for the upload to finish.
+     * 
+     * @param timeout  the longest time to wait in milliseconds
+     * 
+     * @return <i>true</i> if the upload has finished
+     * 
+     * @throws IOException          if the upload failed
+     * @throws ProjiCastException   if the server refused the upload
+     */
+    public synchronized boolean waitFor(long timeout) throws IOException, ProjiCastException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        try
+        {
+            long left;
+            while(!done && !cancelled && ((left = end - System.currentTimeMillis()) > 0))
+            {
+                wait(left);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for upload");
+        }
+        if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        }
+        if(failure instanceof ProjiCastException)
+        {
+            throw (ProjiCastException)failure;
+        }
+        return done;
+    }
+    
+    /**
+     * Stops the upload.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns <i>true</i> once the file has been sent as a delta,
+     *         <i>false</i> if the server has no version of it.
+     */
+    public synchronized boolean isSent()
+    {
+        return delta;
+    }
+    
+    /**
+     * @return Returns the number of bytes of the file compared so far.
+     */
+    public long getScanned()
+    {
+        return scanned;
+    }
+    
+    /**
+     * @return Returns the number of bytes of the delta sent so far.
+     */
+    public long getSent()
+    {
+        return sent;
+    }
+    
+    /**
+     * @return Returns the length of the delta, or -1 until it is known.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+    
+    /**
+     * Sends the file as a delta to the version on the server, if there is one.
+     */
+    private boolean send() throws IOException, ProjiCastException
+    {
+        if(!fetchSignatures())
+        {
+            return false;
+        }
+        List<long[]> ops = new ArrayList<long[]>();
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            String contentHash = scan(in, ops);
+            if(cancelled)
+            {
+                return false;
+            }
+            long total = 0;
+            for(long[] op : ops)
+            {
+                total += (op[0] == COPY) ? 9 : (5 + op[2]);
+            }
+            length = total;
+            ProjiCastOutputStream out = new ProjiCastOutputStream(host, port, file.getName(), file.length(),
+                    type, password, blockSize, total, contentHash);
+            try
+            {
+                byte[] head = new byte[9];
+                for(long[] op : ops)
+                {
+                    if(cancelled)
+                    {
+                        return false;
+                    }
+                    if(op[0] == COPY)
+                    {
+                        head[0] = 'C';
+                        putInt(head, 1, (int)op[1]);
+                        putInt(head, 5, (int)op[2]);
+                        out.write(head, 0, 9);
+                        sent += 9;
+                        continue;
+                    }
+                    head[0] = 'L';
+                    putInt(head, 1, (int)op[2]);
+                    out.write(head, 0, 5);
+                    sent += 5;
+                    //New data straight from the file
+                    for(long pos = op[1], end = op[1] + op[2]; pos < end; )
+                    {
+                        long n = Math.min(CHUNK_SIZE, end - pos);
+                        out.transferFrom(in.getChannel(), pos, n);
+                        pos += n;
+                        sent += n;
+                    }
+                }
+                out.finish();
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return true;
+    }
+    
+    /**
+     * Asks the server for the signatures of its version of the file.
+     * 
+     * @return <i>false</i> if the server has no version of the file
+     */
+    private boolean fetchSignatures() throws IOException, ProjiCastException
+    {
+        Socket socket = new Socket(host, port);
+        try
+        {
+            socket.setTrafficClass(0x08);
+            socket.setSoTimeout(60000);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            OutputStream out = socket.getOutputStream();
+            out.write("PROJICAST TRANSFER\n".getBytes("UTF-8"));
+            out.flush();
+            String command = readLine(in);
+            String[] split = command.split(" ");
+            if((split.length != 4) || !command.startsWith("PROJICAST TRANSFER AUTH "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            String request = "SIGS " + type + " " + URLEncoder.encode(file.getName(), "UTF-8");
+            out.write(("AUTH " + Security.digest(password + split[3]) + "\n" + request + "\n").getBytes("UTF-8"));
+            out.flush();
+            command = readLine(in);
+            if(command.equals("ERROR Invalid auth"))
+            {
+                throw new InvalidAuthException("Wrong password!");
+            }
+            if(!command.equals("AUTH OK"))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            command = readLine(in);
+            if(command.equals("SIGS NO"))
+            {
+                return false;
+            }
+            split = command.split(" ");
+            if((split.length != 5) || !command.startsWith("SIGS OK "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            baseSize = Long.parseLong(split[2]);
+            blockSize = Integer.parseInt(split[3]);
+            int count = Integer.parseInt(split[4]);
+            if((blockSize <= 0) || (count != (baseSize + blockSize - 1) / blockSize))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            weak = new int[count];
+            strong = new byte[count * DIGEST_LENGTH];
+            for(int i = 0; i < count; i++)
+            {
+                weak[i] = in.readInt();
+                in.readFully(strong, i * DIGEST_LENGTH, DIGEST_LENGTH);
+            }
+            return true;
+        }
+        catch(NumberFormatException e)
+        {
+            throw new MalformedAnswerException("Unexpected answer, invalid integer.");
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+    
+    /**
+     * Reads a reply line, byte by byte since the signatures follow right after it.
+     */
+    private static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n')
+        {
+            if(b == -1)
+            {
+                throw new IOException("Connection closed by server");
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8").trim();
+    }
+    
+    /**
+     * Finds the blocks of the server's version in the file, and notes what is to be
+     * copied and what to be sent. The file is hashed in the same pass unless its
+     * hash is known already.
+     * 
+     * @param in   the file
+     * @param ops  the list to add the copies, as block and count, and the new data,
+     *             as position and length, to
+     * 
+     * @return the SHA-256 hash of the file in lower case hex
+     */
+    private String scan(FileInputStream in, List<long[]> ops) throws IOException
+    {
+        MessageDigest sha;
+        MessageDigest md5;
+        try
+        {
+            sha = MessageDigest.getInstance("SHA-256");
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-256 or MD5 not supported");
+        }
+        int count = weak.length;
+        //Blocks by weak checksum, chained through next
+        int buckets = Integer.highestOneBit(Math.max(count, 1) * 2);
+        int[] head = new int[buckets];
+        int[] next = new int[count];
+        Arrays.fill(head, -1);
+        for(int i = count - 1; i >= 0; i--)
+        {
+            int bucket = bucket(weak[i], buckets);
+            next[i] = head[bucket];
+            head[bucket] = i;
+        }
+        //Only the last block of the server's version may be short
+        int lastLength = (count == 0) ? 0 : (int)(baseSize - (long)(count - 1) * blockSize);
+        
+        long size = file.length();
+        byte[] buf = new byte[Math.max(BUFFER_SIZE, 2 * blockSize)];
+        long bufOffset = 0;
+        int bufEnd = 0;
+        long pos = 0;
+        long literal = 0;
+        boolean rolling = false;
+        RollingChecksum sum = new RollingChecksum();
+        byte[] md = null;
+        while((pos < size) && !cancelled)
+        {
+            int p = (int)(pos - bufOffset);
+            int len = (int)Math.min(blockSize, size - pos);
+            if((p + len) > bufEnd)
+            {
+                //Moves the window to the start of the buffer and reads on
+                System.arraycopy(buf, p, buf, 0, bufEnd - p);
+                bufEnd -= p;
+                bufOffset = pos;
+                p = 0;
+                while(bufEnd < len)
+                {
+                    int n = in.read(buf, bufEnd, buf.length - bufEnd);
+                    if(n == -1)
+                    {
+                        throw new IOException("File changed while being read");
+                    }
+                    if(hash == null)
+                    {
+                        sha.update(buf, bufEnd, n);
+                    }
+                    bufEnd += n;
+                }
+                scanned = bufOffset + bufEnd;
+            }
+            if(len < blockSize)
+            {
+                //Only the short last block can match from here on
+                if(len > lastLength)
+                {
+                    pos = size - lastLength;
+                    rolling = false;
+                    continue;
+                }
+                if(len < lastLength)
+                {
+                    break;
+                }
+            }
+            if(!rolling)
+            {
+                sum.reset(buf, p, len);
+                rolling = true;
+            }
+            int match = -1;
+            {
+                int value = sum.getValue();
+                md = null;
+                //The block following the last one copied first, to make runs
+                long[] last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+                int expected = ((last != null) && (last[0] == COPY) && (literal == pos))
+                    ? (int)(last[1] + last[2]) : -1;
+                if((expected >= 0) && (expected < count) && (weak[expected] == value)
+                        && (blockLength(expected, count, lastLength) == len))
+                {
+                    md = digest(md5, buf, p, len);
+                    if(sameDigest(md, expected))
+                    {
+                        match = expected;
+                    }
+                }
+                for(int i = head[bucket(value, buckets)]; (match == -1) && (i != -1); i = next[i])
+                {
+                    if((weak[i] == value) && (blockLength(i, count, lastLength) == len))
+                    {
+                        if(md == null)
+                        {
+                            md = digest(md5, buf, p, len);
+                        }
+                        if(sameDigest(md, i))
+                        {
+                            match = i;
+                        }
+                    }
+                }
+            }
+            if(match != -1)
+            {
+                addLiteral(ops, literal, pos - literal);
+                long[] last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+                if((last != null) && (last[0] == COPY) && ((last[1] + last[2]) == match))
+                {
+                    last[2]++;
+                }
+                else
+                {
+                    ops.add(new long[] { COPY, match, 1 });
+                }
+                pos += len;
+                literal = pos;
+                rolling = false;
+                continue;
+            }
+            //On by one byte
+            if(((pos + len) < size) && (len == blockSize))
+            {
+                if((p + len) >= bufEnd)
+                {
+                    //The next byte is not read yet, start over once it is
+                    rolling = false;
+                }
+                else
+                {
+                    sum.roll(buf[p], buf[p + len]);
+                }
+            }
+            else
+            {
+                rolling = false;
+            }
+            pos++;
+        }
+        addLiteral(ops, literal, size - literal);
+        scanned = size;
+        return (hash != null) ? hash : Security.toHex(sha.digest());
+    }
+    
+    /**
+     * Adds new data to send, split so that each length fits an integer.
+     */
+    private static void addLiteral(List<long[]> ops, long pos, long length)
+    {
+        while(length > 0)
+        {
+            long n = Math.min(MAX_LITERAL, length);
+            ops.add(new long[] { LITERAL, pos, n });
+            pos += n;
+            length -= n;
+        }
+    }
+    
+    private static int bucket(int weak, int buckets)
+    {
+        return (weak * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(buckets)) & (buckets - 1);
+    }
+    
+    private int blockLength(int block, int count, int lastLength)
+    {
+        return (block == (count - 1)) ? lastLength : blockSize;
+    }
+    
+    private static byte[] digest(MessageDigest md5, byte[] buf, int off, int len)
+    {
+        md5.update(buf, off, len);
+        return md5.digest();
+    }
+    
+    private boolean sameDigest(byte[] md, int block)
+    {
+        int off = block * DIGEST_LENGTH;
+        for(int i = 0; i < DIGEST_LENGTH; i++)
+        {
+            if(md[i] != strong[off + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static void putInt(byte[] buf, int off, int value)
+    {
+        buf[off] = (byte)(value >>> 24);
+        buf[off + 1] = (byte)(value >>> 16);
+        buf[off + 2] = (byte)(value >>> 8);
+        buf[off + 3] = (byte)value;
+    }
+}
@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.List;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -49,6 +50,7 @@ public class FileTransferWindow extends JFrame
     private int port;
     private String password;
     private File file;
+    private File[] files;
     private ServerFile.Type type;
     
     private JLabel statusLabel;
@@ -68,12 +70,29 @@ public class FileTransferWindow extends JFrame
      * @param type      the file type
      */
     public FileTransferWindow(ProjiCastClient client, String host, int port, String password, File file, ServerFile.Type type)
+    {
+        this(client, host, port, password, new File[] { file }, type);
+    }
+    
+    /**
+     * Constructs a new FileTransferWindow for several files, which are sent over
+     * one connection.
+     * 
+     * @param client    the parent client of this transfer window
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param password  the password to log in with
+     * @param files     the files to send
+     * @param type      the file type
+     */
+    public FileTransferWindow(ProjiCastClient client, String host, int port, String password, File[] files, ServerFile.Type type)
     {
         this.client = client;
         this.host = host;
         this.port = port;
         this.password = password;
-        this.file = file;
+        this.file = files[0];
+        this.files = files;
         this.type = type;
         
         setResizable(false);
@@ -141,6 +160,15 @@ public class FileTransferWindow extends JFrame
      */
     class TransferThread extends Thread
     {
+        private static final int MAX_ATTEMPTS = 5;
+        private static final long RETRY_DELAY = 3000;
+        private static final long PARALLEL_SIZE = 64 * 1024 * 1024;
+        private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+        //A delta reads the whole file on both ends, which only pays off on links slower than this
+        private static final long SLOW_RATE = 10 * 1024 * 1024;
+        //Smaller uploads take too little time to tell the rate of the link
+        private static final long MEASURE_SIZE = 4 * 1024 * 1024;
+        
         private long lastCheck = 0;
         private long nextCheck = 0;
         private long speed = 0;
@@ -166,27 +194,161 @@ public class FileTransferWindow extends JFrame
             FileInputStream in = null;
             try
             {
-                statusLabel.setText("Connecting to server...");
-                out = new ProjiCastOutputStream(host, port, file.getName(), file.length(), type, password);
-                
-                
                 mbForm = new DecimalFormat("0.0");
                 kbForm = new DecimalFormat("0");
                 
-                in = new FileInputStream(file);
-                byte[] buf = new byte[8 * 4096];
-                int n;
+                //Several files are sent back to back over one connection
+                if(files.length > 1)
+                {
+                    statusLabel.setText("Connecting to server...");
+                    BatchUpload upload = new BatchUpload(host, port, password);
+                    for(File f : files)
+                    {
+                        upload.add(f, type);
+                    }
+                    size = upload.getTotal();
+                    long start = System.nanoTime();
+                    upload.start();
+                    while(!upload.waitFor(500))
+                    {
+                        if(cancel)
+                        {
+                            upload.cancel();
+                            break;
+                        }
+                        written = upload.getSent();
+                        update();
+                    }
+                    List<File> failed = upload.getFailed();
+                    if(!cancel && !failed.isEmpty())
+                    {
+                        JOptionPane.showMessageDialog(
+                                FileTransferWindow.this, failed.size() + " of " + files.length
+                                + " files could not be sent, the first being " + failed.get(0).getName() + ".",
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                    else if(!cancel)
+                    {
+                        measured(upload.getSent(), start);
+                    }
+                    dispose();
+                    return;
+                }
                 
                 size = file.length();
-                while((written < size) && !cancel)
+                String contentID = Security.digest(file.getName() + "/" + size + "/" + file.lastModified());
+                //Content the server already has is not sent again
+                statusLabel.setText("Checking file...");
+                String contentHash = Security.hash(file);
+                if(cancel || ProjiCastOutputStream.link(host, port, file.getName(), size, type, password, contentHash))
+                {
+                    dispose();
+                    return;
+                }
+                
+                //Over a slow link a new version of a file the server has is sent as a delta to it
+                long rate = client.getUploadRate();
+                if((rate > 0) && (rate < SLOW_RATE))
+                {
+                    statusLabel.setText("Comparing with the server's version...");
+                    DeltaUpload delta = new DeltaUpload(host, port, password, file, type, contentHash);
+                    delta.start();
+                    while(!delta.waitFor(500))
+                    {
+                        if(cancel)
+                        {
+                            delta.cancel();
+                            break;
+                        }
+                        if(delta.getLength() >= 0)
+                        {
+                            size = delta.getLength();
+                            written = delta.getSent();
+                            update();
+                        }
+                    }
+                    if(cancel || delta.isSent())
+                    {
+                        dispose();
+                        return;
+                    }
+                    size = file.length();
+                }
+                
+                //Large files are sent in ranges over several streams
+                if(size >= PARALLEL_SIZE)
+                {
+                    statusLabel.setText("Connecting to server...");
+                    ParallelUpload upload = new ParallelUpload(host, port, password, file, type, contentID);
+                    long start = System.nanoTime();
+                    upload.start();
+                    while(!upload.waitFor(500))
+                    {
+                        if(cancel)
+                        {
+                            upload.cancel();
+                            break;
+                        }
+                        written = upload.getSent();
+                        update();
+                    }
+                    if(!cancel)
+                    {
+                        measured(upload.getSent(), start);
+                    }
+                    dispose();
+                    return;
+                }
+                
+                //An upload that breaks off is resumed where the server says it stopped
+                for(int attempt = 1; ; attempt++)
                 {
-                    n = in.read(buf);
-                    out.write(buf, 0, n);
-                    written += n;
-                    
-                    update();
+                    try
+                    {
+                        statusLabel.setText("Connecting to server...");
+                        out = new ProjiCastOutputStream(
+                                host, port, file.getName(), size, type, password, contentID);
+                        
+                        in = new FileInputStream(file);
+                        written = out.getOffset();
+                        lastCheck = written;
+                        long from = written;
+                        long start = System.nanoTime();
+                        //Sent by the kernel in chunks, to show the progress in between
+                        while((written < size) && !cancel)
+                        {
+                            long n = Math.min(CHUNK_SIZE, size - written);
+                            out.transferFrom(in.getChannel(), written, n);
+                            written += n;
+                            
+                            update();
+                        }
+                        if(!cancel)
+                        {
+                            statusLabel.setText("Waiting for server...");
+                            out.finish();
+                            measured(size - from, start);
+                        }
+                        break;
+                    }
+                    catch(IOException e)
+                    {
+                        if(cancel || (attempt == MAX_ATTEMPTS))
+                        {
+                            throw e;
+                        }
+                        e.printStackTrace();
+                        closeStreams(in);
+                        in = null;
+                        out = null;
+                        statusLabel.setText("Connection lost, resuming...");
+                        Thread.sleep(RETRY_DELAY);
+                    }
                 }
-                client.refresh();
+                dispose();
+            }
+            catch(InterruptedException e)
+            {
                 dispose();
             }
             catch(IOException e)
@@ -221,13 +383,46 @@ public class FileTransferWindow extends JFrame
             }
             finally
             {
-                try
+                closeStreams(in);
+            }
+        }
+        
+        /**
+         * Notes the rate of an upload sent in full, if it was large enough to tell.
+         * 
+         * @param sent   the number of bytes sent
+         * @param start  when sending started, from {@link System#nanoTime()}
+         */
+        private void measured(long sent, long start)
+        {
+            long time = System.nanoTime() - start;
+            if((sent >= MEASURE_SIZE) && (time > 0))
+            {
+                client.setUploadRate((long)(sent / (time / 1e9)));
+            }
+        }
+        
+        /**
+         * Closes the connection and the file, ignoring errors.
+         */
+        private void closeStreams(FileInputStream in)
+        {
+            try
+            {
+                if(out != null)
                 {
                     out.close();
+                }
+            }
+            catch(IOException e) {}
+            try
+            {
+                if(in != null)
+                {
                     in.close();
                 }
-                catch(IOException e) {}
             }
+            catch(IOException e) {}
         }
         
         private void calcInfo()
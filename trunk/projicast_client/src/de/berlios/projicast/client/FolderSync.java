@@ -0,0 +1,921 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * Makes the files of a type on a ProjiCast server the same as those in a folder.
+ * The server sends a manifest of its files with their size, modification time and
+ * SHA-256 hash. Files of the folder the server does not have, or has with other
+ * content, are then sent, and files the server has but the folder does not are
+ * deleted from the server. Files starting with '.' and subfolders are left out.
+ * <p>
+ * The hashes of the files of the folder are kept in a file in the folder, and only
+ * computed again for files whose size or modification time changed. A sync with
+ * nothing to do thus reads no files at all.
+ * <p>
+ * The files are sent over several connections at once: small files together in
+ * batches, see {@link BatchUpload}, and new versions of large files as deltas, see
+ * {@link DeltaUpload}. Content the server has under another name, such as a
+ * renamed file, is not sent again but offered by its hash over the same
+ * connections, see {@link ProjiCastOutputStream#link}.
+ */
+public class FolderSync
+{
+    /**
+     * The file in the folder keeping the hashes of its files.
+     */
+    public static final String CACHE_NAME = ".projicast-sync";
+    
+    private static final long DELTA_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_REMOVE_LENGTH = 32 * 1024;
+    
+    private String host;
+    private int port;
+    private String password;
+    private File folder;
+    private ServerFile.Type type;
+    private int streams = 4;
+    
+    //Guarded by this
+    private ArrayDeque<Object> jobs;
+    private int running = 0;
+    private boolean finished = false;
+    private Exception failure;
+    private int done = 0;
+    private int total = 0;
+    private List<String> uploaded;
+    private List<String> removed;
+    private List<File> failed;
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Constructs a new FolderSync.
+     * 
+     * @param host      the host to connect to
+     * @param port      the file transfer port to connect to
+     * @param password  the password to log in with
+     * @param folder    the folder to make the server's files the same as
+     * @param type      the type of the files
+     */
+    public FolderSync(String host, int port, String password, File folder, ServerFile.Type type)
+    {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.folder = folder;
+        this.type = type;
+        jobs = new ArrayDeque<Object>();
+        uploaded = new ArrayList<String>();
+        removed = new ArrayList<String>();
+        failed = new ArrayList<File>();
+    }
+    
+    /**
+     * Sets the most connections to send files over at once.
+     * 
+     * @param streams  the number of connections, 4 by default
+     */
+    public void setStreams(int streams)
+    {
+        this.streams = streams;
+    }
+    
+    /**
+     * Starts the sync.
+     */
+    public void start()
+    {
+        Thread thread = new Thread("ProjiCast folder sync")
+        {
+            public void run()
+            {
+                Exception e = null;
+                try
+                {
+                    sync();
+                }
+                catch(Exception e2)
+                {
+                    e = e2;
+                }
+                synchronized(FolderSync.this)
+                {
+                    failure = e;
+                    finished = true;
+                    FolderSync.this.notifyAll();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Waits for the sync to finish.
+     * 
+     * @param timeout  the longest time to wait in milliseconds
+     * 
+     * @return <i>true</i> if the sync has finished, see {@link #getFailed()} for
+     *         the files that could not be sent
+     * 
+     * @throws IOException          if the sync failed as a whole
+     * @throws ProjiCastException   if the server refused the login
+     */
+    public synchronized boolean waitFor(long timeout) throws IOException, ProjiCastException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        try
+        {
+            long left;
+            while(!finished && !cancelled && ((left = end - System.currentTimeMillis()) > 0))
+            {
+                wait(left);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for sync");
+        }
+        if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        }
+        if(failure instanceof ProjiCastException)
+        {
+            throw (ProjiCastException)failure;
+        }
+        return finished;
+    }
+    
+    /**
+     * Stops the sync. The files already sent are kept by the server.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns the number of files sent so far.
+     */
+    public synchronized int getDone()
+    {
+        return done;
+    }
+    
+    /**
+     * @return Returns the number of files to send, once known.
+     */
+    public synchronized int getTotal()
+    {
+        return total;
+    }
+    
+    /**
+     * @return Returns the names of the files sent or made by the server from
+     *         content it had.
+     */
+    public synchronized List<String> getUploaded()
+    {
+        return new ArrayList<String>(uploaded);
+    }
+    
+    /**
+     * @return Returns the names of the files deleted from the server.
+     */
+    public synchronized List<String> getRemoved()
+    {
+        return new ArrayList<String>(removed);
+    }
+    
+    /**
+     * @return Returns the files that could not be sent.
+     */
+    public synchronized List<File> getFailed()
+    {
+        return new ArrayList<File>(failed);
+    }
+    
+    /**
+     * Compares the folder with the manifest of the server, and sends and deletes
+     * files until they are the same.
+     */
+    private void sync() throws IOException, ProjiCastException
+    {
+        //The server builds its manifest while the folder is looked through
+        FutureTask<Map<String, Info>> fetch = new FutureTask<Map<String, Info>>(new Callable<Map<String, Info>>()
+        {
+            public Map<String, Info> call() throws IOException, ProjiCastException
+            {
+                return fetchManifest();
+            }
+        });
+        Thread thread = new Thread(fetch, "ProjiCast manifest");
+        thread.setDaemon(true);
+        thread.start();
+        
+        Map<String, Info> cache = loadCache();
+        Map<String, Info> known = new HashMap<String, Info>(cache.size() * 2);
+        boolean changed = false;
+        DirectoryStream<Path> dir = Files.newDirectoryStream(folder.toPath());
+        try
+        {
+            for(Path path : dir)
+            {
+                String name = path.getFileName().toString();
+                if(name.startsWith("."))
+                {
+                    continue;
+                }
+                //One look at the file for all that is needed of it
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if(!attributes.isRegularFile())
+                {
+                    continue;
+                }
+                long size = attributes.size();
+                long modified = attributes.lastModifiedTime().toMillis();
+                Info info = cache.get(name);
+                if((info == null) || (info.size != size) || (info.modified != modified))
+                {
+                    info = new Info(size, modified, Security.hash(path.toFile()));
+                    changed = true;
+                }
+                known.put(name, info);
+            }
+        }
+        finally
+        {
+            dir.close();
+        }
+        
+        Map<String, Info> manifest = getManifest(fetch);
+        Set<String> hashes = new HashSet<String>();
+        for(Info remote : manifest.values())
+        {
+            hashes.add(remote.hash);
+        }
+        List<File> small = new ArrayList<File>();
+        List<File> large = new ArrayList<File>();
+        List<Offer> offers = new ArrayList<Offer>();
+        for(Map.Entry<String, Info> e : known.entrySet())
+        {
+            String name = e.getKey();
+            Info info = e.getValue();
+            Info remote = manifest.get(name);
+            if(remote != null)
+            {
+                if(remote.hash.equals(info.hash))
+                {
+                    continue;
+                }
+                //Not hashed by the server yet, but stored after the file last changed
+                if(remote.hash.equals("-") && (remote.size == info.size) && (remote.modified >= info.modified))
+                {
+                    continue;
+                }
+            }
+            File file = new File(folder, name);
+            boolean delta = (remote != null) && (info.size >= DELTA_SIZE);
+            if(hashes.contains(info.hash))
+            {
+                offers.add(new Offer(file, info, delta));
+            }
+            else if(delta)
+            {
+                large.add(file);
+            }
+            else
+            {
+                small.add(file);
+            }
+        }
+        if(changed || (known.size() != cache.size()))
+        {
+            saveCache(known);
+        }
+        
+        List<String> gone = new ArrayList<String>();
+        for(String name : manifest.keySet())
+        {
+            if(!known.containsKey(name))
+            {
+                gone.add(name);
+            }
+        }
+        send(small, large, offers);
+        //Only now, the server finds the content of a renamed file under its old name
+        if(!gone.isEmpty() && !cancelled)
+        {
+            remove(gone);
+        }
+    }
+    
+    /**
+     * Sends the files over several connections at once, and waits for them. The
+     * offers go first, split among the connections.
+     */
+    private void send(List<File> small, List<File> large, List<Offer> offers)
+    {
+        int count = Math.max(1, streams);
+        List<List<Offer>> offerJobs = new ArrayList<List<Offer>>();
+        for(int i = 0; i < Math.min(count, offers.size()); i++)
+        {
+            offerJobs.add(new ArrayList<Offer>());
+        }
+        for(int i = 0; i < offers.size(); i++)
+        {
+            offerJobs.get(i % offerJobs.size()).add(offers.get(i));
+        }
+        //Small files in batches of about the same size, the largest first
+        Collections.sort(small, new Comparator<File>()
+        {
+            public int compare(File a, File b)
+            {
+                return Long.valueOf(b.length()).compareTo(a.length());
+            }
+        });
+        List<List<File>> batches = new ArrayList<List<File>>();
+        long[] sizes = new long[Math.min(count, small.size())];
+        for(int i = 0; i < sizes.length; i++)
+        {
+            batches.add(new ArrayList<File>());
+        }
+        for(File file : small)
+        {
+            int least = 0;
+            for(int i = 1; i < sizes.length; i++)
+            {
+                if(sizes[i] < sizes[least])
+                {
+                    least = i;
+                }
+            }
+            batches.get(least).add(file);
+            sizes[least] += file.length();
+        }
+        synchronized(this)
+        {
+            total = small.size() + large.size() + offers.size();
+            for(List<Offer> job : offerJobs)
+            {
+                jobs.add(new Offers(job));
+            }
+            jobs.addAll(large);
+            jobs.addAll(batches);
+            running = Math.min(count, jobs.size());
+            for(int i = 0; i < running; i++)
+            {
+                Thread worker = new Thread("ProjiCast sync-" + i)
+                {
+                    public void run()
+                    {
+                        work();
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+            try
+            {
+                while((running > 0) && !cancelled)
+                {
+                    wait();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                cancelled = true;
+            }
+        }
+    }
+    
+    /**
+     * Sends offers, batches and deltas until there are none left.
+     */
+    @SuppressWarnings("unchecked")
+    private void work()
+    {
+        Object job;
+        while((job = nextJob()) != null)
+        {
+            if(job instanceof File)
+            {
+                File file = (File)job;
+                try
+                {
+                    DeltaUpload delta = new DeltaUpload(host, port, password, file, type);
+                    delta.start();
+                    while(!delta.waitFor(500))
+                    {
+                        if(cancelled)
+                        {
+                            delta.cancel();
+                        }
+                    }
+                    if(delta.isSent())
+                    {
+                        finished(file, true);
+                    }
+                    else
+                    {
+                        //Gone from the server meanwhile
+                        sendBatch(Collections.singletonList(file));
+                    }
+                }
+                catch(Exception e)
+                {
+                    System.err.println("Unable to send " + file + ": " + e.getMessage());
+                    finished(file, false);
+                }
+            }
+            else if(job instanceof Offers)
+            {
+                offer(((Offers)job).offers);
+            }
+            else
+            {
+                sendBatch((List<File>)job);
+            }
+        }
+        synchronized(this)
+        {
+            running--;
+            notifyAll();
+        }
+    }
+    
+    private synchronized Object nextJob()
+    {
+        return cancelled ? null : jobs.poll();
+    }
+    
+    /**
+     * Offers files by their hash over one connection, and queues those the server
+     * could not make from content it has to be sent.
+     */
+    private void offer(List<Offer> offers)
+    {
+        List<Offer> rejected = new ArrayList<Offer>();
+        int i = 0;
+        try
+        {
+            Socket socket = new Socket(host, port);
+            try
+            {
+                BufferedReader in = null;
+                OutputStream out = socket.getOutputStream();
+                for(; (i < offers.size()) && !cancelled; i++)
+                {
+                    Offer offer = offers.get(i);
+                    String line = "HAVE " + type + " " + offer.info.size + " "
+                            + URLEncoder.encode(offer.file.getName(), "UTF-8") + " " + offer.info.hash;
+                    if(in == null)
+                    {
+                        in = login(socket, line);
+                    }
+                    else
+                    {
+                        out.write((line + "\n").getBytes("UTF-8"));
+                        out.flush();
+                    }
+                    String command = in.readLine();
+                    if("HAVE OK".equals(command))
+                    {
+                        finished(offer.file, true);
+                    }
+                    else if("HAVE NO".equals(command))
+                    {
+                        rejected.add(offer);
+                    }
+                    else
+                    {
+                        throw new MalformedAnswerException("Unexpected answer: " + command);
+                    }
+                }
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+        catch(Exception e)
+        {
+            System.err.println("Unable to offer files: " + e.getMessage());
+        }
+        rejected.addAll(offers.subList(i, offers.size()));
+        resend(rejected);
+    }
+    
+    /**
+     * Queues offered files to be sent after all.
+     */
+    private synchronized void resend(List<Offer> offers)
+    {
+        List<File> batch = new ArrayList<File>();
+        for(Offer offer : offers)
+        {
+            if(offer.delta)
+            {
+                jobs.add(offer.file);
+            }
+            else
+            {
+                batch.add(offer.file);
+            }
+        }
+        if(!batch.isEmpty())
+        {
+            jobs.add(batch);
+        }
+    }
+    
+    /**
+     * Sends files in a batch, and notes which were stored.
+     */
+    private void sendBatch(List<File> files)
+    {
+        BatchUpload batch = new BatchUpload(host, port, password);
+        for(File file : files)
+        {
+            batch.add(file, type);
+        }
+        batch.start();
+        try
+        {
+            while(!batch.waitFor(500))
+            {
+                if(cancelled)
+                {
+                    batch.cancel();
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            System.err.println("Unable to send files: " + e.getMessage());
+        }
+        Set<File> notSent = new HashSet<File>(batch.getFailed());
+        for(File file : files)
+        {
+            finished(file, !notSent.contains(file));
+        }
+    }
+    
+    private synchronized void finished(File file, boolean sent)
+    {
+        if(sent)
+        {
+            uploaded.add(file.getName());
+            done++;
+        }
+        else
+        {
+            failed.add(file);
+        }
+    }
+    
+    /**
+     * Logs in on the transfer port.
+     * 
+     * @return the reader of the replies, the request having been sent
+     */
+    private BufferedReader login(Socket socket, String request) throws IOException, ProjiCastException
+    {
+        socket.setTrafficClass(0x08);
+        socket.setSoTimeout(60000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new BufferedInputStream(socket.getInputStream(), 64 * 1024), "UTF-8"));
+        OutputStream out = socket.getOutputStream();
+        out.write("PROJICAST TRANSFER\n".getBytes("UTF-8"));
+        out.flush();
+        String command = in.readLine();
+        String[] split = (command != null) ? command.split(" ") : new String[0];
+        if((split.length != 4) || !command.startsWith("PROJICAST TRANSFER AUTH "))
+        {
+            throw new MalformedAnswerException("Unexpected answer: " + command);
+        }
+        out.write(("AUTH " + Security.digest(password + split[3]) + "\n" + request + "\n").getBytes("UTF-8"));
+        out.flush();
+        command = in.readLine();
+        if("ERROR Invalid auth".equals(command))
+        {
+            throw new InvalidAuthException("Wrong password!");
+        }
+        if(!"AUTH OK".equals(command))
+        {
+            throw new MalformedAnswerException("Unexpected answer: " + command);
+        }
+        return in;
+    }
+    
+    /**
+     * Asks the server for the size, modification time and hash of its files.
+     * 
+     * @return the size, modification time and hash, "-" if not known, by name
+     */
+    private Map<String, Info> fetchManifest() throws IOException, ProjiCastException
+    {
+        Socket socket = new Socket(host, port);
+        try
+        {
+            BufferedReader in = login(socket, "MANIFEST " + type);
+            String command = in.readLine();
+            if((command == null) || !command.startsWith("MANIFEST OK "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            int count = Integer.parseInt(command.substring(12));
+            Map<String, Info> manifest = new HashMap<String, Info>(count * 2);
+            for(int i = 0; i < count; i++)
+            {
+                String line = in.readLine();
+                String[] split = (line != null) ? line.split(" ") : new String[0];
+                if(split.length != 4)
+                {
+                    throw new MalformedAnswerException("Unexpected answer: " + line);
+                }
+                String name = split[3];
+                if((name.indexOf('%') >= 0) || (name.indexOf('+') >= 0))
+                {
+                    name = URLDecoder.decode(name, "UTF-8");
+                }
+                manifest.put(name,
+                        new Info(Long.parseLong(split[0]), Long.parseLong(split[1]), split[2]));
+            }
+            return manifest;
+        }
+        catch(NumberFormatException e)
+        {
+            throw new MalformedAnswerException("Unexpected answer, invalid integer.");
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+    
+    /**
+     * Waits for the manifest fetched in the background.
+     */
+    private Map<String, Info> getManifest(FutureTask<Map<String, Info>> fetch) throws IOException, ProjiCastException
+    {
+        try
+        {
+            return fetch.get();
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for the manifest");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof ProjiCastException)
+            {
+                throw (ProjiCastException)e.getCause();
+            }
+            if(e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Unable to fetch the manifest: " + e.getCause());
+        }
+    }
+    
+    /**
+     * Deletes files from the server, many at a time.
+     */
+    private void remove(List<String> names) throws IOException, ProjiCastException
+    {
+        Socket socket = new Socket(host, port);
+        try
+        {
+            BufferedReader in = null;
+            OutputStream out = socket.getOutputStream();
+            StringBuilder request = new StringBuilder();
+            List<String> pending = new ArrayList<String>();
+            for(int i = 0; i < names.size(); i++)
+            {
+                String name = names.get(i);
+                request.append(' ').append(URLEncoder.encode(name, "UTF-8"));
+                pending.add(name);
+                if((request.length() < MAX_REMOVE_LENGTH) && (i < (names.size() - 1)))
+                {
+                    continue;
+                }
+                String line = "REMOVE " + type + request;
+                if(in == null)
+                {
+                    in = login(socket, line);
+                }
+                else
+                {
+                    out.write((line + "\n").getBytes("UTF-8"));
+                    out.flush();
+                }
+                String command = in.readLine();
+                if((command == null) || !command.startsWith("REMOVE DONE "))
+                {
+                    throw new MalformedAnswerException("Unexpected answer: " + command);
+                }
+                synchronized(this)
+                {
+                    removed.addAll(pending);
+                }
+                request.setLength(0);
+                pending.clear();
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+    
+    /**
+     * Loads the hashes of the files of the folder computed before.
+     * 
+     * @return the size, modification time and hash by name
+     */
+    private Map<String, Info> loadCache()
+    {
+        Map<String, Info> cache = new HashMap<String, Info>();
+        File file = new File(folder, CACHE_NAME);
+        if(!file.exists())
+        {
+            return cache;
+        }
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 256 * 1024);
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                //size modified hash name, the name last since it may hold spaces
+                int a = line.indexOf(' ');
+                int b = line.indexOf(' ', a + 1);
+                int c = line.indexOf(' ', b + 1);
+                if((a > 0) && (b > a) && (c > b))
+                {
+                    cache.put(line.substring(c + 1), new Info(Long.parseLong(line.substring(0, a)),
+                            Long.parseLong(line.substring(a + 1, b)), line.substring(b + 1, c)));
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to load sync cache, files will be hashed again: " + e.getMessage());
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Sync cache is corrupt, files will be hashed again.");
+            cache.clear();
+        }
+        finally
+        {
+            try
+            {
+                if(in != null)
+                {
+                    in.close();
+                }
+            }
+            catch(IOException e) {}
+        }
+        return cache;
+    }
+    
+    /**
+     * Saves the hashes of the files of the folder.
+     */
+    private void saveCache(Map<String, Info> known)
+    {
+        File file = new File(folder, CACHE_NAME);
+        File tmp = new File(folder, CACHE_NAME + ".tmp");
+        PrintWriter out = null;
+        try
+        {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            for(Map.Entry<String, Info> e : known.entrySet())
+            {
+                Info info = e.getValue();
+                out.print(info.size + " " + info.modified + " " + info.hash + " " + e.getKey() + "\n");
+            }
+            out.close();
+            out = null;
+            file.delete();
+            if(!tmp.renameTo(file))
+            {
+                System.err.println("Unable to save sync cache to " + file);
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to save sync cache: " + e.getMessage());
+        }
+        finally
+        {
+            if(out != null)
+            {
+                out.close();
+            }
+        }
+    }
+    
+    /**
+     * The size, modification time and hash of a file.
+     */
+    private static class Info
+    {
+        private long size;
+        private long modified;
+        private String hash;
+        
+        public Info(long size, long modified, String hash)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * A file that may be made by the server from content it has.
+     */
+    private static class Offer
+    {
+        private File file;
+        private Info info;
+        private boolean delta;
+        
+        public Offer(File file, Info info, boolean delta)
+        {
+            this.file = file;
+            this.info = info;
+            this.delta = delta;
+        }
+    }
+    
+    /**
+     * The offers to make over one connection.
+     */
+    private static class Offers
+    {
+        private List<Offer> offers;
+        
+        public Offers(List<Offer> offers)
+        {
+            this.offers = offers;
+        }
+    }
+}
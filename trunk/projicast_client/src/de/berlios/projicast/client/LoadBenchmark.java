@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Loads a server with many idle, subscribed control sessions and a number of
+ * uploads at the same time, and times a command on another session meanwhile. Run
+ * it once against a server in each serverMode to compare them. Prints the
+ * command latency and the upload throughput, and, given the process id of a server
+ * on the same Linux machine, the memory and threads it takes per idle session.
+ * <p>
+ * Usage: LoadBenchmark host port transferPort password [sessions [uploads [megabytes [pid]]]]
+ */
+public class LoadBenchmark
+{
+    private static final int BLOCK_SIZE = 64 * 1024;
+    
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 4)
+        {
+            System.err.println(
+                    "Usage: LoadBenchmark host port transferPort password [sessions [uploads [megabytes [pid]]]]");
+            System.exit(1);
+        }
+        final String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        final int transferPort = Integer.parseInt(args[2]);
+        final String password = args[3];
+        int sessions = (args.length > 4) ? Integer.parseInt(args[4]) : 1000;
+        int uploads = (args.length > 5) ? Integer.parseInt(args[5]) : 20;
+        final long size = ((args.length > 6) ? Long.parseLong(args[6]) : 16) * 1024 * 1024;
+        String pid = (args.length > 7) ? args[7] : null;
+        System.out.println(sessions + " idle sessions, " + uploads + " uploads of " + (size / 1024 / 1024) + " MB");
+        
+        long[] before = status(pid);
+        List<Client> idle = new ArrayList<Client>();
+        for(int i = 0; i < sessions; i++)
+        {
+            Client client = new Client(host, port, password);
+            client.connect();
+            client.subscribe();
+            idle.add(client);
+        }
+        //Lets the server settle after the logins
+        Thread.sleep(2000);
+        System.gc();
+        long[] after = status(pid);
+        if((before != null) && (after != null))
+        {
+            System.out.println("server memory  : " + ((after[0] - before[0]) / sessions) + " KB, "
+                    + ((double)(after[1] - before[1]) / sessions) + " threads per idle session");
+        }
+        
+        Client probe = new Client(host, port, password);
+        probe.connect();
+        report("idle latency   ", time(probe, 500));
+        
+        final byte[] block = new byte[BLOCK_SIZE];
+        new Random(1).nextBytes(block);
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch done = new CountDownLatch(uploads);
+        Thread[] senders = new Thread[uploads];
+        for(int i = 0; i < uploads; i++)
+        {
+            final String name = "load-benchmark" + i + ".bin";
+            senders[i] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        send(host, transferPort, password, name, size, block);
+                    }
+                    catch(Exception e)
+                    {
+                        failures.add(e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for(Thread sender : senders)
+        {
+            sender.start();
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        while(done.getCount() > 0)
+        {
+            latencies.addAll(time(probe, 10));
+        }
+        long time = System.nanoTime() - start;
+        report("loaded latency ", latencies);
+        System.out.println("uploads        : " + (long)((uploads * size / 1024 / 1024) / (time / 1e9)) + " MB/s, "
+                + failures.size() + " failed");
+        
+        probe.close();
+        for(Client client : idle)
+        {
+            client.close();
+        }
+    }
+    
+    /**
+     * Times round trips of a command that the server answers without further work.
+     * 
+     * @return the time of each in nanoseconds
+     */
+    private static List<Long> time(Client client, int count) throws Exception
+    {
+        List<Long> times = new ArrayList<Long>();
+        for(int i = 0; i < count; i++)
+        {
+            long start = System.nanoTime();
+            client.setTransferLimit(0);
+            times.add(System.nanoTime() - start);
+        }
+        return times;
+    }
+    
+    private static void send(String host, int port, String password, String name, long size, byte[] block)
+        throws Exception
+    {
+        ProjiCastOutputStream out = new ProjiCastOutputStream(host, port, name, size, ServerFile.Type.VIDEO, password);
+        try
+        {
+            for(long written = 0; written < size; written += block.length)
+            {
+                out.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+            out.finish();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Reads the resident memory in kilobytes and the number of threads of a process.
+     * 
+     * @return null without a process id or where there is no /proc
+     */
+    private static long[] status(String pid) throws IOException
+    {
+        File file = new File("/proc/" + pid + "/status");
+        if((pid == null) || !file.exists())
+        {
+            return null;
+        }
+        long[] status = new long[2];
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try
+        {
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                String[] split = line.split("\\s+");
+                if(split[0].equals("VmRSS:"))
+                {
+                    status[0] = Long.parseLong(split[1]);
+                }
+                else if(split[0].equals("Threads:"))
+                {
+                    status[1] = Long.parseLong(split[1]);
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return status;
+    }
+    
+    private static void report(String name, List<Long> times)
+    {
+        Collections.sort(times);
+        System.out.println(name + ": p50 " + (times.get(times.size() / 2) / 1000) + " us, p99 "
+                + (times.get(times.size() * 99 / 100) / 1000) + " us, max "
+                + (times.get(times.size() - 1) / 1000) + " us over " + times.size() + " commands");
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Sends a file to a ProjiCast server in ranges over several streams at once, which
+ * fills a link with a high latency far better than a single stream can. The number
+ * of streams is found while sending: starting with one, another stream is added as
+ * long as the last one added made the upload faster, up to a maximum.
+ * <p>
+ * A range that fails is sent again, by any stream, a few times before the upload
+ * is given up. The file appears on the server once every range has arrived.
+ */
+public class ParallelUpload
+{
+    private static final long MIN_RANGE_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PROBE_INTERVAL = 1000;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    
+    private String host;
+    private int port;
+    private String password;
+    private File file;
+    private ServerFile.Type type;
+    private String contentID;
+    private int maxStreams = 8;
+    
+    //Ranges waiting to be sent and the number not yet sent, guarded by this
+    private ArrayDeque<long[]> ranges;
+    private int pending;
+    private int streams = 0;
+    private Exception failure;
+    private volatile boolean cancelled = false;
+    private AtomicLong sent;
+    
+    /**
+     * Constructs a new ParallelUpload.
+     * 
+     * @param host       the host to connect to
+     * @param port       the port to connect to
+     * @param password   the password to log in with
+     * @param file       the file to send
+     * @param type       the type of the file
+     * @param contentID  an ID for the content of the file, see {@link ProjiCastOutputStream}
+     */
+    public ParallelUpload(String host, int port, String password, File file, ServerFile.Type type,
+            String contentID)
+    {
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.file = file;
+        this.type = type;
+        this.contentID = contentID;
+        ranges = new ArrayDeque<long[]>();
+        sent = new AtomicLong();
+    }
+    
+    /**
+     * Sets the most streams to use.
+     * 
+     * @param maxStreams  the maximum number of streams, 8 by default
+     */
+    public void setMaxStreams(int maxStreams)
+    {
+        this.maxStreams = maxStreams;
+    }
+    
+    /**
+     * Starts sending the file.
+     */
+    public synchronized void start()
+    {
+        long size = file.length();
+        long rangeSize = Math.max(MIN_RANGE_SIZE, size / (maxStreams * 4));
+        for(long pos = 0; pos < size; pos += rangeSize)
+        {
+            //Start, length and attempts made
+            ranges.add(new long[] { pos, Math.min(rangeSize, size - pos), 0 });
+        }
+        pending = ranges.size();
+        Thread controller = new Thread("ProjiCast upload control")
+        {
+            public void run()
+            {
+                control();
+            }
+        };
+        controller.setDaemon(true);
+        controller.start();
+    }
+    
+    /**
+     * Waits for the upload to finish.
+     * 
+     * @param timeout  the longest time to wait in milliseconds
+     * 
+     * @return <i>true</i> if every range has been sent
+     * 
+     * @throws IOException          if the upload failed
+     * @throws ProjiCastException   if the server refused the upload
+     */
+    public synchronized boolean waitFor(long timeout) throws IOException, ProjiCastException
+    {
+        long end = System.currentTimeMillis() + timeout;
+        try
+        {
+            long left;
+            while((pending > 0) && (failure == null) && !cancelled
+                    && ((left = end - System.currentTimeMillis()) > 0))
+            {
+                wait(left);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for upload");
+        }
+        if(failure instanceof IOException)
+        {
+            throw (IOException)failure;
+        }
+        if(failure instanceof ProjiCastException)
+        {
+            throw (ProjiCastException)failure;
+        }
+        return pending == 0;
+    }
+    
+    /**
+     * Stops sending. What has been sent is kept by the server until it expires.
+     */
+    public synchronized void cancel()
+    {
+        cancelled = true;
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns the number of bytes sent so far.
+     */
+    public long getSent()
+    {
+        return sent.get();
+    }
+    
+    /**
+     * @return Returns the number of streams in use.
+     */
+    public synchronized int getStreams()
+    {
+        return streams;
+    }
+    
+    /**
+     * Adds streams while the upload gets faster by it.
+     */
+    private synchronized void control()
+    {
+        startStream();
+        boolean growing = true;
+        long lastRate = 0;
+        long lastSent = 0;
+        long nextProbe = System.currentTimeMillis() + PROBE_INTERVAL;
+        try
+        {
+            while((pending > 0) && (failure == null) && !cancelled)
+            {
+                long left = nextProbe - System.currentTimeMillis();
+                if(left > 0)
+                {
+                    wait(left);
+                    continue;
+                }
+                nextProbe += PROBE_INTERVAL;
+                long now = sent.get();
+                long rate = now - lastSent;
+                lastSent = now;
+                if(growing)
+                {
+                    //More than a tenth faster since the last stream was added
+                    if((rate > (lastRate + lastRate / 10)) && (streams < maxStreams) && !ranges.isEmpty())
+                    {
+                        lastRate = rate;
+                        startStream();
+                    }
+                    else
+                    {
+                        growing = false;
+                    }
+                }
+            }
+        }
+        catch(InterruptedException e)
+        {
+            cancelled = true;
+        }
+    }
+    
+    private synchronized void startStream()
+    {
+        Thread stream = new StreamThread(streams++);
+        stream.setDaemon(true);
+        stream.start();
+    }
+    
+    /**
+     * Returns the next range to send, or <i>null</i> if there is none.
+     */
+    private synchronized long[] nextRange()
+    {
+        return ((failure != null) || cancelled) ? null : ranges.poll();
+    }
+    
+    /**
+     * Notes that a range has been sent.
+     */
+    private synchronized void sent(long[] range)
+    {
+        pending--;
+        notifyAll();
+    }
+    
+    /**
+     * Notes that sending a range failed, and sends it again unless it has failed too
+     * often already.
+     */
+    private synchronized void failed(long[] range, Exception e)
+    {
+        if(!(e instanceof IOException) || (++range[2] >= MAX_ATTEMPTS))
+        {
+            if(failure == null)
+            {
+                failure = e;
+            }
+        }
+        else
+        {
+            ranges.add(range);
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Thread sending ranges over a stream of its own until there are none left.
+     */
+    private class StreamThread extends Thread
+    {
+        public StreamThread(int number)
+        {
+            super("ProjiCast upload-" + number);
+        }
+        
+        public void run()
+        {
+            FileInputStream in = null;
+            try
+            {
+                in = new FileInputStream(file);
+                long[] range;
+                while((range = nextRange()) != null)
+                {
+                    long written = 0;
+                    ProjiCastOutputStream out = null;
+                    try
+                    {
+                        out = new ProjiCastOutputStream(host, port, file.getName(), file.length(), type,
+                                password, contentID, range[0], range[1]);
+                        while((written < range[1]) && !cancelled)
+                        {
+                            long n = Math.min(CHUNK_SIZE, range[1] - written);
+                            out.transferFrom(in.getChannel(), range[0] + written, n);
+                            written += n;
+                            sent.addAndGet(n);
+                        }
+                        out.finish();
+                        out.close();
+                        if(!cancelled)
+                        {
+                            sent(range);
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        sent.addAndGet(-written);
+                        if(out != null)
+                        {
+                            try
+                            {
+                                out.close();
+                            }
+                            catch(IOException e2) {}
+                        }
+                        failed(range, e);
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                failed(new long[] { 0, 0, MAX_ATTEMPTS }, e);
+            }
+            finally
+            {
+                try
+                {
+                    if(in != null)
+                    {
+                        in.close();
+                    }
+                }
+                catch(IOException e) {}
+            }
+        }
+    }
+}
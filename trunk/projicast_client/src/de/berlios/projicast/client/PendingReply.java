@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.IOException;
+
+
+/**
+ * The reply to a command sent by a Client, which may not have arrived yet.
+ * Commands sent with the asynchronous methods of Client return at once with a
+ * PendingReply, so that many commands can be on their way to the server at the
+ * same time; the replies are waited for later.
+ */
+public class PendingReply
+{
+    private static final long TIMEOUT = 10000;
+    
+    private String command;
+    private String expected;
+    private int requestID;
+    private String reply;
+    private IOException error;
+    
+    /**
+     * Constructs a new PendingReply.
+     * 
+     * @param command   the name of the command sent
+     * @param expected  the reply expected, or its first word(s) if followed by more
+     */
+    PendingReply(String command, String expected)
+    {
+        this.command = command;
+        this.expected = expected;
+    }
+    
+    /**
+     * @return Returns the request ID sent with the command, or 0 if none.
+     */
+    int getRequestID()
+    {
+        return requestID;
+    }
+    
+    void setRequestID(int requestID)
+    {
+        this.requestID = requestID;
+    }
+    
+    /**
+     * Called by the Client when the reply has arrived.
+     */
+    synchronized void complete(String reply)
+    {
+        this.reply = reply;
+        notifyAll();
+    }
+    
+    /**
+     * Called by the Client when a reply arrives that only says the command succeeded,
+     * as in the binary protocol.
+     */
+    synchronized void completeOk()
+    {
+        complete(expected);
+    }
+    
+    /**
+     * Called by the Client when the reply will never arrive.
+     */
+    synchronized void fail(IOException error)
+    {
+        this.error = error;
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns the command this is the reply to.
+     */
+    public String getCommand()
+    {
+        return command;
+    }
+    
+    /**
+     * Returns <i>true</i> if the reply has arrived or the connection has been lost.
+     * 
+     * @return <i>true</i> if {@link #getReply()} will not block
+     */
+    public synchronized boolean isDone()
+    {
+        return (reply != null) || (error != null);
+    }
+    
+    /**
+     * Waits for the reply and returns it.
+     * 
+     * @return the reply
+     * 
+     * @throws IOException  if the connection is lost or no reply arrives in time
+     */
+    public synchronized String getReply() throws IOException
+    {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        try
+        {
+            while((reply == null) && (error == null))
+            {
+                long left = end - System.currentTimeMillis();
+                if(left <= 0)
+                {
+                    throw new IOException("Timed out waiting for reply to " + command);
+                }
+                wait(left);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for reply");
+        }
+        if(error != null)
+        {
+            throw error;
+        }
+        return reply;
+    }
+    
+    /**
+     * Waits for the reply and checks that the command succeeded.
+     * 
+     * @throws FileNotOnServerException  if the command referred to a file not on the server
+     * @throws MalformedAnswerException  if the server replied something unexpected
+     * @throws IOException               if the connection is lost or no reply arrives in time
+     */
+    public void await() throws ProjiCastException, IOException
+    {
+        String reply = getReply();
+        if(reply.equals("ERROR File not on server"))
+        {
+            throw new FileNotOnServerException("File not on server!");
+        }
+        else if(!reply.equals(expected) && !reply.startsWith(expected + " "))
+        {
+            throw new MalformedAnswerException("Unexpected answer: " + reply);
+        }
+    }
+}
@@ -43,6 +43,7 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
 
 
 public class ProjiCastClient extends JFrame
@@ -56,6 +57,7 @@ public class ProjiCastClient extends JFrame
     private ServerFileListModel videoModel;
     private ServerFileListModel imageModel;
     private DefaultListModel slideshowModel;
+    private volatile long uploadRate = 0;
     
     /**
      * Constructs a new ProjiCastClient using the specified Client.
@@ -72,6 +74,45 @@ public class ProjiCastClient extends JFrame
         slideshowModel = new DefaultListModel();
         createGUI();
         updateLists();
+        
+        //Keep the lists up to date with the server instead of refreshing after every action
+        client.addClientListener(new ClientListener()
+        {
+            public void filesChanged(Client client)
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    public void run()
+                    {
+                        updateLists();
+                    }
+                });
+            }
+            
+            public void playerStateChanged(Client client, String state)
+            {
+            }
+            
+            public void uploadFinished(Client client, ServerFile.Type type, String filename)
+            {
+            }
+        });
+        try
+        {
+            client.subscribe();
+        }
+        catch(MalformedAnswerException e)
+        {
+            unexpectedReply();
+        }
+        catch(ProjiCastException e)
+        {
+            e.printStackTrace();
+        }
+        catch(IOException e)
+        {
+            inputOutputError(e);
+        }
     }
     
     public void createGUI()
@@ -565,6 +606,26 @@ public class ProjiCastClient extends JFrame
         }
     }
     
+    /**
+     * Notes the rate an upload was sent in full at, so that the next one can be sent
+     * the way that suits the link.
+     * 
+     * @param rate  the rate in bytes per second
+     */
+    public void setUploadRate(long rate)
+    {
+        uploadRate = rate;
+    }
+    
+    /**
+     * @return Returns the rate of the last upload sent in full in bytes per second,
+     *         or 0 if none has been measured yet.
+     */
+    public long getUploadRate()
+    {
+        return uploadRate;
+    }
+    
     /**
      * Uploads a file of the specified type.
      * 
@@ -573,10 +634,15 @@ public class ProjiCastClient extends JFrame
     public void uploadFile(ServerFile.Type type)
     {
         JFileChooser chooser = new JFileChooser();
+        chooser.setMultiSelectionEnabled(true);
         if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
         {
-            File file = chooser.getSelectedFile();
-            FileTransferWindow dialog = new FileTransferWindow(this, client.getHost(), 30011, client.getPassword(), file, type);
+            File[] files = chooser.getSelectedFiles();
+            if(files.length == 0)
+            {
+                files = new File[] { chooser.getSelectedFile() };
+            }
+            FileTransferWindow dialog = new FileTransferWindow(this, client.getHost(), 30011, client.getPassword(), files, type);
             dialog.setVisible(true);
             dialog.start();
         }
@@ -625,7 +691,6 @@ public class ProjiCastClient extends JFrame
         {
             inputOutputError(e);
         }
-        refresh();
     }
     
     /**
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * InputStream class for downloading a file from a ProjiCast server, or a range of
+ * it. A download that broke off is continued by opening a new stream at the offset
+ * reached.
+ */
+public class ProjiCastInputStream extends InputStream
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private Socket socket;
+    private InputStream in;
+    private long size;
+    private long offset;
+    private long remaining;
+    
+    /**
+     * Constructs a new ProjiCastInputStream for the file from the offset to its end.
+     * 
+     * @param host      the host to connect to
+     * @param port      the file transfer port to connect to
+     * @param password  the password to log in with
+     * @param file      the file to download
+     * @param offset    the position in the file to start at
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws FileNotOnServerException  if the file is no longer on the server
+     * @throws MalformedAnswerException  if the offset is past the end of the file or
+     *                                   the server replied something unexpected
+     */
+    public ProjiCastInputStream(String host, int port, String password, ServerFile file, long offset)
+            throws IOException,ProjiCastException
+    {
+        this(host, port, password, file, offset, -1);
+    }
+    
+    /**
+     * Constructs a new ProjiCastInputStream for a range of the file.
+     * 
+     * @param host      the host to connect to
+     * @param port      the file transfer port to connect to
+     * @param password  the password to log in with
+     * @param file      the file to download
+     * @param offset    the position in the file to start at
+     * @param length    the number of bytes to download, or -1 for the rest of the file
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws FileNotOnServerException  if the file is no longer on the server
+     * @throws MalformedAnswerException  if the range is outside the file or the server
+     *                                   replied something unexpected
+     */
+    public ProjiCastInputStream(String host, int port, String password, ServerFile file, long offset,
+            long length) throws IOException,ProjiCastException
+    {
+        socket = new Socket(host, port);
+        try
+        {
+            socket.setTrafficClass(0x08);
+            socket.setSoTimeout(10000);
+            in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            OutputStream out = socket.getOutputStream();
+            out.write("PROJICAST TRANSFER\n".getBytes("UTF-8"));
+            out.flush();
+            String command = readLine();
+            String[] split = command.split(" ");
+            if((split.length != 4) || !command.startsWith("PROJICAST TRANSFER AUTH "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            //The login and the request go out together
+            String request = "GET " + file.getType() + " " + file.getID() + " " + offset
+                + ((length >= 0) ? (" " + length) : "");
+            out.write(("AUTH " + Security.digest(password + split[3]) + "\n" + request + "\n").getBytes("UTF-8"));
+            out.flush();
+            command = readLine();
+            if(command.equals("ERROR Invalid auth"))
+            {
+                throw new InvalidAuthException("Wrong password!");
+            }
+            if(!command.equals("AUTH OK"))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            command = readLine();
+            if(command.equals("ERROR No such file"))
+            {
+                throw new FileNotOnServerException("File not found on server: " + file);
+            }
+            split = command.split(" ");
+            if((split.length != 5) || !split[0].equals("GET") || !split[1].equals("OK"))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            size = Long.parseLong(split[2]);
+            this.offset = Long.parseLong(split[3]);
+            remaining = Long.parseLong(split[4]);
+        }
+        catch(NumberFormatException e)
+        {
+            socket.close();
+            throw new MalformedAnswerException("Unexpected answer, invalid integer.");
+        }
+        catch(IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+        catch(ProjiCastException e)
+        {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Reads a reply line, byte by byte since the data follows right after it.
+     */
+    private String readLine() throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) != '\n')
+        {
+            if(b == -1)
+            {
+                throw new IOException("Connection closed by server");
+            }
+            line.write(b);
+        }
+        return line.toString("UTF-8").trim();
+    }
+    
+    /**
+     * @return Returns the size of the whole file.
+     */
+    public long getSize()
+    {
+        return size;
+    }
+    
+    /**
+     * @return Returns the position in the file the stream started at.
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+    
+    public int read() throws IOException
+    {
+        if(remaining <= 0)
+        {
+            return -1;
+        }
+        int b = in.read();
+        if(b == -1)
+        {
+            throw new IOException("Connection closed before the end of the file");
+        }
+        remaining--;
+        return b;
+    }
+    
+    public int read(byte[] buf, int off, int len) throws IOException
+    {
+        if(remaining <= 0)
+        {
+            return -1;
+        }
+        int n = in.read(buf, off, (int)Math.min(len, remaining));
+        if(n == -1)
+        {
+            throw new IOException("Connection closed before the end of the file");
+        }
+        remaining -= n;
+        return n;
+    }
+    
+    public int available() throws IOException
+    {
+        return (int)Math.min(in.available(), remaining);
+    }
+    
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
@@ -19,20 +19,54 @@
 
 package de.berlios.projicast.client;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * OutputStream class for sending a file to a ProjiCast server.
+ * <p>
+ * Only the login challenge is waited for. The login, the file header and the data
+ * are then sent back to back, and the replies to them are checked by
+ * {@link #finish()} once everything has been written.
+ * <p>
+ * An upload given a content ID is resumable: if it breaks off, the server keeps
+ * what it got, and a new stream for the same file and content ID continues where
+ * it stopped. Such a stream waits for the server to tell the offset to continue
+ * from, see {@link #getOffset()}.
+ * <p>
+ * A resumable upload may also be sent in ranges over several streams at once, see
+ * {@link ParallelUpload}. A stream for a range does not wait for the server.
+ * <p>
+ * Content the server already has need not be sent at all, see {@link #link}.
+ * <p>
+ * The data written is hashed on the way out, and the hash is sent after the data
+ * for the server to check. A file the server received damaged is dropped, and
+ * {@link #finish()} fails.
+ * <p>
+ * Data from a file is best sent with {@link #transferFrom}, which has the kernel copy
+ * it to the connection, and only reads it back once for the hash.
+ * <p>
+ * A stream may also carry a zip or tar archive the server extracts, see
+ * {@link ArchiveUpload}, or a delta to a version of the file the server has, see
+ * {@link DeltaUpload}.
  */
 public class ProjiCastOutputStream extends OutputStream
 {
-    private enum State { NOT_CONNECTED, AUTHING, READY_TO_SEND, DEAD }
+    private enum State { NOT_CONNECTED, AUTHING, READY_TO_SEND, FINISHED, DEAD }
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
     
     private State state = State.NOT_CONNECTED;
     private String host;
@@ -41,9 +75,24 @@ public class ProjiCastOutputStream extends OutputStream
     private long size;
     private ServerFile.Type type;
     private String password;
+    private String contentID;
+    private long offset = 0;
+    private long rangeStart = -1;
+    private long rangeLength;
+    private String contentHash;
+    private boolean linked = false;
+    private ArchiveUpload.Format archiveFormat;
+    private boolean archivePlaylist;
+    private int fileCount = -1;
+    private int blockSize = 0;
+    private long fileSize;
+    private String fileHash;
+    private MessageDigest digest;
+    private ByteBuffer hashBuffer;
+    private long count = 0;
+    private boolean repliesChecked = false;
     private Socket socket;
     private BufferedReader in;
-    private PrintWriter out;
     private OutputStream bout;
     
     /**
@@ -68,6 +117,162 @@ public class ProjiCastOutputStream extends OutputStream
         auth();
     }
     
+    /**
+     * Constructs a new ProjiCastOutputStream for a resumable upload. Only the data from
+     * {@link #getOffset()} on is to be written.
+     * 
+     * @param host       the host to connect to
+     * @param port       the port to connect to
+     * @param name       the file name of the file
+     * @param size       the size of the whole file
+     * @param type       the type of file to send
+     * @param password   the password to log in with
+     * @param contentID  an ID for the content of the file, such as a digest of its
+     *                   name, size and modification time; letters, digits, '.', '_'
+     *                   and '-' only
+     */
+    public ProjiCastOutputStream(String host, int port, String name, long size, ServerFile.Type type,
+            String password, String contentID) throws IOException,ProjiCastException
+    {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.size = size;
+        this.type = type;
+        this.password = password;
+        this.contentID = contentID;
+        auth();
+    }
+    
+    /**
+     * Constructs a new ProjiCastOutputStream for a range of an upload sent over several
+     * streams. Exactly the data of the range is to be written. The file appears on the
+     * server once all of its ranges have been sent.
+     * 
+     * @param host         the host to connect to
+     * @param port         the port to connect to
+     * @param name         the file name of the file
+     * @param size         the size of the whole file
+     * @param type         the type of file to send
+     * @param password     the password to log in with
+     * @param contentID    an ID for the content of the file, the same for all ranges
+     * @param rangeStart   the position of the range in the file
+     * @param rangeLength  the length of the range
+     */
+    public ProjiCastOutputStream(String host, int port, String name, long size, ServerFile.Type type,
+            String password, String contentID, long rangeStart, long rangeLength)
+            throws IOException,ProjiCastException
+    {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.size = size;
+        this.type = type;
+        this.password = password;
+        this.contentID = contentID;
+        this.rangeStart = rangeStart;
+        this.rangeLength = rangeLength;
+        auth();
+    }
+    
+    /**
+     * Constructs a new ProjiCastOutputStream for an archive the server extracts as it
+     * arrives. The archive itself is not stored.
+     * 
+     * @param host      the host to connect to
+     * @param port      the port to connect to
+     * @param size      the size of the archive
+     * @param type      the type of the files in the archive
+     * @param password  the password to log in with
+     * @param format    the format of the archive
+     * @param playlist  <i>true</i> to make the images of the archive the slideshow
+     *                  playlist, in archive order
+     */
+    public ProjiCastOutputStream(String host, int port, long size, ServerFile.Type type, String password,
+            ArchiveUpload.Format format, boolean playlist) throws IOException,ProjiCastException
+    {
+        this.host = host;
+        this.port = port;
+        this.size = size;
+        this.type = type;
+        this.password = password;
+        this.archiveFormat = format;
+        this.archivePlaylist = playlist;
+        auth();
+    }
+    
+    /**
+     * Constructs a new ProjiCastOutputStream for a delta the server builds the new
+     * version of a file from, out of the blocks of the version it has and new data.
+     * 
+     * @param host       the host to connect to
+     * @param port       the port to connect to
+     * @param name       the file name of the file
+     * @param fileSize   the size of the new version
+     * @param type       the type of the file
+     * @param password   the password to log in with
+     * @param blockSize  the block size of the signatures the delta was made with
+     * @param length     the length of the delta
+     * @param fileHash   the SHA-256 hash of the new version in lower case hex
+     */
+    ProjiCastOutputStream(String host, int port, String name, long fileSize, ServerFile.Type type,
+            String password, int blockSize, long length, String fileHash) throws IOException,ProjiCastException
+    {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.size = length;
+        this.type = type;
+        this.password = password;
+        this.blockSize = blockSize;
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+        auth();
+    }
+    
+    /**
+     * Constructs a stream only offering the hash of the content to the server.
+     */
+    private ProjiCastOutputStream(String host, int port, String name, long size, ServerFile.Type type,
+            String password, String contentHash, boolean offer) throws IOException,ProjiCastException
+    {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+        this.size = size;
+        this.type = type;
+        this.password = password;
+        this.contentHash = contentHash;
+        auth();
+    }
+    
+    /**
+     * Asks the server to make a file from content it already has, identified by its
+     * SHA-256 hash. If it does not have the content, the file has to be sent.
+     * 
+     * @param host         the host to connect to
+     * @param port         the port to connect to
+     * @param name         the file name of the file
+     * @param size         the size of the file
+     * @param type         the type of the file
+     * @param password     the password to log in with
+     * @param contentHash  the SHA-256 hash of the file in lower case hex, see
+     *                     {@link Security#hash(java.io.File)}
+     * 
+     * @return <i>true</i> if the server made the file, <i>false</i> if it has to be sent
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws MalformedAnswerException  if the server replied something unexpected
+     */
+    public static boolean link(String host, int port, String name, long size, ServerFile.Type type,
+            String password, String contentHash) throws IOException,ProjiCastException
+    {
+        ProjiCastOutputStream offer = new ProjiCastOutputStream(
+                host, port, name, size, type, password, contentHash, true);
+        offer.close();
+        return offer.linked;
+    }
+    
     /**
      * Authenticate with server.
      */
@@ -75,42 +280,31 @@ public class ProjiCastOutputStream extends OutputStream
     {
         try
         {
-            socket = new Socket(host, port);
+            //A channel so that files can be sent with transferTo
+            socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            //Bulk data, behind the control connection where routers care
+            socket.setTrafficClass(0x08);
             socket.setSoTimeout(10000);
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream());
+            //The header stays in the buffer until the first data goes out with it
+            bout = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
             state = State.AUTHING;
             String command;
             String[] split;
-            out.println("PROJICAST TRANSFER");
-            out.flush();
+            writeLine("PROJICAST TRANSFER");
+            bout.flush();
             command = in.readLine();
             split = command.split(" ");
             if((split.length == 4) && split[0].equals("PROJICAST") && split[1].equals("TRANSFER") && split[2].equals("AUTH"))
             {
                 String auth = Security.digest(password + split[3]);
-                out.println("AUTH " + auth);
-                out.flush();
+                writeLine("AUTH " + auth);
             }
             else
             {
                 close();
                 throw new MalformedAnswerException("Unexpected answer: " + command);
             }
-            command = in.readLine();
-            if(!command.equals("AUTH OK"))
-            {
-                close();
-                split = command.split(" ");
-                if(split[0].equals("ERROR"))
-                {
-                    throw new InvalidAuthException("Wrong password!");
-                }
-                else
-                {
-                    throw new MalformedAnswerException("Unexpected answer: " + command);
-                }
-            }
             String strType = null;
             switch(type)
             {
@@ -121,36 +315,376 @@ public class ProjiCastOutputStream extends OutputStream
                     strType = "IMAGE";
                     break;
             }
-            out.println("FILE " + strType + " " + size + " " + URLEncoder.encode(name, "UTF-8"));
-            out.flush();
-            command = in.readLine();
-            if(!command.equals("FILE OK"))
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                throw new IOException("SHA-256 not supported");
+            }
+            String header = (archiveFormat != null)
+                ? "ARCHIVE " + strType + " " + size + " " + archiveFormat + (archivePlaylist ? " PLAYLIST" : "")
+                : "FILE " + strType + " " + size + " " + URLEncoder.encode(name, "UTF-8");
+            if(contentHash != null)
+            {
+                writeLine("HAVE " + header.substring(5) + " " + contentHash);
+                bout.flush();
+                try
+                {
+                    expect("AUTH OK");
+                    command = in.readLine();
+                    if("HAVE OK".equals(command))
+                    {
+                        linked = true;
+                    }
+                    else if(!"HAVE NO".equals(command))
+                    {
+                        throw new MalformedAnswerException("Unexpected answer: " + command);
+                    }
+                }
+                catch(ProjiCastException e)
+                {
+                    close();
+                    throw e;
+                }
+                state = State.FINISHED;
+                return;
+            }
+            writeLine("CHECK SHA-256");
+            if(blockSize > 0)
+            {
+                writeLine("DELTA " + strType + " " + fileSize + " " + URLEncoder.encode(name, "UTF-8")
+                        + " " + blockSize + " " + size);
+            }
+            else if((contentID == null) || (archiveFormat != null))
+            {
+                writeLine(header);
+            }
+            else if(rangeStart >= 0)
             {
+                writeLine(header + " " + contentID + " RANGE " + rangeStart + " " + rangeLength);
+            }
+            else
+            {
+                //The data to send depends on the reply
+                writeLine(header + " " + contentID);
+                bout.flush();
+                try
+                {
+                    expect("AUTH OK");
+                    expect("CHECK OK");
+                }
+                catch(ProjiCastException e)
+                {
+                    close();
+                    throw e;
+                }
+                command = in.readLine();
+                split = command.split(" ");
+                if((split.length != 3) || !split[0].equals("FILE") || !split[1].equals("OK"))
+                {
+                    close();
                     throw new MalformedAnswerException("Unexpected answer: " + command);
+                }
+                offset = Long.parseLong(split[2]);
+                repliesChecked = true;
             }
-            bout = socket.getOutputStream();
             state = State.READY_TO_SEND;
         }
         catch(NullPointerException e)
         {
             throw new MalformedAnswerException("Null read from stream.");
         }
+        catch(NumberFormatException e)
+        {
+            close();
+            throw new MalformedAnswerException("Unexpected answer, invalid integer.");
+        }
+    }
+    
+    /**
+     * Returns how much of the file the server already has. The data written to this
+     * stream is the data following it.
+     * 
+     * @return the offset in the file to continue from, 0 unless resuming
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+    
+    /**
+     * Writes a header line. The terminator is always "\n", so that nothing of it
+     * can be mistaken for data.
+     */
+    private void writeLine(String line) throws IOException
+    {
+        bout.write((line + "\n").getBytes("UTF-8"));
     }
     
     public void write(int b) throws IOException
     {
+        try
+        {
             bout.write(b);
+            digest.update((byte)b);
+            count++;
+        }
+        catch(IOException e)
+        {
+            throw refused(e);
+        }
     }
     
     public void write(byte[] buf, int off,int len) throws IOException
     {
-        bout.write(buf, off, len);
+        try
+        {
+            bout.write(buf, off, len);
+            digest.update(buf, off, len);
+            count += len;
+        }
+        catch(IOException e)
+        {
+            throw refused(e);
+        }
+    }
+    
+    /**
+     * Sends data straight from a file. The kernel copies it to the connection a
+     * chunk of 4 MB at a time, and each chunk is then read once more through a
+     * small buffer to be hashed, while still in the page cache.
+     * 
+     * @param src       the file to send from
+     * @param position  the position in the file to start at
+     * @param length    the number of bytes to send
+     * 
+     * @throws IOException  if the file ended early or the data could not be sent
+     */
+    public void transferFrom(FileChannel src, long position, long length) throws IOException
+    {
+        SocketChannel sc = socket.getChannel();
+        long end = position + length;
+        while(position < end)
+        {
+            long chunkEnd = Math.min(end, position + CHUNK_SIZE);
+            long sent = position;
+            while(sent < chunkEnd)
+            {
+                long n;
+                try
+                {
+                    bout.flush();
+                    n = src.transferTo(sent, chunkEnd - sent, sc);
+                }
+                catch(IOException e)
+                {
+                    throw refused(e);
+                }
+                if(n <= 0)
+                {
+                    if(sent >= src.size())
+                    {
+                        throw new IOException("File ended early");
+                    }
+                    continue;
+                }
+                sent += n;
+                count += n;
+            }
+            hash(src, position, chunkEnd);
+            position = chunkEnd;
+        }
+    }
+    
+    /**
+     * Hashes a part of a file that has been sent.
+     */
+    private void hash(FileChannel src, long position, long end) throws IOException
+    {
+        if(hashBuffer == null)
+        {
+            hashBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        while(position < end)
+        {
+            hashBuffer.clear();
+            hashBuffer.limit((int)Math.min(hashBuffer.capacity(), end - position));
+            int n = src.read(hashBuffer, position);
+            if(n < 0)
+            {
+                throw new IOException("File ended early");
+            }
+            digest.update(hashBuffer.array(), 0, n);
+            position += n;
+        }
+    }
+    
+    /**
+     * Sends what is left and checks that the server accepted the login and the file,
+     * and that it received the file undamaged if all of it has been written.
+     * 
+     * @throws InvalidAuthException      if the password is wrong
+     * @throws MalformedAnswerException  if the server refused the file or replied something unexpected
+     */
+    public void finish() throws IOException,ProjiCastException
+    {
+        if(state != State.READY_TO_SEND)
+        {
+            throw new IllegalStateException("Must be ready to send");
+        }
+        state = State.FINISHED;
+        //Only the data of an upload not broken off is checked
+        long length = (rangeStart >= 0) ? rangeLength : (size - offset);
+        boolean complete = (count == length);
+        try
+        {
+            if(complete)
+            {
+                //Of the file the delta makes, not of the delta
+                writeLine("DIGEST " + ((fileHash != null) ? fileHash : toHex(digest.digest())));
+            }
+            bout.flush();
+        }
+        catch(IOException e)
+        {
+            throw refused(e);
+        }
+        if(!repliesChecked)
+        {
+            expect("AUTH OK");
+            expect("CHECK OK");
+            expect((archiveFormat != null) ? "ARCHIVE OK" : (blockSize > 0) ? "DELTA OK" : "FILE OK");
+        }
+        if(!complete)
+        {
+            return;
+        }
+        String command = in.readLine();
+        if((command != null) && command.startsWith("ERROR "))
+        {
+            //Damaged on the way, worth sending again
+            throw new IOException("Server refused the file: " + command.substring(6));
+        }
+        if(!"DIGEST OK".equals(command))
+        {
+            throw new MalformedAnswerException("Unexpected answer: " + command);
+        }
+        if(archiveFormat != null)
+        {
+            //Once its files have been extracted and stored
+            command = in.readLine();
+            if((command != null) && command.startsWith("ERROR "))
+            {
+                throw new IOException("Server refused the archive: " + command.substring(6));
+            }
+            if((command == null) || !command.startsWith("ARCHIVE DONE "))
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+            try
+            {
+                fileCount = Integer.parseInt(command.substring(13));
+            }
+            catch(NumberFormatException e)
+            {
+                throw new MalformedAnswerException("Unexpected answer, invalid integer.");
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of files the server extracted from an archive, once
+     * {@link #finish()} has returned.
+     * 
+     * @return the number of files, or -1 if not known
+     */
+    public int getFileCount()
+    {
+        return fileCount;
+    }
+    
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer();
+        for(byte b : bytes)
+        {
+            String hex = Integer.toHexString(0xFF & b);
+            if(hex.length() < 2)
+            {
+                sb.append("0");
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Reads a reply to the login or the header.
+     */
+    private void expect(String expected) throws IOException,ProjiCastException
+    {
+        String command = in.readLine();
+        if(command == null)
+        {
+            throw new MalformedAnswerException("Null read from stream.");
+        }
+        if(!command.equals(expected))
+        {
+            if(command.equals("ERROR Invalid auth"))
+            {
+                throw new InvalidAuthException("Wrong password!");
+            }
+            throw new MalformedAnswerException("Unexpected answer: " + command);
+        }
+    }
+    
+    /**
+     * Looks for the reason the server stopped taking data. Since the replies are not
+     * waited for, a refused login or file only shows as a failed write.
+     * 
+     * @return an exception telling the reason, or the specified one if there is none
+     */
+    private IOException refused(IOException e)
+    {
+        try
+        {
+            String command;
+            while((command = in.readLine()) != null)
+            {
+                if(command.startsWith("ERROR "))
+                {
+                    return new IOException("Server refused the file: " + command.substring(6));
+                }
+            }
+        }
+        catch(IOException e2)
+        {
+            //The connection was reset before the reply could be read
+        }
+        return e;
     }
     
     public void close() throws IOException
     {
-            out.close();
+        try
+        {
+            //Unread replies would make closing reset the connection and lose data
+            if(state == State.READY_TO_SEND)
+            {
+                finish();
+            }
+        }
+        catch(ProjiCastException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        finally
+        {
+            state = State.DEAD;
             in.close();
             socket.close();
+        }
     }
 }
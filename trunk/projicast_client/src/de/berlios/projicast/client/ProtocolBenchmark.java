@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URLEncoder;
+import java.util.List;
+
+
+/**
+ * Compares the text and binary protocols on a large file list: the number of bytes
+ * the server sends and the time the Client takes to parse them.
+ * <p>
+ * Usage: ProtocolBenchmark [entries [rounds]]
+ */
+public class ProtocolBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        
+        byte[] text = textListing(entries);
+        byte[] binary = binaryListing(entries);
+        System.out.println(entries + " entries");
+        System.out.println("text:   " + text.length + " bytes");
+        System.out.println("binary: " + binary.length + " bytes ("
+                + (100 * binary.length / text.length) + "% of text)");
+        
+        //The first rounds warm up the JIT
+        for(int i = 0; i < rounds; i++)
+        {
+            parse(false, text, entries);
+            parse(true, binary, entries);
+        }
+        long textTime = 0;
+        long binaryTime = 0;
+        for(int i = 0; i < rounds; i++)
+        {
+            textTime += parse(false, text, entries);
+            binaryTime += parse(true, binary, entries);
+        }
+        System.out.println("text parse:   " + (textTime / rounds / 1000) + " us");
+        System.out.println("binary parse: " + (binaryTime / rounds / 1000) + " us");
+    }
+    
+    /**
+     * Returns the name of a file in the test listing.
+     */
+    private static String name(int i)
+    {
+        return "Gemeindefest " + (2000 + i % 7) + "/Bild " + i + (((i % 3) == 0) ? ".avi" : ".jpg");
+    }
+    
+    /**
+     * Builds a listing as the server sends it in the text protocol.
+     */
+    private static byte[] textListing(int entries) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintWriter out = new PrintWriter(bytes);
+        out.println("SYNC FULL 000000000000 1");
+        out.println("LIST BEGIN");
+        for(int i = 0; i < entries; i++)
+        {
+            out.println((((i % 3) == 0) ? "VIDEO " : "IMAGE ") + i + " " + URLEncoder.encode(name(i), "UTF-8"));
+        }
+        for(int i = 1; i < entries; i += 30)
+        {
+            out.println("PLIST " + i);
+        }
+        out.println("LIST END");
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Builds a listing as the server sends it in the binary protocol.
+     */
+    private static byte[] binaryListing(int entries) throws Exception
+    {
+        BinaryProtocol.FrameWriter frames = new BinaryProtocol.FrameWriter();
+        frames.begin(BinaryProtocol.SYNC_FULL).putVarLong(0).putString("000000000000").putVarLong(1).end();
+        for(int i = 0; i < entries; i++)
+        {
+            byte type = ((i % 3) == 0) ? BinaryProtocol.TYPE_VIDEO : BinaryProtocol.TYPE_IMAGE;
+            frames.begin(BinaryProtocol.FILE).put(type).putVarLong(i).putString(name(i)).end();
+        }
+        frames.begin(BinaryProtocol.PLAYLIST).putVarLong((entries + 28) / 30);
+        for(int i = 1; i < entries; i += 30)
+        {
+            frames.putVarLong(i);
+        }
+        frames.end();
+        frames.begin(BinaryProtocol.SYNC_END).end();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        frames.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Parses a listing with the codec of the Client and checks all entries arrived.
+     * 
+     * @return the time taken in nanoseconds
+     */
+    private static long parse(boolean binary, byte[] data, int entries) throws Exception
+    {
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+        OutputStream output = new ByteArrayOutputStream();
+        ClientCodec codec = binary ? new BinaryClientCodec(input, output) : new TextClientCodec(input, output);
+        CountingHandler handler = new CountingHandler();
+        long start = System.nanoTime();
+        codec.read(handler);
+        long time = System.nanoTime() - start;
+        if((handler.files != entries) || !handler.done)
+        {
+            throw new IllegalStateException("Listing not parsed");
+        }
+        return time;
+    }
+    
+    /**
+     * Handler only counting what it is given.
+     */
+    private static class CountingHandler implements ClientCodec.Handler
+    {
+        int files;
+        boolean done;
+        
+        public void reply(int id, String reply)
+        {
+        }
+        
+        public void beginSync(boolean full)
+        {
+        }
+        
+        public void putFile(ServerFile file)
+        {
+            files++;
+        }
+        
+        public void removeFile(ServerFile.Type type, int id)
+        {
+        }
+        
+        public void setPlaylist(List<Integer> ids)
+        {
+        }
+        
+        public void endSync(int id, boolean event, String reply, String epoch, long version)
+        {
+            done = true;
+        }
+        
+        public void playerState(String state)
+        {
+        }
+        
+        public void uploaded(ServerFile.Type type, String filename)
+        {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+
+/**
+ * The weak checksum of a block of data as rsync computes it, which can be moved
+ * along the data a byte at a time: the sum of the bytes and the sum of the partial
+ * sums, each modulo 2^16, in the low and high half.
+ */
+public class RollingChecksum
+{
+    private int length;
+    private int a;
+    private int b;
+    
+    /**
+     * Computes the checksum of a block, starting over.
+     * 
+     * @param buf  the buffer holding the block
+     * @param off  the start of the block
+     * @param len  the length of the block
+     */
+    public void reset(byte[] buf, int off, int len)
+    {
+        length = len;
+        a = 0;
+        b = 0;
+        for(int i = 0; i < len; i++)
+        {
+            int x = buf[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+    }
+    
+    /**
+     * Moves the block one byte on.
+     * 
+     * @param out  the byte leaving the block at its start
+     * @param in   the byte entering the block at its end
+     */
+    public void roll(byte out, byte in)
+    {
+        int x = out & 0xFF;
+        a += (in & 0xFF) - x;
+        b += a - length * x;
+    }
+    
+    /**
+     * @return Returns the checksum of the block.
+     */
+    public int getValue()
+    {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
@@ -19,7 +19,11 @@
 
 package de.berlios.projicast.client;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Random;
 
 /**
@@ -65,6 +69,65 @@ public class Security
 		return sb.toString();
 	}
     
+    /**
+     * Calculates the SHA-256 hash of the content of a file.
+     * 
+     * @param file  the file to hash
+     * 
+     * @return the hash in lower case hex
+     * 
+     * @throws IOException  if the file could not be read
+     */
+    public static String hash(File file) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-256 not supported");
+        }
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buf = new byte[256 * 1024];
+            int n;
+            while((n = in.read(buf)) != -1)
+            {
+                digest.update(buf, 0, n);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+    
+    /**
+     * Formats bytes as lower case hex.
+     * 
+     * @param bytes  the bytes to format
+     * 
+     * @return the bytes in hex
+     */
+    static String toHex(byte[] bytes)
+    {
+        StringBuffer sb = new StringBuffer();
+        for(byte b : bytes)
+        {
+            String hex = Integer.toHexString(0xFF & b);
+            if(hex.length() < 2)
+            {
+                sb.append("0");
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+    
     /**
      * Generates a random string.
      *
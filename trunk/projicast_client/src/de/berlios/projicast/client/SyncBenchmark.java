@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ * Times a {@link FolderSync} of a folder of many small files: the first sync sending
+ * all of them, a sync with nothing to do, one after a percent of the files have
+ * been changed, added and deleted each, and one after a tenth of them have been
+ * renamed. Needs a running server with no images.
+ * <p>
+ * Usage: SyncBenchmark host port password [files [bytes]]
+ */
+public class SyncBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3)
+        {
+            System.err.println("Usage: SyncBenchmark host port password [files [bytes]]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String password = args[2];
+        int files = (args.length > 3) ? Integer.parseInt(args[3]) : 50000;
+        int size = (args.length > 4) ? Integer.parseInt(args[4]) : 1024;
+        
+        File folder = File.createTempFile("projicast", "");
+        folder.delete();
+        folder.mkdir();
+        Random random = new Random(1);
+        for(int i = 0; i < files; i++)
+        {
+            write(new File(folder, "file" + i + ".jpg"), size, random);
+        }
+        System.out.println(files + " files of " + size + " bytes");
+        
+        sync("first sync     ", host, port, password, folder);
+        sync("nothing to do  ", host, port, password, folder);
+        sync("nothing to do  ", host, port, password, folder);
+        int changes = Math.max(1, files / 100);
+        for(int i = 0; i < changes; i++)
+        {
+            write(new File(folder, "file" + (i * 100) + ".jpg"), size, random);
+            write(new File(folder, "new" + i + ".jpg"), size, random);
+            new File(folder, "file" + (i * 100 + 1) + ".jpg").delete();
+        }
+        sync("1% changed     ", host, port, password, folder);
+        sync("nothing to do  ", host, port, password, folder);
+        for(int i = 0; i < files; i += 10)
+        {
+            new File(folder, "file" + (i + 2) + ".jpg").renameTo(new File(folder, "renamed" + i + ".jpg"));
+        }
+        sync("10% renamed    ", host, port, password, folder);
+        
+        for(File file : folder.listFiles())
+        {
+            file.delete();
+        }
+        folder.delete();
+    }
+    
+    private static void write(File file, int size, Random random) throws IOException
+    {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.write(data);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static void sync(String name, String host, int port, String password, File folder) throws Exception
+    {
+        long start = System.nanoTime();
+        FolderSync sync = new FolderSync(host, port, password, folder, ServerFile.Type.IMAGE);
+        sync.start();
+        while(!sync.waitFor(1000)) {}
+        long time = System.nanoTime() - start;
+        System.out.println(name + ": " + (time / 1000000) + " ms, " + sync.getUploaded().size() + " sent, "
+                + sync.getRemoved().size() + " deleted, " + sync.getFailed().size() + " failed");
+    }
+}
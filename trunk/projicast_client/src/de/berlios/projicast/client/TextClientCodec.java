@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * ClientCodec for the line based text protocol.
+ */
+class TextClientCodec implements ClientCodec
+{
+    private BufferedReader in;
+    private PrintWriter out;
+    
+    /**
+     * Constructs a new TextClientCodec.
+     * 
+     * @param input   the stream to read from
+     * @param output  the stream to write to
+     */
+    public TextClientCodec(InputStream input, OutputStream output)
+    {
+        in = new BufferedReader(new InputStreamReader(input));
+        out = new PrintWriter(new OutputStreamWriter(output));
+    }
+    
+    public boolean isBinary()
+    {
+        return false;
+    }
+    
+    private void command(int id, String command)
+    {
+        if(id != 0)
+        {
+            out.print("#" + id + " ");
+        }
+        out.println(command);
+    }
+    
+    public void refresh(int id, String epoch, long version)
+    {
+        command(id, (epoch == null) ? "REFRESH" : ("REFRESH " + epoch + " " + version));
+    }
+    
+    public void subscribe(int id, String epoch, long version)
+    {
+        command(id, "SUBSCRIBE " + epoch + " " + version);
+    }
+    
+    public void slideshow(int id)
+    {
+        command(id, "SLIDESHOW");
+    }
+    
+    public void stop(int id)
+    {
+        command(id, "STOP");
+    }
+    
+    public void limit(int id, long rate)
+    {
+        command(id, "LIMIT " + rate);
+    }
+    
+    public void play(int id, int fileID)
+    {
+        command(id, "PLAY " + fileID);
+    }
+    
+    public void image(int id, int fileID)
+    {
+        command(id, "IMAGE " + fileID);
+    }
+    
+    public void text(int id, String text) throws IOException
+    {
+        command(id, "TEXT " + URLEncoder.encode(text, "UTF-8"));
+    }
+    
+    public void delete(int id, ServerFile.Type type, int fileID)
+    {
+        command(id, "DELETE " + type + " " + fileID);
+    }
+    
+    public void playlist(int beginID, int endID, List<ServerFile> files)
+    {
+        command(beginID, "PLIST BEGIN");
+        for(ServerFile file : files)
+        {
+            out.println("PLIST " + file.getID());
+        }
+        command(endID, "PLIST END");
+    }
+    
+    public void flush()
+    {
+        out.flush();
+    }
+    
+    public boolean read(Handler handler) throws ProjiCastException, IOException
+    {
+        String line = in.readLine();
+        if(line == null)
+        {
+            return false;
+        }
+        
+        try
+        {
+            int id = 0;
+            if(line.startsWith("#"))
+            {
+                int pos = line.indexOf(' ');
+                id = Integer.parseInt(line.substring(1, pos));
+                line = line.substring(pos + 1);
+            }
+            boolean event = false;
+            if(line.startsWith("EVENT "))
+            {
+                event = true;
+                line = line.substring(6);
+            }
+            
+            String[] split = line.split(" ");
+            if((split.length == 4) && split[0].equals("SYNC"))
+            {
+                if(split[1].equals("FULL"))
+                {
+                    String command = in.readLine();
+                    if(!"LIST BEGIN".equals(command))
+                    {
+                        throw new MalformedAnswerException("Unexpected answer: " + command);
+                    }
+                    readFullList(handler);
+                }
+                else if(split[1].equals("DELTA"))
+                {
+                    readDelta(handler);
+                }
+                else
+                {
+                    throw new MalformedAnswerException("Unexpected answer: " + line);
+                }
+                handler.endSync(id, event, line, split[2], Long.parseLong(split[3]));
+            }
+            else if(line.equals("LIST BEGIN"))
+            {
+                readFullList(handler);
+                handler.endSync(id, event, line, null, 0);
+            }
+            else if(event)
+            {
+                if((split.length == 2) && split[0].equals("PLAYER"))
+                {
+                    handler.playerState(split[1]);
+                }
+                else if((split.length == 3) && split[0].equals("UPLOAD"))
+                {
+                    handler.uploaded(typeFor(split[1], line), URLDecoder.decode(split[2], "UTF-8"));
+                }
+                //Unknown events are ignored so that newer servers can add more
+            }
+            else
+            {
+                handler.reply(id, line);
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            throw new MalformedAnswerException("Invalid integers in command: " + line);
+        }
+        return true;
+    }
+    
+    /**
+     * Reads a whole file list up to "LIST END".
+     */
+    private void readFullList(Handler handler) throws ProjiCastException, IOException
+    {
+        handler.beginSync(true);
+        List<Integer> playlist = new ArrayList<Integer>();
+        for(;;)
+        {
+            String command = readLine();
+            String[] split = command.split(" ");
+            if(split.length == 3)
+            {
+                putFile(handler, split, command);
+            }
+            else if((split.length == 2) && split[0].equals("PLIST"))
+            {
+                playlist.add(Integer.valueOf(split[1]));
+            }
+            else if(command.equals("LIST END"))
+            {
+                break;
+            }
+            else
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+        }
+        handler.setPlaylist(playlist);
+    }
+    
+    /**
+     * Reads the changes to the file list up to "SYNC END".
+     */
+    private void readDelta(Handler handler) throws ProjiCastException, IOException
+    {
+        handler.beginSync(false);
+        List<Integer> playlist = null;
+        for(;;)
+        {
+            String command = readLine();
+            String[] split = command.split(" ");
+            if(split.length == 3)
+            {
+                if(split[0].equals("REMOVE"))
+                {
+                    handler.removeFile(typeFor(split[1], command), Integer.parseInt(split[2]));
+                }
+                else
+                {
+                    putFile(handler, split, command);
+                }
+            }
+            else if((split.length == 4) && split[0].equals("RENAME"))
+            {
+                putFile(handler, new String[] { split[1], split[2], split[3] }, command);
+            }
+            else if(command.equals("PLIST RESET"))
+            {
+                playlist = new ArrayList<Integer>();
+            }
+            else if((split.length == 2) && split[0].equals("PLIST") && (playlist != null))
+            {
+                playlist.add(Integer.valueOf(split[1]));
+            }
+            else if(command.equals("SYNC END"))
+            {
+                break;
+            }
+            else
+            {
+                throw new MalformedAnswerException("Unexpected answer: " + command);
+            }
+        }
+        if(playlist != null)
+        {
+            handler.setPlaylist(playlist);
+        }
+    }
+    
+    /**
+     * Reads a line belonging to a file list.
+     */
+    private String readLine() throws ProjiCastException, IOException
+    {
+        String command = in.readLine();
+        if(command == null)
+        {
+            throw new MalformedAnswerException("File list cut off");
+        }
+        return command;
+    }
+    
+    /**
+     * Passes on a file from a "&lt;type&gt; &lt;id&gt; &lt;name&gt;" line.
+     */
+    private void putFile(Handler handler, String[] split, String command) throws ProjiCastException, IOException
+    {
+        ServerFile.Type type = typeFor(split[0], command);
+        handler.putFile(new ServerFile(URLDecoder.decode(split[2], "UTF-8"), type, Integer.parseInt(split[1])));
+    }
+    
+    private static ServerFile.Type typeFor(String type, String command) throws ProjiCastException
+    {
+        if(type.equals("VIDEO"))
+        {
+            return ServerFile.Type.VIDEO;
+        }
+        else if(type.equals("IMAGE"))
+        {
+            return ServerFile.Type.IMAGE;
+        }
+        throw new MalformedAnswerException("Unexpected answer: " + command);
+    }
+    
+    public void close() throws IOException
+    {
+        in.close();
+        out.close();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+
+/**
+ * Compares sending a file by reading it into a buffer and writing that to the stream
+ * with sending it by {@link ProjiCastOutputStream#transferFrom}. Needs a running
+ * server, over loopback to measure the client rather than the network. Prints the
+ * throughput and the CPU time the client spent.
+ * <p>
+ * Usage: UploadBenchmark host port password [megabytes [rounds]]
+ */
+public class UploadBenchmark
+{
+    private static final int BUFFER_SIZE = 8 * 4096;
+    private static final long CHUNK_SIZE = 4 * 1024 * 1024;
+    
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 3)
+        {
+            System.err.println("Usage: UploadBenchmark host port password [megabytes [rounds]]");
+            System.exit(1);
+        }
+        String host = args[0];
+        int port = Integer.parseInt(args[1]);
+        String password = args[2];
+        long size = ((args.length > 3) ? Long.parseLong(args[3]) : 4096) * 1024 * 1024;
+        int rounds = (args.length > 4) ? Integer.parseInt(args[4]) : 2;
+        
+        File file = File.createTempFile("projicast", ".bin");
+        file.deleteOnExit();
+        createFile(file, size);
+        System.out.println((size / 1024 / 1024) + " MB, " + rounds + " rounds each");
+        
+        for(int i = 0; i < rounds; i++)
+        {
+            report("stream loop", size, send(host, port, password, file, false));
+            report("transferTo ", size, send(host, port, password, file, true));
+        }
+        file.delete();
+    }
+    
+    /**
+     * Fills a file with random data.
+     */
+    private static void createFile(File file, long size) throws Exception
+    {
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            for(long written = 0; written < size; written += block.length)
+            {
+                out.write(block, 0, (int)Math.min(block.length, size - written));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * Sends the file once.
+     * 
+     * @return the wall time and the CPU time taken in nanoseconds
+     */
+    private static long[] send(String host, int port, String password, File file, boolean transfer)
+        throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long size = file.length();
+        long start = System.nanoTime();
+        long cpu = threads.getCurrentThreadCpuTime();
+        ProjiCastOutputStream out = new ProjiCastOutputStream(
+                host, port, "upload-benchmark.bin", size, ServerFile.Type.VIDEO, password);
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            if(transfer)
+            {
+                for(long written = 0; written < size; written += CHUNK_SIZE)
+                {
+                    out.transferFrom(in.getChannel(), written, Math.min(CHUNK_SIZE, size - written));
+                }
+            }
+            else
+            {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while((n = in.read(buf)) != -1)
+                {
+                    out.write(buf, 0, n);
+                }
+            }
+            //Returns once the server has received and checked everything
+            out.finish();
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        return new long[] { System.nanoTime() - start, threads.getCurrentThreadCpuTime() - cpu };
+    }
+    
+    private static void report(String name, long size, long[] times)
+    {
+        double seconds = times[0] / 1e9;
+        System.out.println(name + ": " + (long)((size / 1024 / 1024) / seconds) + " MB/s, "
+                + (times[1] / 1000000) + " ms client CPU");
+    }
+}
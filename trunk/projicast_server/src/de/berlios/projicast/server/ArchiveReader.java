@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+/**
+ * Reads the regular files of a zip or tar archive one after the other from a stream,
+ * as the archive arrives. Directories, links and other entries are skipped.
+ * <p>
+ * The data of the current entry is read with {@link #read(byte[], int, int)}, which
+ * returns -1 at its end.
+ */
+public class ArchiveReader
+{
+    public enum Format { ZIP, TAR }
+    
+    private static final int BLOCK_SIZE = 512;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private InputStream in;
+    private ZipInputStream zip;
+    
+    //The tar entry being read, with the padding after it
+    private long left = 0;
+    private long padding = 0;
+    private byte[] header = new byte[BLOCK_SIZE];
+    
+    /**
+     * Constructs a new ArchiveReader.
+     * 
+     * @param in      the stream of the archive
+     * @param format  the format of the archive
+     */
+    public ArchiveReader(InputStream in, Format format)
+    {
+        this.in = in;
+        if(format == Format.ZIP)
+        {
+            zip = new ZipInputStream(in, UTF8);
+        }
+    }
+    
+    /**
+     * Moves to the next regular file in the archive.
+     * 
+     * @return the path of the file in the archive, or <i>null</i> at the end of the archive
+     * 
+     * @throws IOException  if the archive could not be read or is damaged
+     */
+    public String nextEntry() throws IOException
+    {
+        if(zip != null)
+        {
+            ZipEntry entry;
+            while((entry = zip.getNextEntry()) != null)
+            {
+                if(!entry.isDirectory())
+                {
+                    return entry.getName();
+                }
+            }
+            return null;
+        }
+        String longName = null;
+        while(true)
+        {
+            skip(left + padding);
+            readFully(header, 0, BLOCK_SIZE);
+            if(header[0] == 0)
+            {
+                //The end of the archive is marked by empty blocks
+                return null;
+            }
+            long size = parseOctal(header, 124, 12);
+            left = size;
+            padding = (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+            byte flag = header[156];
+            if(flag == 'L')
+            {
+                //GNU long name, the name of the entry following
+                if(size > 64 * 1024)
+                {
+                    throw new IOException("Name too long");
+                }
+                byte[] name = new byte[(int)size];
+                readFully(name, 0, name.length);
+                left = 0;
+                longName = string(name, 0, name.length);
+                continue;
+            }
+            if((flag != '0') && (flag != 0))
+            {
+                longName = null;
+                continue;
+            }
+            if(longName != null)
+            {
+                return longName;
+            }
+            String name = string(header, 0, 100);
+            if((header[257] == 'u') && (header[258] == 's') && (header[259] == 't')
+                    && (header[260] == 'a') && (header[261] == 'r'))
+            {
+                //ustar splits long names into a prefix and the name
+                String prefix = string(header, 345, 155);
+                if(prefix.length() > 0)
+                {
+                    name = prefix + "/" + name;
+                }
+            }
+            return name;
+        }
+    }
+    
+    /**
+     * Reads data of the current file.
+     * 
+     * @return the number of bytes read, or -1 at the end of the file
+     */
+    public int read(byte[] buf, int off, int len) throws IOException
+    {
+        if(zip != null)
+        {
+            return zip.read(buf, off, len);
+        }
+        if(left == 0)
+        {
+            return -1;
+        }
+        int n = in.read(buf, off, (int)Math.min(len, left));
+        if(n == -1)
+        {
+            throw new EOFException("Archive ended early");
+        }
+        left -= n;
+        return n;
+    }
+    
+    private void readFully(byte[] buf, int off, int len) throws IOException
+    {
+        while(len > 0)
+        {
+            int n = in.read(buf, off, len);
+            if(n == -1)
+            {
+                throw new EOFException("Archive ended early");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+    
+    private void skip(long n) throws IOException
+    {
+        while(n > 0)
+        {
+            int count = in.read(header, 0, (int)Math.min(n, BLOCK_SIZE));
+            if(count == -1)
+            {
+                throw new EOFException("Archive ended early");
+            }
+            n -= count;
+        }
+        left = 0;
+        padding = 0;
+    }
+    
+    private static long parseOctal(byte[] buf, int off, int len) throws IOException
+    {
+        long value = 0;
+        for(int i = off; i < (off + len); i++)
+        {
+            byte b = buf[i];
+            if((b == 0) || (b == ' '))
+            {
+                if(value > 0)
+                {
+                    break;
+                }
+                continue;
+            }
+            if((b < '0') || (b > '7'))
+            {
+                throw new IOException("Invalid tar header");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+    
+    private static String string(byte[] buf, int off, int len)
+    {
+        int end = off;
+        while((end < (off + len)) && (buf[end] != 0))
+        {
+            end++;
+        }
+        return new String(buf, off, end - off, UTF8);
+    }
+}
@@ -20,59 +20,160 @@
 package de.berlios.projicast.server;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
 
 
 /**
  * Provides some useful methods for writing an InputHandler.
+ * <p>
+ * Output is never written directly. It is copied into pooled buffers and queued.
+ * On the reactor thread the queue is written as far as the channel accepts without
+ * blocking; output queued from other threads is left to the reactor. Whatever is
+ * left is written when the reactor reports the channel writable. While more than
+ * {@link #HIGH_WATER} bytes are queued, no more input is read from the client.
+ * <p>
+ * Input is read into a buffer leased from the pool which the handler keeps for its
+ * lifetime, so bytes not consumed by {@link #input(ByteBuffer)} stay in front of
+ * the next data read. The buffer grows to the next size class of the pool when a
+ * single line does not fit.
+ * <p>
+ * A channel taken away from the reactor by {@link #detach}, or served by a thread
+ * of its own from the start, see {@link #serve()}, is owned by the thread
+ * then serving it. It stays non-blocking and is waited on with a selector of that
+ * thread's own, so output queued by other threads is written by the owner as the
+ * channel accepts it and never blocks the thread queueing it. With an idle timeout
+ * set, the owner gives up on a channel on which nothing moves for that long while
+ * the handler has no work of its own pending, see {@link #hasPendingWork()}.
  */
 public abstract class BasicInputHandler implements InputHandler
 {
+    /**
+     * Amount of queued output at which reading from the client is suspended.
+     */
+    public static final int HIGH_WATER = 256 * 1024;
+    
+    /**
+     * Amount of queued output at which reading from the client is resumed.
+     */
+    public static final int LOW_WATER = 64 * 1024;
+    
+    /**
+     * The maximum length of a line received from the client.
+     */
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+    
+    /**
+     * The size of the buffers queued output is copied into.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    
     protected SocketChannel ch;
-    private CharsetDecoder decoder;
     private CharsetEncoder encoder;
-    private ByteBuffer obuf;  
-    protected StringBuffer buf;
+    private LineFramer framer;
+    
+    protected BufferPool pool;
+    private ByteBuffer readBuf;
+    private int readSize;
+    private ArrayDeque<ByteBuffer> outQueue;
+    private long queued = 0;
+    private boolean readSuspended = false;
+    private boolean inputPaused = false;
+    private boolean reinput = false;
+    private Reactor reactor;
+    private SelectionKey key;
+    private Thread owner;
+    private Selector selector;
+    private SelectionKey ownKey;
+    private long idleTimeout = 0;
+    private long moved = 0;
     
     /**
      * Constructs a new BasicInputHandler for reading writing to the specified SocketChannel
      * using the specified decoders and encoders.
+     * 
+     * @param ch       the channel to read from and write to
+     * @param decoder  the decoder for incoming characters
+     * @param encoder  the encoder for outgoing characters
+     * @param pool     the pool to take buffers from
+     * @param readSize   the initial size of the read buffer
      */
-    protected BasicInputHandler(SocketChannel ch, CharsetDecoder decoder, CharsetEncoder encoder)
+    protected BasicInputHandler(SocketChannel ch, CharsetDecoder decoder, CharsetEncoder encoder,
+            BufferPool pool, int readSize)
     {
         this.ch = ch;
-        this.decoder = decoder;
         this.encoder = encoder;
+        this.pool = pool;
         decoder.onMalformedInput(CodingErrorAction.REPORT);
         decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
         decoder.replaceWith(" ");
-        buf = new StringBuffer();
+        framer = new LineFramer(decoder, MAX_LINE_LENGTH);
+        outQueue = new ArrayDeque<ByteBuffer>();
+        this.readSize = readSize;
+        readBuf = pool.lease(readSize);
     }
     
     abstract public void input(ByteBuffer ibuf);
     
-    /**
-     * Inputs data in to the character buffer for command assembly.
-     *
-     * @param ibuf  the data to insert
-     */
-    protected void cInput(ByteBuffer ibuf) throws CharacterCodingException
+    public synchronized void attach(Reactor reactor, SelectionKey key)
     {
-        buf.append(decoder.decode(ibuf));
+        this.reactor = reactor;
+        this.key = key;
+        updateInterest();
+    }
+    
+    public void output()
+    {
+        flush();
+    }
+    
+    public synchronized ByteBuffer getReadBuffer()
+    {
+        if(readBuf == null)
+        {
+            readBuf = pool.lease(readSize);
+        }
+        else if(!readBuf.hasRemaining())
+        {
+            //Full of unconsumed input, move it to a bigger buffer
+            ByteBuffer bigger = pool.lease(readBuf.capacity() + 1);
+            readBuf.flip();
+            bigger.put(readBuf);
+            pool.release(readBuf);
+            readBuf = bigger;
+        }
+        return readBuf;
+    }
+    
+    public synchronized void releaseBuffers()
+    {
+        if(readBuf != null)
+        {
+            pool.release(readBuf);
+            readBuf = null;
+        }
     }
     
     /**
-     * Writes a command to the socket channel.
+     * Writes a command to the socket channel. Replies may be written from other
+     * threads than the one reading, so the encoder is used under the lock.
      * 
      * @param command  the command to write
      */
-    protected void writeCommand(String command)
+    protected synchronized void writeCommand(String command)
     {
         //System.out.println("OUT: " + command);
         CharBuffer cbuf = CharBuffer.allocate(command.length() + 1);
@@ -81,56 +182,561 @@ public abstract class BasicInputHandler implements InputHandler
         cbuf.flip();
         try
         {
-            obuf = encoder.encode(cbuf);
-            int len = ch.write(obuf);
+            write(encoder.encode(cbuf));
         }
         catch(CharacterCodingException e)
         {
             System.err.println("Error while encoding characters: " + e.getMessage());
             close();
         }
-        catch (IOException e)
+    }
+    
+    /**
+     * Queues the remaining bytes of the specified buffer for writing and writes as
+     * much of the queue as possible without blocking. The buffer is copied, so the
+     * caller is free to reuse it.
+     * 
+     * @param data  the data to write
+     */
+    protected synchronized void write(ByteBuffer data)
+    {
+        if(!ch.isOpen())
         {
-            close();
+            return;
+        }
+        while(data.hasRemaining())
+        {
+            ByteBuffer last = outQueue.peekLast();
+            if((last == null) || last.isReadOnly() || (last.limit() == last.capacity()))
+            {
+                last = pool.lease(OUTPUT_BUFFER_SIZE);
+                last.limit(0);
+                outQueue.addLast(last);
+            }
+            //Append after the pending bytes of the last buffer
+            int pos = last.position();
+            last.position(last.limit());
+            last.limit(last.capacity());
+            int n = Math.min(last.remaining(), data.remaining());
+            int end = data.limit();
+            data.limit(data.position() + n);
+            last.put(data);
+            data.limit(end);
+            last.limit(last.position());
+            last.position(pos);
+            queued += n;
+            moved += n;
         }
+        flushOrSchedule();
     }
     
     /**
-     * Returns a complete line if there is one.
+     * Queues the specified read-only buffer for writing without copying it. Used for
+     * data shared between sessions; the buffer must not be changed by anyone while
+     * it is queued and is never returned to the pool.
      * 
-     * @return  a String containing a complete line, or <i>null</i> if none available
+     * @param data  a read-only buffer to write
      */
-    protected String getLine()
+    protected synchronized void writeShared(ByteBuffer data)
     {
-        String line;
-        //We need to be compatible with all types of linefeeds
-        int pos = buf.indexOf("\r\n");
-        if(pos == -1)
+        if(!data.isReadOnly())
         {
-            pos = buf.indexOf("\n");
+            throw new IllegalArgumentException("Shared buffers must be read-only");
         }
-        if(pos == -1)
+        if(!ch.isOpen())
         {
-            pos = buf.indexOf("\r");
+            return;
         }
-        
-        if(pos != -1)
+        queued += data.remaining();
+        moved += data.remaining();
+        outQueue.addLast(data);
+        flushOrSchedule();
+    }
+    
+    /**
+     * Writes queued output right away on the reactor thread, the owning thread or if the
+     * channel is blocking, otherwise leaves it to the reactor or the owning thread.
+     */
+    private void flushOrSchedule()
+    {
+        if(owner != null)
         {
-            line = buf.substring(0, pos);
-            buf.delete(0, pos + 1);
-            if((buf.length() > 0) && (buf.charAt(0) == '\n'))
+            if(Thread.currentThread() == owner)
             {
-                buf.deleteCharAt(0);
+                flush();
             }
-            //System.out.println("IN: " + line);
-            return line;
+            else
+            {
+                selector.wakeup();
+            }
+        }
+        else if((key == null) || (Thread.currentThread() == reactor))
+        {
+            //Not served by anyone yet, or just being handed over
+            flush();
         }
         else
         {
-            return null;
+            updateInterest();
+        }
+    }
+    
+    /**
+     * Writes as much queued output as the channel accepts without blocking.
+     */
+    protected synchronized void flush()
+    {
+        if(!outQueue.isEmpty())
+        {
+            try
+            {
+                ByteBuffer[] bufs = outQueue.toArray(new ByteBuffer[outQueue.size()]);
+                long n = ch.write(bufs);
+                queued -= n;
+                moved += n;
+            }
+            catch(IOException e)
+            {
+                close();
+                return;
+            }
+            while(!outQueue.isEmpty() && !outQueue.peekFirst().hasRemaining())
+            {
+                release(outQueue.pollFirst());
+            }
+        }
+        updateInterest();
+    }
+    
+    /**
+     * Returns a written output buffer to the pool unless it is shared.
+     */
+    private void release(ByteBuffer buf)
+    {
+        if(!buf.isReadOnly())
+        {
+            pool.release(buf);
+        }
+    }
+    
+    /**
+     * Returns whether the handler has more output to write once the queue is empty,
+     * such as a file it sends in pieces from {@link #output()}. The reactor then keeps
+     * reporting the channel writable.
+     * 
+     * @return <i>true</i> if there is more output to come
+     */
+    protected boolean hasMoreOutput()
+    {
+        return false;
+    }
+    
+    /**
+     * Returns the number of bytes waiting to be written to the channel.
+     * 
+     * @return the number of queued bytes
+     */
+    protected synchronized long getQueued()
+    {
+        return queued;
+    }
+    
+    /**
+     * Stops or resumes reading input from the client, for example while the
+     * session has too much input left to process.
+     * 
+     * @param paused  <i>true</i> to stop reading, <i>false</i> to resume
+     */
+    protected synchronized void setInputPaused(boolean paused)
+    {
+        inputPaused = paused;
+        if((owner != null) && (Thread.currentThread() != owner))
+        {
+            selector.wakeup();
+        }
+        updateInterest();
+    }
+    
+    /**
+     * Has the thread serving the channel pass the input left in the read buffer to
+     * {@link #input(ByteBuffer)} again, for handlers that stop taking lines while a
+     * command is done on another thread. Lines the client sent meanwhile would
+     * otherwise wait until it sends more.
+     */
+    protected synchronized void reprocessInput()
+    {
+        if(owner != null)
+        {
+            reinput = true;
+            if(Thread.currentThread() != owner)
+            {
+                selector.wakeup();
+            }
+        }
+        else if(reactor != null)
+        {
+            reactor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    if(ch.isOpen())
+                    {
+                        ByteBuffer buf = getReadBuffer();
+                        buf.flip();
+                        input(buf);
+                        buf.compact();
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Registers interest in writing while output is pending and suspends reading
+     * while the queue is above the high-water mark or input is paused.
+     */
+    private void updateInterest()
+    {
+        if((key == null) || !key.isValid())
+        {
+            return;
+        }
+        if(queued > HIGH_WATER)
+        {
+            readSuspended = true;
+        }
+        else if(queued <= LOW_WATER)
+        {
+            readSuspended = false;
+        }
+        int ops = (readSuspended || inputPaused) ? 0 : SelectionKey.OP_READ;
+        if((queued > 0) || hasMoreOutput())
+        {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if(key.interestOps() != ops)
+        {
+            key.interestOps(ops);
+            reactor.wakeup();
+        }
+    }
+    
+    /**
+     * Takes the channel away from the reactor serving it, for a thread of the specified
+     * executor to own. Once the selector has let go of the channel, queued output is
+     * written, the read buffer is returned to the pool and the task is handed to the
+     * executor. If no reactor serves the channel, the task is run right away by the
+     * calling thread, which serves this channel only. Either way the thread running
+     * the task owns the channel until the task returns, and reads it with
+     * {@link #readOwned(ByteBuffer)}.
+     * <p>
+     * Must be called by the thread serving the channel, and no more input is passed
+     * to the handler afterwards.
+     * 
+     * @param executor  the executor to run the task on
+     * @param task      the task reading the channel
+     */
+    protected void detach(final Executor executor, final Runnable task)
+    {
+        Reactor r;
+        SelectionKey k;
+        synchronized(this)
+        {
+            r = reactor;
+            k = key;
+            //Output written from now on is written as far as possible right away
+            key = null;
+            reactor = null;
+        }
+        if(k == null)
+        {
+            serveOwned(task);
+            return;
+        }
+        r.detach(k, new Runnable()
+        {
+            public void run()
+            {
+                releaseBuffers();
+                flush();
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        serveOwned(task);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Serves the channel on the calling thread until it is closed, for servers giving
+     * every connection a thread of its own instead of a reactor. The thread owns the
+     * channel as if detached, and passes what it reads to {@link #input(ByteBuffer)}.
+     */
+    public void serve()
+    {
+        serveOwned(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ByteBuffer buf;
+                    while(readOwned(buf = getReadBuffer()) != -1)
+                    {
+                        buf.flip();
+                        input(buf);
+                        buf.compact();
+                    }
+                }
+                catch(IOException e)
+                {
+                    //Connection lost, closed below
+                }
+            }
+        });
+        releaseBuffers();
+    }
+    
+    /**
+     * Runs the task serving the channel with the calling thread as its owner. The
+     * channel is closed once the task returns.
+     */
+    private void serveOwned(Runnable task)
+    {
+        if(isOwned())
+        {
+            //Served by this thread from the start, see serve()
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                close();
+            }
+            return;
+        }
+        Selector s = null;
+        try
+        {
+            s = Selector.open();
+            ch.configureBlocking(false);
+            synchronized(this)
+            {
+                ownKey = ch.register(s, SelectionKey.OP_READ);
+                selector = s;
+                owner = Thread.currentThread();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to serve connection: " + e.getMessage());
+            close();
+        }
+        try
+        {
+            if(owner != null)
+            {
+                task.run();
+            }
+        }
+        finally
+        {
+            close();
+            try
+            {
+                if(s != null)
+                {
+                    //Only now is the channel really closed
+                    s.close();
+                }
+            }
+            catch(IOException e) {}
+        }
+    }
+    
+    /**
+     * Returns whether the channel is owned by the calling thread, see {@link #detach}.
+     * 
+     * @return <i>true</i> if the calling thread owns the channel
+     */
+    protected synchronized boolean isOwned()
+    {
+        return owner == Thread.currentThread();
+    }
+    
+    /**
+     * Reads from the owned channel, waiting until there is input. Output queued
+     * meanwhile is written as the channel accepts it, and while more than
+     * {@link #HIGH_WATER} bytes are queued or input is paused nothing is read.
+     * Returns without reading when asked to by {@link #reprocessInput()}.
+     * 
+     * @param buf  the buffer to read into
+     * 
+     * @return the number of bytes read, 0 if asked to pass on the input left, or -1
+     *         at the end of the stream
+     * 
+     * @throws IOException  if the channel could not be read or was closed
+     */
+    protected int readOwned(ByteBuffer buf) throws IOException
+    {
+        if(!buf.hasRemaining())
+        {
+            return 0;
+        }
+        while(true)
+        {
+            flush();
+            boolean reading;
+            synchronized(this)
+            {
+                if(reinput)
+                {
+                    reinput = false;
+                    return 0;
+                }
+                reading = (queued <= HIGH_WATER) && !inputPaused;
+            }
+            if(reading)
+            {
+                int n = ch.read(buf);
+                if(n != 0)
+                {
+                    return n;
+                }
+            }
+            await(reading ? SelectionKey.OP_READ : 0);
+        }
+    }
+    
+    /**
+     * Writes all queued output to the owned channel, waiting as needed.
+     * 
+     * @throws IOException  if the channel was closed
+     */
+    protected void drain() throws IOException
+    {
+        flush();
+        while(getQueued() > 0)
+        {
+            await(0);
+            flush();
+        }
+        if(!ch.isOpen())
+        {
+            throw new ClosedChannelException();
         }
     }
     
+    /**
+     * Waits until the owned channel accepts more output.
+     * 
+     * @throws IOException  if the channel was closed
+     */
+    protected void awaitWritable() throws IOException
+    {
+        await(SelectionKey.OP_WRITE);
+    }
+    
+    /**
+     * Sets the longest time the owning thread waits on the channel without anything
+     * moving, after which it gives up with a {@link SocketTimeoutException}.
+     * 
+     * @param idleTimeout  the timeout in milliseconds, 0 to wait forever
+     */
+    protected void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+    
+    /**
+     * Returns whether the handler is busy with something the client is waiting for,
+     * so that the client being silent is no reason to give up on the channel.
+     * 
+     * @return <i>true</i> while work of the handler's own is pending
+     */
+    protected boolean hasPendingWork()
+    {
+        return false;
+    }
+    
+    /**
+     * Waits with the selector of the owning thread until the channel is ready for
+     * the specified operations, for writing queued output, or until woken up.
+     */
+    private void await(int ops) throws IOException
+    {
+        try
+        {
+            long seen;
+            boolean paused;
+            synchronized(this)
+            {
+                if(!ch.isOpen())
+                {
+                    throw new ClosedChannelException();
+                }
+                if(queued > 0)
+                {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                ownKey.interestOps(ops);
+                seen = moved;
+                paused = inputPaused;
+            }
+            long idleSince = System.currentTimeMillis();
+            while((selector.select(idleTimeout) == 0) && (idleTimeout > 0))
+            {
+                long now = System.currentTimeMillis();
+                synchronized(this)
+                {
+                    if((moved != seen) || (paused != inputPaused) || reinput || !ch.isOpen())
+                    {
+                        //Woken up for output queued by another thread, for input or closed
+                        break;
+                    }
+                }
+                if(hasPendingWork())
+                {
+                    idleSince = now;
+                }
+                else if((now - idleSince) >= idleTimeout)
+                {
+                    throw new SocketTimeoutException("Connection idle for " + (idleTimeout / 1000) + " seconds");
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        catch(CancelledKeyException e)
+        {
+            throw new ClosedChannelException();
+        }
+        catch(ClosedSelectorException e)
+        {
+            throw new ClosedChannelException();
+        }
+    }
+    
+    /**
+     * Returns a complete line from the specified input if there is one and moves
+     * the position of the input past it. The returned sequence is only valid until
+     * the next call; call <code>toString()</code> on it to keep it.
+     * 
+     * @param ibuf  the input as passed to {@link #input(ByteBuffer)}
+     * 
+     * @return a complete line, or <i>null</i> if none available
+     * 
+     * @throws CharacterCodingException  if the line could not be decoded
+     * @throws IOException               if the client sent an overlong line
+     */
+    protected CharSequence getLine(ByteBuffer ibuf) throws IOException
+    {
+        return framer.nextLine(ibuf);
+    }
+    
     /**
      * Closes connection to client.
      */
@@ -147,5 +753,29 @@ public abstract class BasicInputHandler implements InputHandler
         {
             e.printStackTrace();
         }
+        synchronized(this)
+        {
+            while(!outQueue.isEmpty())
+            {
+                release(outQueue.pollFirst());
+            }
+            queued = 0;
+            if(selector != null)
+            {
+                //The owning thread finds the channel closed
+                selector.wakeup();
+            }
+        }
+        if(reactor != null)
+        {
+            //The reactor may be reading into the buffer right now, let it release it
+            reactor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    releaseBuffers();
+                }
+            });
+        }
     }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+
+/**
+ * ControlCodec for the binary protocol. The frames of a reply are collected and
+ * handed to the session in one piece when the reply ends.
+ */
+public class BinaryControlCodec implements ControlCodec
+{
+    private BasicInputHandler session;
+    private BinaryProtocol.FrameWriter out;
+    private long requestID;
+    
+    /**
+     * Constructs a new BinaryControlCodec.
+     * 
+     * @param session  the session to write to
+     */
+    public BinaryControlCodec(BasicInputHandler session)
+    {
+        this.session = session;
+        out = new BinaryProtocol.FrameWriter();
+    }
+    
+    public void begin(ControlCommand command)
+    {
+        requestID = (command == null) ? 0 : command.getRequestID();
+    }
+    
+    public void end()
+    {
+        if(!out.isEmpty())
+        {
+            session.write(out.view());
+            out.clear();
+        }
+    }
+    
+    /**
+     * Writes out what has been collected so far, before writing shared data.
+     */
+    private void writeShared(ByteBuffer data)
+    {
+        end();
+        session.writeShared(data);
+    }
+    
+    public void ok(String text)
+    {
+        out.begin(BinaryProtocol.OK).putVarLong(requestID).end();
+    }
+    
+    public void error(String message)
+    {
+        out.begin(BinaryProtocol.ERROR).putVarLong(requestID).putString(message).end();
+    }
+    
+    public void fileList(String epoch, FileListSnapshot snapshot)
+    {
+        syncFull(epoch, snapshot);
+    }
+    
+    public void syncFull(String epoch, FileListSnapshot snapshot)
+    {
+        out.begin(BinaryProtocol.SYNC_FULL).putVarLong(requestID)
+            .putString(epoch).putVarLong(snapshot.getVersion()).end();
+        writeShared(snapshot.getBinaryData());
+    }
+    
+    public void syncDelta(String epoch, long version)
+    {
+        out.begin(BinaryProtocol.SYNC_DELTA).putVarLong(requestID)
+            .putString(epoch).putVarLong(version).end();
+    }
+    
+    public void added(Configuration.FileType type, int id, String name)
+    {
+        out.begin(BinaryProtocol.FILE).put(BinaryProtocol.typeCode(type))
+            .putVarLong(id).putString(name).end();
+    }
+    
+    public void renamed(Configuration.FileType type, int id, String name)
+    {
+        out.begin(BinaryProtocol.RENAME).put(BinaryProtocol.typeCode(type))
+            .putVarLong(id).putString(name).end();
+    }
+    
+    public void removed(Configuration.FileType type, int id)
+    {
+        out.begin(BinaryProtocol.REMOVE).put(BinaryProtocol.typeCode(type)).putVarLong(id).end();
+    }
+    
+    public void playlist(List<Integer> ids)
+    {
+        out.begin(BinaryProtocol.PLAYLIST).putVarLong(ids.size());
+        for(Integer id : ids)
+        {
+            out.putVarLong(id);
+        }
+        out.end();
+    }
+    
+    public void syncEnd()
+    {
+        out.begin(BinaryProtocol.SYNC_END).end();
+    }
+    
+    public void statsQueue(int depth)
+    {
+        out.begin(BinaryProtocol.STATS_QUEUE).putVarLong(requestID).putVarLong(depth).end();
+    }
+    
+    public void stat(String name, CommandExecutor.Stats stats)
+    {
+        out.begin(BinaryProtocol.STAT).putString(name).putVarLong(stats.getCount())
+            .putVarLong(stats.getAverageMicros()).putVarLong(stats.getMaxMicros()).end();
+    }
+    
+    public void statsEnd()
+    {
+        out.begin(BinaryProtocol.STATS_END).end();
+    }
+    
+    public void playerState(Player.State state)
+    {
+        out.begin(BinaryProtocol.PLAYER).putVarLong(requestID).putString(state.toString()).end();
+    }
+    
+    public void uploaded(Configuration.FileType type, String filename)
+    {
+        out.begin(BinaryProtocol.UPLOAD).putVarLong(requestID)
+            .put(BinaryProtocol.typeCode(type)).putString(filename).end();
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * Constants and helpers for the binary control protocol, which a client may ask
+ * for by greeting the server with "PROJICAST BINARY" instead of "PROJICAST".
+ * The handshake is text as usual; after "AUTH OK" both sides switch to frames.
+ * <p>
+ * A frame is its length as a varint, then an opcode byte and the payload. Integers
+ * are unsigned LEB128 varints and strings a varint byte count followed by UTF-8.
+ * Commands, replies and events start their payload with a varint request ID;
+ * replies repeat the ID of their command and events use 0. The frames following
+ * a reply or event as part of it, like the files of a listing, carry no ID.
+ */
+public final class BinaryProtocol
+{
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    //Commands
+    public static final byte REFRESH = 0x01;
+    public static final byte SYNC = 0x02;
+    public static final byte SUBSCRIBE = 0x03;
+    public static final byte SLIDESHOW = 0x04;
+    public static final byte STOP = 0x05;
+    public static final byte PLAY = 0x06;
+    public static final byte IMAGE = 0x07;
+    public static final byte TEXT = 0x08;
+    public static final byte DELETE = 0x09;
+    public static final byte SET_PLAYLIST = 0x0A;
+    public static final byte STATS = 0x0B;
+    public static final byte LIMIT = 0x0C;
+    
+    //Replies and events
+    public static final byte OK = 0x40;
+    public static final byte ERROR = 0x41;
+    public static final byte SYNC_FULL = 0x42;
+    public static final byte SYNC_DELTA = 0x43;
+    public static final byte STATS_QUEUE = 0x44;
+    public static final byte PLAYER = 0x45;
+    public static final byte UPLOAD = 0x46;
+    
+    //Parts of replies and events
+    public static final byte FILE = 0x60;
+    public static final byte RENAME = 0x61;
+    public static final byte REMOVE = 0x62;
+    public static final byte PLAYLIST = 0x63;
+    public static final byte SYNC_END = 0x64;
+    public static final byte STAT = 0x65;
+    public static final byte STATS_END = 0x66;
+    
+    //File types
+    public static final byte TYPE_VIDEO = 0;
+    public static final byte TYPE_IMAGE = 1;
+    
+    private BinaryProtocol()
+    {
+    }
+    
+    /**
+     * Returns the next complete frame of the specified input, from the opcode to the end
+     * of the payload, and moves the position of the input past it.
+     * 
+     * @param ibuf       the input
+     * @param maxLength  the maximum length of a frame
+     * 
+     * @return the frame, or <i>null</i> if no complete frame is available
+     * 
+     * @throws IOException  if the frame is longer than allowed
+     */
+    public static ByteBuffer nextFrame(ByteBuffer ibuf, int maxLength) throws IOException
+    {
+        int start = ibuf.position();
+        long length = 0;
+        int shift = 0;
+        int pos = start;
+        for(;;)
+        {
+            if(pos == ibuf.limit())
+            {
+                return null;
+            }
+            byte b = ibuf.get(pos++);
+            length |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                break;
+            }
+            shift += 7;
+            if(shift > 28)
+            {
+                throw new IOException("Invalid frame length");
+            }
+        }
+        if((length == 0) || (length > maxLength))
+        {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        if((ibuf.limit() - pos) < length)
+        {
+            return null;
+        }
+        ByteBuffer frame = ibuf.duplicate();
+        frame.position(pos);
+        frame.limit(pos + (int)length);
+        ibuf.position(pos + (int)length);
+        return frame;
+    }
+    
+    /**
+     * Reads a varint.
+     */
+    public static long getVarLong(ByteBuffer buf)
+    {
+        long value = 0;
+        int shift = 0;
+        for(;;)
+        {
+            byte b = buf.get();
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+    
+    /**
+     * Reads a varint that must fit in an int.
+     */
+    public static int getVarInt(ByteBuffer buf)
+    {
+        long value = getVarLong(buf);
+        if(value > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Integer too large: " + value);
+        }
+        return (int)value;
+    }
+    
+    /**
+     * Reads a string.
+     */
+    public static String getString(ByteBuffer buf)
+    {
+        int length = getVarInt(buf);
+        ByteBuffer bytes = buf.duplicate();
+        bytes.limit(buf.position() + length);
+        buf.position(buf.position() + length);
+        return UTF8.decode(bytes).toString();
+    }
+    
+    /**
+     * Returns the file type with the specified code.
+     */
+    public static Configuration.FileType getType(ByteBuffer buf)
+    {
+        switch(buf.get())
+        {
+            case TYPE_VIDEO:
+                return Configuration.FileType.VIDEO;
+            case TYPE_IMAGE:
+                return Configuration.FileType.IMAGE;
+            default:
+                throw new IllegalArgumentException("Invalid file type");
+        }
+    }
+    
+    /**
+     * Returns the code for the specified file type.
+     */
+    public static byte typeCode(Configuration.FileType type)
+    {
+        return (type == Configuration.FileType.VIDEO) ? TYPE_VIDEO : TYPE_IMAGE;
+    }
+    
+    /**
+     * Growable buffer frames are written to.
+     */
+    public static class FrameWriter
+    {
+        private byte[] data = new byte[256];
+        private int size = 0;
+        private int frameStart = -1;
+        
+        /**
+         * Starts a new frame with the specified opcode.
+         */
+        public FrameWriter begin(byte opcode)
+        {
+            //Room for the longest length we allow, moved down in end() if shorter
+            frameStart = size;
+            ensure(5);
+            size += 5;
+            put(opcode);
+            return this;
+        }
+        
+        /**
+         * Finishes the current frame.
+         */
+        public void end()
+        {
+            int length = size - frameStart - 5;
+            byte[] prefix = new byte[5];
+            int n = 0;
+            int v = length;
+            do
+            {
+                byte b = (byte)(v & 0x7F);
+                v >>>= 7;
+                prefix[n++] = (byte)((v != 0) ? (b | 0x80) : b);
+            }
+            while(v != 0);
+            System.arraycopy(data, frameStart + 5, data, frameStart + n, length);
+            System.arraycopy(prefix, 0, data, frameStart, n);
+            size = frameStart + n + length;
+            frameStart = -1;
+        }
+        
+        public FrameWriter put(byte b)
+        {
+            ensure(1);
+            data[size++] = b;
+            return this;
+        }
+        
+        public FrameWriter putVarLong(long v)
+        {
+            ensure(10);
+            while((v & ~0x7FL) != 0)
+            {
+                data[size++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte)v;
+            return this;
+        }
+        
+        public FrameWriter putString(String s)
+        {
+            byte[] bytes = s.getBytes(UTF8);
+            putVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+        
+        /**
+         * @return Returns <i>true</i> if nothing has been written.
+         */
+        public boolean isEmpty()
+        {
+            return size == 0;
+        }
+        
+        /**
+         * Returns the frames written as a buffer and starts over.
+         */
+        public ByteBuffer take()
+        {
+            ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(data, size));
+            size = 0;
+            return buf;
+        }
+        
+        /**
+         * Returns a view of the frames written, valid until the next write.
+         */
+        public ByteBuffer view()
+        {
+            return ByteBuffer.wrap(data, 0, size);
+        }
+        
+        /**
+         * Forgets everything written.
+         */
+        public void clear()
+        {
+            size = 0;
+        }
+        
+        private void ensure(int n)
+        {
+            if((size + n) > data.length)
+            {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Computes the block signatures of a stored file for delta uploads. The file is
+ * split into blocks of a fixed size, the last one possibly shorter, and each block
+ * is described by a weak checksum a client can compute rolling over its own file,
+ * and an MD5 digest to confirm a match.
+ * <p>
+ * The weak checksum is the one of rsync: the sum of the bytes and the sum of the
+ * partial sums, each modulo 2^16, in the low and high half.
+ */
+public class BlockSignatures
+{
+    /**
+     * The bytes of the signature of one block, the weak checksum and the digest.
+     */
+    public static final int SIGNATURE_LENGTH = 4 + 16;
+    
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * Returns a block size suited to a file, about the square root of its size, so
+     * that the signatures and the bytes lost around each change stay balanced.
+     * 
+     * @param size  the size of the file
+     * 
+     * @return the block size
+     */
+    public static int defaultBlockSize(long size)
+    {
+        long block = ((long)Math.sqrt(size)) & ~1023L;
+        return (int)Math.max(2048, Math.min(128 * 1024, block));
+    }
+    
+    /**
+     * Computes the signatures of the blocks of a file, as far as its size when
+     * called.
+     * 
+     * @param in         a stream of the file, at its start
+     * @param blockSize  the size of the blocks
+     * 
+     * @return the signatures of all blocks in order, ready to be sent
+     * 
+     * @throws IOException  if the file could not be read
+     */
+    public static ByteBuffer compute(FileInputStream in, int blockSize) throws IOException
+    {
+        MessageDigest md5;
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException("MD5 not supported");
+        }
+        long size = in.getChannel().size();
+        long count = (size + blockSize - 1) / blockSize;
+        if((count * SIGNATURE_LENGTH) > (64 * 1024 * 1024))
+        {
+            throw new IOException("Block size too small for the file");
+        }
+        ByteBuffer sigs = ByteBuffer.allocate((int)(count * SIGNATURE_LENGTH));
+        byte[] block = new byte[blockSize];
+        for(long i = 0; i < count; i++)
+        {
+            int len = (int)Math.min(blockSize, size - i * blockSize);
+            int n = 0;
+            while(n < len)
+            {
+                int r = in.read(block, n, len - n);
+                if(r == -1)
+                {
+                    throw new IOException("File changed while being read");
+                }
+                n += r;
+            }
+            sigs.putInt(weak(block, 0, len));
+            md5.update(block, 0, len);
+            sigs.put(md5.digest());
+        }
+        sigs.flip();
+        return sigs;
+    }
+    
+    /**
+     * Computes the weak checksum of a block.
+     * 
+     * @param buf  the buffer holding the block
+     * @param off  the start of the block
+     * @param len  the length of the block
+     * 
+     * @return the checksum
+     */
+    public static int weak(byte[] buf, int off, int len)
+    {
+        int a = 0;
+        int b = 0;
+        for(int i = 0; i < len; i++)
+        {
+            a += buf[off + i] & 0xFF;
+            b += (len - i) * (buf[off + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
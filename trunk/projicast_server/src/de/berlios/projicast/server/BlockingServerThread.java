@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Alternative to ServerThread which serves every connection on a thread of its
+ * own, see {@link BasicInputHandler#serve()}. The sessions are the same as with
+ * ServerThread; they are just never attached to a Reactor.
+ * <p>
+ * Connection threads are virtual threads when the Java runtime supports them
+ * and ordinary threads otherwise.
+ */
+public class BlockingServerThread extends Thread
+{
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+    
+    static
+    {
+        //Virtual threads are looked up reflectively to still run on older runtimes
+        try
+        {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+        }
+        catch(Exception e)
+        {
+            ofVirtual = null;
+        }
+    }
+    
+    private volatile boolean running = true;
+    private int port;
+    private int ftPort;
+    private Configuration configuration;
+    private ServerSocketChannel ftChannel;
+    private int connections = 0;
+    
+    /**
+     * Constructs a new BlockingServerThread running on the specified ports with the
+     * specified configuration.
+     * 
+     * @param configuration  the server configuration to use
+     * @param port           the port to listen for control sessions on
+     * @param ftPort         the port to listen for file transfer sessions on
+     */
+    public BlockingServerThread(Configuration configuration, int port, int ftPort)
+    {
+        this.port = port;
+        this.ftPort = ftPort;
+        this.configuration = configuration;
+    }
+    
+    public void cancel()
+    {
+        running = false;
+        interrupt();
+    }
+    
+    /**
+     * Returns <i>true</i> if connections are served on virtual threads.
+     * 
+     * @return <i>true</i> if virtual threads are used
+     */
+    public static boolean usesVirtualThreads()
+    {
+        return ofVirtual != null;
+    }
+    
+    public void run()
+    {
+        try
+        {
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.socket().bind(new InetSocketAddress(port));
+            ftChannel = ServerSocketChannel.open();
+            ftChannel.socket().bind(new InetSocketAddress(ftPort));
+            
+            //File transfer connections are accepted on a thread of their own
+            Thread ftAcceptor = new Thread("FileAcceptor")
+            {
+                public void run()
+                {
+                    acceptLoop(ftChannel, false);
+                }
+            };
+            ftAcceptor.start();
+            acceptLoop(ssc, true);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Accepts connections from the specified channel until cancelled.
+     * 
+     * @param ssc      the channel to accept from
+     * @param control  <i>true</i> for control sessions, <i>false</i> for file transfers
+     */
+    private void acceptLoop(ServerSocketChannel ssc, boolean control)
+    {
+        try
+        {
+            while(running)
+            {
+                SocketChannel ch = ssc.accept();
+                TransferScheduler.mark(ch.socket(), control);
+                final BasicInputHandler session = control
+                    ? new ControlSession(ch, configuration) : new FileTransferSession(ch, configuration);
+                newConnectionThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        session.serve();
+                    }
+                }).start();
+            }
+        }
+        catch(IOException e)
+        {
+            if(running)
+            {
+                e.printStackTrace();
+            }
+        }
+        finally
+        {
+            try
+            {
+                ssc.close();
+            }
+            catch(IOException e) {}
+        }
+    }
+    
+    /**
+     * Creates an unstarted thread for serving a connection.
+     * 
+     * @param r  the connection to serve
+     * 
+     * @return the unstarted thread
+     */
+    private synchronized Thread newConnectionThread(Runnable r)
+    {
+        String name = "Connection-" + connections++;
+        if(ofVirtual != null)
+        {
+            try
+            {
+                Object builder = ofVirtual.invoke(null);
+                builder = builderName.invoke(builder, name);
+                return (Thread)builderUnstarted.invoke(builder, r);
+            }
+            catch(Exception e)
+            {
+                ofVirtual = null;
+            }
+        }
+        return new Thread(r, name);
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * A pool of direct buffers shared by all sessions of a server.
+ * <p>
+ * Buffers come in a few size classes. Direct memory is allocated in slabs of
+ * {@link #SLAB_SIZE} bytes which are cut into buffers of one size class, and
+ * released buffers are kept for reuse. A buffer released while already in the
+ * pool is reported and ignored rather than handed out twice. Once the configured amount of memory has
+ * been allocated in slabs, further leases are served with ordinary heap buffers
+ * which are left to the garbage collector when released.
+ * <p>
+ * In debug mode every lease is tracked, and buffers that are garbage collected
+ * without having been released are reported together with the stack trace of
+ * the lease.
+ */
+public class BufferPool
+{
+    /**
+     * The amount of direct memory allocated at a time.
+     */
+    public static final int SLAB_SIZE = 1024 * 1024;
+    
+    private static final int[] SIZES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+    
+    private long maxMemory;
+    private long allocated = 0;
+    private List<ArrayDeque<ByteBuffer>> free;
+    //The buffers in the free lists, by identity as buffers compare by content
+    private Set<ByteBuffer> pooled;
+    
+    private boolean debug;
+    private Set<Lease> leases;
+    private ReferenceQueue<ByteBuffer> collected;
+    private long leaked = 0;
+    
+    /**
+     * Constructs a new BufferPool.
+     * 
+     * @param maxMemory  the maximum amount of direct memory to allocate in bytes
+     * @param debug      <i>true</i> to track leases and report leaked buffers
+     */
+    public BufferPool(long maxMemory, boolean debug)
+    {
+        this.maxMemory = maxMemory;
+        this.debug = debug;
+        free = new ArrayList<ArrayDeque<ByteBuffer>>(SIZES.length);
+        for(int i = 0; i < SIZES.length; i++)
+        {
+            free.add(new ArrayDeque<ByteBuffer>());
+        }
+        pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        leases = new HashSet<Lease>();
+        collected = new ReferenceQueue<ByteBuffer>();
+    }
+    
+    /**
+     * Returns a cleared buffer with at least the specified capacity.
+     * 
+     * @param minCapacity  the minimum capacity needed
+     * 
+     * @return a cleared buffer
+     */
+    public ByteBuffer lease(int minCapacity)
+    {
+        int sizeClass = sizeClass(minCapacity);
+        if(sizeClass == -1)
+        {
+            //Larger than any size class
+            return ByteBuffer.allocate(minCapacity);
+        }
+        
+        ByteBuffer buf = take(sizeClass);
+        buf.clear();
+        if(debug && buf.isDirect())
+        {
+            track(buf);
+        }
+        return buf;
+    }
+    
+    /**
+     * Returns a buffer obtained from {@link #lease(int)} to the pool. The buffer
+     * must not be used by the caller afterwards.
+     * 
+     * @param buf  the buffer to release
+     */
+    public void release(ByteBuffer buf)
+    {
+        if(!buf.isDirect())
+        {
+            return;
+        }
+        if(debug && !untrack(buf))
+        {
+            System.err.println("Buffer released twice or not leased from this pool!");
+            Thread.dumpStack();
+            return;
+        }
+        synchronized(this)
+        {
+            if(!pooled.add(buf))
+            {
+                System.err.println("Buffer released twice!");
+                Thread.dumpStack();
+                return;
+            }
+            free.get(sizeClass(buf.capacity())).add(buf);
+        }
+    }
+    
+    /**
+     * Returns the amount of direct memory allocated by this pool.
+     * 
+     * @return the number of bytes allocated in slabs
+     */
+    public synchronized long getAllocated()
+    {
+        return allocated;
+    }
+    
+    /**
+     * Returns the number of bytes found leaked so far. Always zero unless in debug mode.
+     * 
+     * @return the number of bytes in buffers that were never released
+     */
+    public synchronized long getLeaked()
+    {
+        return leaked;
+    }
+    
+    /**
+     * Returns the index of the smallest size class holding the specified capacity.
+     */
+    private static int sizeClass(int capacity)
+    {
+        for(int i = 0; i < SIZES.length; i++)
+        {
+            if(SIZES[i] >= capacity)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns a pooled buffer of the specified size class, cutting a new slab into
+     * buffers of that size if there is none, or a heap buffer if the memory limit
+     * has been reached.
+     */
+    private synchronized ByteBuffer take(int sizeClass)
+    {
+        ByteBuffer buf = free.get(sizeClass).poll();
+        if(buf != null)
+        {
+            pooled.remove(buf);
+            return buf;
+        }
+        
+        int size = SIZES[sizeClass];
+        if((allocated + SLAB_SIZE) > maxMemory)
+        {
+            return ByteBuffer.allocate(size);
+        }
+        allocated += SLAB_SIZE;
+        ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+        for(int pos = size; pos < SLAB_SIZE; pos += size)
+        {
+            slab.limit(pos + size);
+            slab.position(pos);
+            ByteBuffer slice = slab.slice();
+            free.get(sizeClass).add(slice);
+            pooled.add(slice);
+        }
+        slab.position(0);
+        slab.limit(size);
+        return slab.slice();
+    }
+    
+    /**
+     * Records a lease and reports leases whose buffers have been collected.
+     */
+    private synchronized void track(ByteBuffer buf)
+    {
+        reportLeaks();
+        leases.add(new Lease(buf, collected));
+    }
+    
+    /**
+     * Forgets the lease of the specified buffer.
+     * 
+     * @return <i>false</i> if the buffer was not leased
+     */
+    private synchronized boolean untrack(ByteBuffer buf)
+    {
+        reportLeaks();
+        Iterator<Lease> it = leases.iterator();
+        while(it.hasNext())
+        {
+            if(it.next().get() == buf)
+            {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Reports all buffers garbage collected while still leased.
+     */
+    private void reportLeaks()
+    {
+        Reference<? extends ByteBuffer> ref;
+        while((ref = collected.poll()) != null)
+        {
+            //Released buffers are not in the set anymore
+            if(leases.remove(ref))
+            {
+                Lease lease = (Lease)ref;
+                leaked += lease.capacity;
+                System.err.println("Leaked buffer of " + lease.capacity + " bytes, leased at:");
+                lease.origin.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * A tracked lease, remembering where the buffer was leased.
+     */
+    private static class Lease extends WeakReference<ByteBuffer>
+    {
+        private int capacity;
+        private Throwable origin;
+        
+        private Lease(ByteBuffer buf, ReferenceQueue<ByteBuffer> queue)
+        {
+            super(buf, queue);
+            capacity = buf.capacity();
+            origin = new Throwable("Buffer lease");
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Keeps the version of the catalog, that is the file lists and the slideshow
+ * playlist, and a bounded log of the latest changes to it. Every change gets
+ * a new, higher version, so a client knowing the version it has seen can be
+ * sent just the changes made since.
+ * <p>
+ * Versions are only comparable within one run of the server, which is
+ * identified by a random epoch string.
+ * <p>
+ * Changes made between {@link #hold()} and {@link #release()} all get the same
+ * version, so that many changes made at once are seen by clients as one.
+ */
+public class CatalogLog
+{
+    public enum Operation { ADD, REMOVE, RENAME, PLAYLIST, RESET }
+    
+    private String epoch;
+    private long version = 0;
+    private int capacity;
+    private ArrayDeque<Change> changes;
+    private Listener listener;
+    private int held = 0;
+    private boolean pending = false;
+    
+    /**
+     * Constructs a new CatalogLog.
+     * 
+     * @param capacity  the number of changes to remember
+     */
+    public CatalogLog(int capacity)
+    {
+        this.capacity = capacity;
+        epoch = Security.generate(12);
+        changes = new ArrayDeque<Change>();
+    }
+    
+    /**
+     * Sets the listener to tell about changes.
+     * 
+     * @param listener  the listener
+     */
+    public synchronized void setListener(Listener listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * Records a change to the catalog.
+     * 
+     * @param op    the kind of change
+     * @param type  the type of the file changed, or <i>null</i> for playlist changes
+     * @param id    the ID of the file changed
+     * @param name  the new name of the file for additions and renames
+     */
+    public void record(Operation op, Configuration.FileType type, int id, String name)
+    {
+        long newVersion;
+        Listener l;
+        synchronized(this)
+        {
+            changes.addLast(new Change(version + 1, op, type, id, name));
+            if(changes.size() > capacity)
+            {
+                //The changes of a version go together or not at all
+                long dropped = changes.removeFirst().version;
+                while(!changes.isEmpty() && (changes.peekFirst().version == dropped))
+                {
+                    changes.removeFirst();
+                }
+            }
+            if(held > 0)
+            {
+                pending = true;
+                return;
+            }
+            version++;
+            newVersion = version;
+            l = listener;
+        }
+        if(l != null)
+        {
+            l.catalogChanged(newVersion);
+        }
+    }
+    
+    /**
+     * Holds back the changes recorded from now on until {@link #release()}, which
+     * gives them all one version.
+     */
+    public synchronized void hold()
+    {
+        held++;
+    }
+    
+    /**
+     * Ends holding back changes, see {@link #hold()}.
+     */
+    public void release()
+    {
+        long newVersion;
+        Listener l;
+        synchronized(this)
+        {
+            held--;
+            if((held > 0) || !pending)
+            {
+                return;
+            }
+            pending = false;
+            version++;
+            newVersion = version;
+            l = listener;
+        }
+        if(l != null)
+        {
+            l.catalogChanged(newVersion);
+        }
+    }
+    
+    /**
+     * Returns the changes made after the specified version.
+     * 
+     * @param epoch    the epoch the version belongs to
+     * @param version  the version the client has
+     * 
+     * @return the changes in the order they were made, leaving out those still held
+     *         back, or <i>null</i> if the log does not go back far enough, the version
+     *         is from another epoch or a change since can not be expressed as a delta
+     */
+    public synchronized List<Change> changesSince(String epoch, long version)
+    {
+        if(!this.epoch.equals(epoch) || (version > this.version))
+        {
+            return null;
+        }
+        List<Change> result = new ArrayList<Change>();
+        if(version == this.version)
+        {
+            return result;
+        }
+        if(changes.isEmpty() || (changes.peekFirst().version > (version + 1)))
+        {
+            return null;
+        }
+        for(Change change : changes)
+        {
+            //Changes still held back are left for after the release
+            if(change.version > this.version)
+            {
+                break;
+            }
+            if(change.version > version)
+            {
+                if(change.op == Operation.RESET)
+                {
+                    return null;
+                }
+                result.add(change);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return Returns the current version.
+     */
+    public synchronized long getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * @return Returns the epoch of this run of the server.
+     */
+    public String getEpoch()
+    {
+        return epoch;
+    }
+    
+    /**
+     * Interface for being told about changes to the catalog.
+     */
+    public interface Listener
+    {
+        /**
+         * Called after the catalog has changed.
+         * 
+         * @param version  the new version
+         */
+        void catalogChanged(long version);
+    }
+    
+    /**
+     * A single change to the catalog.
+     */
+    public static class Change
+    {
+        private long version;
+        private Operation op;
+        private Configuration.FileType type;
+        private int id;
+        private String name;
+        
+        private Change(long version, Operation op, Configuration.FileType type, int id, String name)
+        {
+            this.version = version;
+            this.op = op;
+            this.type = type;
+            this.id = id;
+            this.name = name;
+        }
+        
+        /**
+         * @return Returns the version this change created.
+         */
+        public long getVersion()
+        {
+            return version;
+        }
+        
+        /**
+         * @return Returns the kind of change.
+         */
+        public Operation getOperation()
+        {
+            return op;
+        }
+        
+        /**
+         * @return Returns the type of the file changed.
+         */
+        public Configuration.FileType getType()
+        {
+            return type;
+        }
+        
+        /**
+         * @return Returns the ID of the file changed.
+         */
+        public int getID()
+        {
+            return id;
+        }
+        
+        /**
+         * @return Returns the new name of the file.
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of worker threads executing control commands off the reactor threads.
+ * Each session gets its own serial executor from {@link #newSerialExecutor()}
+ * so that its commands are run one at a time and in the order received, while
+ * commands of different sessions run in parallel.
+ * <p>
+ * The executor also keeps track of the number of outstanding commands and of
+ * the execution time of each kind of command.
+ */
+public class CommandExecutor
+{
+    private ThreadPoolExecutor pool;
+    private AtomicInteger queueDepth;
+    private ConcurrentHashMap<String, Stats> stats;
+    
+    /**
+     * Constructs a new CommandExecutor.
+     * 
+     * @param threads  the number of worker threads
+     */
+    public CommandExecutor(int threads)
+    {
+        queueDepth = new AtomicInteger();
+        stats = new ConcurrentHashMap<String, Stats>();
+        pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    private int count = 0;
+                    
+                    public synchronized Thread newThread(Runnable r)
+                    {
+                        return new Thread(r, "Worker-" + count++);
+                    }
+                });
+    }
+    
+    /**
+     * Returns a new executor running its tasks on this pool one at a time in
+     * submission order.
+     * 
+     * @return a new serial executor
+     */
+    public Executor newSerialExecutor()
+    {
+        return new SerialExecutor();
+    }
+    
+    /**
+     * Runs a background task, such as a rescan of a folder, on the pool.
+     * 
+     * @param task  the task to run
+     */
+    public void execute(Runnable task)
+    {
+        pool.execute(task);
+    }
+    
+    /**
+     * Notes that commands have been queued for execution.
+     * 
+     * @param commands  the number of commands queued
+     */
+    public void enqueued(int commands)
+    {
+        queueDepth.addAndGet(commands);
+    }
+    
+    /**
+     * Notes that a queued command has been executed.
+     * 
+     * @param command  the name of the command
+     * @param nanos    the time it took to execute in nanoseconds
+     */
+    public void completed(String command, long nanos)
+    {
+        queueDepth.decrementAndGet();
+        Stats s = stats.get(command);
+        if(s == null)
+        {
+            stats.putIfAbsent(command, new Stats());
+            s = stats.get(command);
+        }
+        s.record(nanos);
+    }
+    
+    /**
+     * Returns the number of commands queued or executing.
+     * 
+     * @return the number of outstanding commands
+     */
+    public int getQueueDepth()
+    {
+        return queueDepth.get();
+    }
+    
+    /**
+     * Returns the execution statistics sorted by command name.
+     * 
+     * @return a map from command name to its statistics
+     */
+    public Map<String, Stats> getStats()
+    {
+        return new TreeMap<String, Stats>(stats);
+    }
+    
+    /**
+     * Stops the worker threads once the queued commands have been run.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+    
+    /**
+     * Execution statistics for one kind of command.
+     */
+    public static class Stats
+    {
+        private long count = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+        
+        private synchronized void record(long nanos)
+        {
+            count++;
+            totalNanos += nanos;
+            if(nanos > maxNanos)
+            {
+                maxNanos = nanos;
+            }
+        }
+        
+        /**
+         * @return Returns the number of executions.
+         */
+        public synchronized long getCount()
+        {
+            return count;
+        }
+        
+        /**
+         * @return Returns the average execution time in microseconds.
+         */
+        public synchronized long getAverageMicros()
+        {
+            return (count == 0) ? 0 : (totalNanos / count / 1000);
+        }
+        
+        /**
+         * @return Returns the longest execution time in microseconds.
+         */
+        public synchronized long getMaxMicros()
+        {
+            return maxNanos / 1000;
+        }
+    }
+    
+    /**
+     * Executor handing its tasks to the pool one at a time.
+     */
+    private class SerialExecutor implements Executor
+    {
+        private ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+        private Runnable active;
+        
+        public synchronized void execute(final Runnable r)
+        {
+            tasks.add(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        r.run();
+                    }
+                    finally
+                    {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(active == null)
+            {
+                scheduleNext();
+            }
+        }
+        
+        private synchronized void scheduleNext()
+        {
+            active = tasks.poll();
+            if(active != null)
+            {
+                pool.execute(active);
+            }
+        }
+    }
+}
@@ -37,12 +37,24 @@ public class Configuration
 {
     public enum FileType { VIDEO, IMAGE }
     
+    //Number of changes remembered for sending deltas to clients
+    private static final int CATALOG_LOG_SIZE = 4096;
+    
     private Player player;
     private Charset charset;
     private String password;
     private FileManager videoManager;
     private FileManager imageManager;
     private List<Integer> slideshowPlaylist;
+    private CatalogLog catalog;
+    private EventBroadcaster events;
+    private FileListSnapshot snapshot;
+    private BufferPool bufferPool;
+    private CommandExecutor commandExecutor;
+    private TransferEngine transferEngine;
+    private StagingArea stagingArea;
+    private ContentIndex contentIndex;
+    private TransferScheduler transferScheduler;
     
     /**
      * Constructs a new Configuration.
@@ -53,9 +65,17 @@ public class Configuration
      * @param videoManager       the FileManager to use for managing video files
      * @param imageManager       the FileManager to use for managing image files
      * @param slideshowPlaylist  the playlist to use for slideshows
+     * @param commandExecutor    the executor to run control commands on
+     * @param bufferPool         the pool to take network buffers from
+     * @param transferEngine     the engine to receive uploads with
+     * @param stagingArea        the directory to keep partial uploads in
+     * @param contentIndex       the index of the stored files by content
+     * @param transferScheduler  the scheduler sharing the bandwidth among uploads
      */
     public Configuration(Player player, Charset charset, String password,
-            FileManager videoManager, FileManager imageManager, List<Integer> slideshowPlaylist)
+            FileManager videoManager, FileManager imageManager, List<Integer> slideshowPlaylist,
+            CommandExecutor commandExecutor, BufferPool bufferPool, TransferEngine transferEngine,
+            StagingArea stagingArea, ContentIndex contentIndex, TransferScheduler transferScheduler)
     {
         this.player = player;
         this.charset = charset;
@@ -63,6 +83,32 @@ public class Configuration
         this.videoManager = videoManager;
         this.imageManager = imageManager;
         this.slideshowPlaylist = slideshowPlaylist;
+        this.commandExecutor = commandExecutor;
+        this.bufferPool = bufferPool;
+        this.transferEngine = transferEngine;
+        this.stagingArea = stagingArea;
+        this.contentIndex = contentIndex;
+        this.transferScheduler = transferScheduler;
+        catalog = new CatalogLog(CATALOG_LOG_SIZE);
+        attachCatalog();
+        events = new EventBroadcaster();
+        catalog.setListener(events);
+        if(player != null)
+        {
+            player.setStateListener(events);
+        }
+    }
+    
+    /**
+     * Makes the FileManagers record their changes in the catalog log and keep the
+     * content index up to date.
+     */
+    private void attachCatalog()
+    {
+        videoManager.setCatalog(catalog, FileType.VIDEO);
+        imageManager.setCatalog(catalog, FileType.IMAGE);
+        videoManager.setContentIndex(contentIndex);
+        imageManager.setContentIndex(contentIndex);
     }
 
     /**
@@ -74,6 +120,70 @@ public class Configuration
     }
     
 
+    /**
+     * @return Returns the pool for network buffers.
+     */
+    public BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+    
+    /**
+     * @return Returns the log of changes to the file lists and playlist.
+     */
+    public CatalogLog getCatalog()
+    {
+        return catalog;
+    }
+    
+    /**
+     * @return Returns the broadcaster for events to clients.
+     */
+    public EventBroadcaster getEvents()
+    {
+        return events;
+    }
+    
+    /**
+     * @return Returns the executor for control commands.
+     */
+    public CommandExecutor getCommandExecutor()
+    {
+        return commandExecutor;
+    }
+    
+    /**
+     * @return Returns the engine uploads are received with.
+     */
+    public TransferEngine getTransferEngine()
+    {
+        return transferEngine;
+    }
+    
+    /**
+     * @return Returns the directory partial uploads are kept in.
+     */
+    public StagingArea getStagingArea()
+    {
+        return stagingArea;
+    }
+    
+    /**
+     * @return Returns the index of the stored files by content.
+     */
+    public ContentIndex getContentIndex()
+    {
+        return contentIndex;
+    }
+    
+    /**
+     * @return Returns the scheduler sharing the bandwidth among uploads.
+     */
+    public TransferScheduler getTransferScheduler()
+    {
+        return transferScheduler;
+    }
+    
     /**
      * @return Returns the imageManager.
      */
@@ -113,9 +223,56 @@ public class Configuration
         return slideshowPlaylist;
     }
 
-    public void setSlideshowPlaylist(List<Integer> slideshowPlaylist)
+    /**
+     * Adds files just put in a managed path, as a single change of the catalog.
+     * 
+     * @param type      the type of the files
+     * @param files     the files to add
+     * @param playlist  <i>true</i> to make the images the slideshow playlist, in order
+     */
+    public void addFiles(FileType type, List<File> files, boolean playlist)
+    {
+        FileManager manager = (type == FileType.VIDEO) ? videoManager : imageManager;
+        catalog.hold();
+        try
+        {
+            List<Integer> ids = new ArrayList<Integer>();
+            for(File file : files)
+            {
+                ids.add(manager.addFile(file));
+            }
+            if(playlist && (type == FileType.IMAGE))
+            {
+                setSlideshowPlaylist(ids);
+            }
+        }
+        finally
+        {
+            catalog.release();
+        }
+    }
+    
+    public synchronized void setSlideshowPlaylist(List<Integer> slideshowPlaylist)
     {
         this.slideshowPlaylist = slideshowPlaylist;
+        catalog.record(CatalogLog.Operation.PLAYLIST, null, -1, null);
+    }
+    
+    /**
+     * Returns a snapshot of the current file lists and playlist, building a new one
+     * only if anything has changed since the last one was built.
+     * 
+     * @return the current file list snapshot
+     */
+    public synchronized FileListSnapshot getFileListSnapshot()
+    {
+        long version = catalog.getVersion();
+        if((snapshot == null) || (snapshot.getVersion() != version))
+        {
+            snapshot = new FileListSnapshot(
+                    videoManager, imageManager, slideshowPlaylist, version, charset);
+        }
+        return snapshot;
     }
     
     /**
@@ -169,7 +326,7 @@ public class Configuration
     /**
      * Loads managers and playlists if file exists.
      */
-    public void load()
+    public synchronized void load()
     {
         File savefile = new File("files.dat");
         if(savefile.exists())
@@ -181,6 +338,8 @@ public class Configuration
                 videoManager = (FileManager)in.readObject();
                 imageManager = (FileManager)in.readObject();
                 slideshowPlaylist = (List<Integer>)in.readObject();
+                attachCatalog();
+                catalog.record(CatalogLog.Operation.RESET, null, -1, null);
             }
             catch(IOException e)
             {
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Index of the files stored by their SHA-256 hash, so that an upload of content the
+ * server already has can be made from the file it has. Files are hashed by a thread
+ * of the index's own as the FileManagers find them, and only again when their size
+ * or modification time changes. The index is saved to a file whenever there is
+ * nothing left to hash, so that files need not be hashed again after a restart.
+ */
+public class ContentIndex
+{
+    private File indexFile;
+    private Map<File, Entry> entries;
+    private Map<String, Set<File>> files;
+    private Set<File> queued;
+    private boolean savePending = false;
+    private ExecutorService hasher;
+    
+    /**
+     * Constructs a new ContentIndex.
+     * 
+     * @param indexFile  the file to save the index in
+     */
+    public ContentIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+        entries = new HashMap<File, Entry>();
+        files = new HashMap<String, Set<File>>();
+        queued = new HashSet<File>();
+        hasher = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Content hasher");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Loads the index saved before, leaving out files that no longer exist.
+     */
+    public synchronized void load()
+    {
+        if(!indexFile.exists())
+        {
+            return;
+        }
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            String line;
+            while((line = in.readLine()) != null)
+            {
+                //hash size modified path, the path last since it may hold spaces
+                String[] split = line.split(" ", 4);
+                if(split.length != 4)
+                {
+                    continue;
+                }
+                File file = new File(split[3]);
+                if(file.exists())
+                {
+                    put(file, new Entry(split[0], Long.parseLong(split[1]), Long.parseLong(split[2])));
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to load content index: " + e.getMessage());
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Content index is corrupt, files will be hashed again.");
+        }
+        finally
+        {
+            try
+            {
+                if(in != null)
+                {
+                    in.close();
+                }
+            }
+            catch(IOException e) {}
+        }
+    }
+    
+    /**
+     * Saves the index. Lookups are not held up while it is written.
+     */
+    public void save()
+    {
+        StringBuilder sb;
+        synchronized(this)
+        {
+            sb = new StringBuilder(entries.size() * 128);
+            for(Map.Entry<File, Entry> e : entries.entrySet())
+            {
+                Entry entry = e.getValue();
+                sb.append(entry.hash).append(' ').append(entry.size).append(' ').append(entry.modified)
+                    .append(' ').append(e.getKey().getPath()).append('\n');
+            }
+        }
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        PrintWriter out = null;
+        try
+        {
+            out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            out.print(sb);
+            //The writer keeps its errors to itself, a cut off index must not replace the old one
+            boolean failed = out.checkError();
+            out.close();
+            out = null;
+            if(failed)
+            {
+                System.err.println("Unable to save content index: write to " + tmp + " failed");
+                tmp.delete();
+                return;
+            }
+            Flusher.move(tmp, indexFile);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to save content index: " + e.getMessage());
+        }
+        finally
+        {
+            if(out != null)
+            {
+                out.close();
+            }
+        }
+    }
+    
+    /**
+     * Hashes a file in the background unless it is known and has not changed.
+     * 
+     * @param file  the file to index
+     */
+    public synchronized void update(final File file)
+    {
+        Entry entry = entries.get(file);
+        if(((entry != null) && entry.matches(file)) || !queued.add(file))
+        {
+            return;
+        }
+        hasher.execute(new Runnable()
+        {
+            public void run()
+            {
+                String hash = null;
+                try
+                {
+                    if(file.isFile())
+                    {
+                        long size = file.length();
+                        long modified = file.lastModified();
+                        hash = hash(file);
+                        if((file.length() == size) && (file.lastModified() == modified))
+                        {
+                            add(file, hash, size, modified);
+                        }
+                    }
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Unable to hash " + file + ": " + e.getMessage());
+                }
+                boolean idle;
+                synchronized(ContentIndex.this)
+                {
+                    queued.remove(file);
+                    idle = queued.isEmpty();
+                }
+                if(idle)
+                {
+                    save();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Adds a file whose hash is already known.
+     * 
+     * @param file  the file
+     * @param hash  the SHA-256 hash of its content
+     */
+    public void add(File file, String hash)
+    {
+        add(file, hash, file.length(), file.lastModified());
+        synchronized(this)
+        {
+            if(!queued.isEmpty() || savePending)
+            {
+                //Saved once the hashing or the save already asked for is done
+                return;
+            }
+            savePending = true;
+        }
+        hasher.execute(new Runnable()
+        {
+            public void run()
+            {
+                synchronized(ContentIndex.this)
+                {
+                    savePending = false;
+                }
+                save();
+            }
+        });
+    }
+    
+    private synchronized void add(File file, String hash, long size, long modified)
+    {
+        remove(file);
+        put(file, new Entry(hash, size, modified));
+    }
+    
+    /**
+     * Removes a file from the index.
+     * 
+     * @param file  the file to remove
+     */
+    public synchronized void remove(File file)
+    {
+        Entry entry = entries.remove(file);
+        if(entry != null)
+        {
+            Set<File> same = files.get(entry.hash);
+            same.remove(file);
+            if(same.isEmpty())
+            {
+                files.remove(entry.hash);
+            }
+        }
+    }
+    
+    /**
+     * Moves the entry of a file that has been renamed, so it need not be hashed again.
+     * 
+     * @param from  the old file
+     * @param to    the new file
+     */
+    public synchronized void rename(File from, File to)
+    {
+        Entry entry = entries.get(from);
+        remove(from);
+        if(entry != null)
+        {
+            put(to, entry);
+        }
+        update(to);
+    }
+    
+    /**
+     * Returns a stored file with the specified content.
+     * 
+     * @param hash  the SHA-256 hash of the content, in lower case hex
+     * @param size  the size of the content
+     * 
+     * @return a file with the content which has not changed since hashed, or
+     *         <i>null</i> if there is none
+     */
+    public synchronized File find(String hash, long size)
+    {
+        Set<File> same = files.get(hash);
+        if(same != null)
+        {
+            for(File file : same)
+            {
+                Entry entry = entries.get(file);
+                if((entry.size == size) && entry.matches(file))
+                {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the hash of a file as indexed, without looking at the file.
+     * 
+     * @param file      the file
+     * @param size      the size the file is known to have
+     * @param modified  the modification time the file is known to have
+     * 
+     * @return the hash in lower case hex, or <i>null</i> if the file has not been
+     *         hashed with that size and modification time
+     */
+    public synchronized String getHash(File file, long size, long modified)
+    {
+        Entry entry = entries.get(file);
+        return ((entry != null) && (entry.size == size) && (entry.modified == modified)) ? entry.hash : null;
+    }
+    
+    private void put(File file, Entry entry)
+    {
+        entries.put(file, entry);
+        Set<File> same = files.get(entry.hash);
+        if(same == null)
+        {
+            same = new HashSet<File>(2);
+            files.put(entry.hash, same);
+        }
+        same.add(file);
+    }
+    
+    /**
+     * Calculates the SHA-256 hash of a file.
+     * 
+     * @param file  the file to hash
+     * 
+     * @return the hash in lower case hex
+     * 
+     * @throws IOException  if the file could not be read
+     */
+    public static String hash(File file) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IOException("SHA-256 not supported");
+        }
+        FileChannel ch = new FileInputStream(file).getChannel();
+        try
+        {
+            ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+            while(ch.read(buf) != -1)
+            {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        finally
+        {
+            ch.close();
+        }
+        return toHex(digest.digest());
+    }
+    
+    static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+        {
+            String hex = Integer.toHexString(0xFF & b);
+            if(hex.length() < 2)
+            {
+                sb.append("0");
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * The hash of a file and the size and modification time it had when hashed.
+     */
+    private static class Entry
+    {
+        private String hash;
+        private long size;
+        private long modified;
+        
+        public Entry(String hash, long size, long modified)
+        {
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+        
+        public boolean matches(File file)
+        {
+            return (file.length() == size) && (file.lastModified() == modified) && file.isFile();
+        }
+    }
+}
@@ -21,7 +21,6 @@ package de.berlios.projicast.server;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
@@ -30,26 +29,31 @@ import java.nio.channels.SocketChannel;
  */
 public class ControlAcceptor implements Acceptor
 {
-    private Selector selector;
+    private ServerThread server;
     private Configuration config;
     
     /**
-     * Constructs a new acceptor registering channels to the specified selector.
+     * Constructs a new acceptor handing channels over to the reactors of the specified server.
      * 
-     * @param selector  the selector to register to
-     * @param config    the config to use
+     * @param server  the server to dispatch accepted channels through
+     * @param config  the config to use
      */
-    public ControlAcceptor(Selector selector, Configuration config)
+    public ControlAcceptor(ServerThread server, Configuration config)
     {
-        this.selector = selector;
+        this.server = server;
         this.config = config;
     }
     
     public void accept(SelectionKey key) throws IOException
     {
         ServerSocketChannel ssc = (ServerSocketChannel)key.channel();
-        SocketChannel ch = ssc.accept();
-        ch.configureBlocking(false);
-        ch.register(selector, SelectionKey.OP_READ, new ControlSession(ch, config));
+        SocketChannel ch;
+        //Drain the backlog so a burst of connections is accepted in one go
+        while((ch = ssc.accept()) != null)
+        {
+            ch.configureBlocking(false);
+            TransferScheduler.mark(ch.socket(), true);
+            server.dispatch(ch, new ControlSession(ch, config));
+        }
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.List;
+
+
+/**
+ * Writes the replies and events of a ControlSession in the protocol the client
+ * uses. Every reply is written between {@link #begin(ControlCommand)} and
+ * {@link #end()}, so that it can be matched to its command, and so is every
+ * group of events, with <i>null</i> instead of a command.
+ */
+public interface ControlCodec
+{
+    /**
+     * Starts the reply to the specified command, or events if <i>null</i>.
+     * 
+     * @param command  the command replied to
+     */
+    void begin(ControlCommand command);
+    
+    /**
+     * Finishes the reply and hands it over for sending.
+     */
+    void end();
+    
+    /**
+     * Writes a successful reply.
+     * 
+     * @param text  the reply in the text protocol
+     */
+    void ok(String text);
+    
+    /**
+     * Writes an error reply.
+     * 
+     * @param message  the error message
+     */
+    void error(String message);
+    
+    /**
+     * Writes the whole file list as sent after login.
+     * 
+     * @param epoch     the catalog epoch
+     * @param snapshot  the file list
+     */
+    void fileList(String epoch, FileListSnapshot snapshot);
+    
+    /**
+     * Writes the whole file list as the reply to a sync.
+     * 
+     * @param epoch     the catalog epoch
+     * @param snapshot  the file list
+     */
+    void syncFull(String epoch, FileListSnapshot snapshot);
+    
+    /**
+     * Starts the changes sent as the reply to a sync, to be followed
+     * by the changes and {@link #syncEnd()}.
+     * 
+     * @param epoch    the catalog epoch
+     * @param version  the version the changes lead to
+     */
+    void syncDelta(String epoch, long version);
+    
+    void added(Configuration.FileType type, int id, String name);
+    
+    void renamed(Configuration.FileType type, int id, String name);
+    
+    void removed(Configuration.FileType type, int id);
+    
+    void playlist(List<Integer> ids);
+    
+    void syncEnd();
+    
+    void statsQueue(int depth);
+    
+    void stat(String name, CommandExecutor.Stats stats);
+    
+    void statsEnd();
+    
+    void playerState(Player.State state);
+    
+    void uploaded(Configuration.FileType type, String filename);
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A command received by a ControlSession, either a line of the text protocol or
+ * a decoded frame of the binary protocol.
+ */
+public class ControlCommand
+{
+    private String line;
+    
+    private byte opcode;
+    private long requestID;
+    private String epoch;
+    private long version;
+    private int id;
+    private Configuration.FileType type;
+    private String text;
+    private List<Integer> ids;
+    private long rate;
+    
+    /**
+     * Constructs a text command.
+     * 
+     * @param line  the line received
+     */
+    public ControlCommand(String line)
+    {
+        this.line = line;
+    }
+    
+    private ControlCommand()
+    {
+    }
+    
+    /**
+     * Decodes a binary command.
+     * 
+     * @param frame  the frame, from the opcode to the end of the payload
+     * 
+     * @return the command
+     * 
+     * @throws IllegalArgumentException  if the frame is not a valid command
+     */
+    public static ControlCommand decode(ByteBuffer frame)
+    {
+        ControlCommand c = new ControlCommand();
+        try
+        {
+            c.opcode = frame.get();
+            c.requestID = BinaryProtocol.getVarLong(frame);
+            switch(c.opcode)
+            {
+                case BinaryProtocol.REFRESH:
+                case BinaryProtocol.SYNC:
+                case BinaryProtocol.SUBSCRIBE:
+                    c.epoch = BinaryProtocol.getString(frame);
+                    c.version = BinaryProtocol.getVarLong(frame);
+                    break;
+                case BinaryProtocol.PLAY:
+                case BinaryProtocol.IMAGE:
+                    c.id = BinaryProtocol.getVarInt(frame);
+                    break;
+                case BinaryProtocol.DELETE:
+                    c.type = BinaryProtocol.getType(frame);
+                    c.id = BinaryProtocol.getVarInt(frame);
+                    break;
+                case BinaryProtocol.TEXT:
+                    c.text = BinaryProtocol.getString(frame);
+                    break;
+                case BinaryProtocol.SET_PLAYLIST:
+                    int count = BinaryProtocol.getVarInt(frame);
+                    c.ids = new ArrayList<Integer>(Math.min(count, frame.remaining()));
+                    for(int i = 0; i < count; i++)
+                    {
+                        c.ids.add(BinaryProtocol.getVarInt(frame));
+                    }
+                    break;
+                case BinaryProtocol.LIMIT:
+                    c.rate = BinaryProtocol.getVarLong(frame);
+                    break;
+                case BinaryProtocol.SLIDESHOW:
+                case BinaryProtocol.STOP:
+                case BinaryProtocol.STATS:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + c.opcode);
+            }
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return c;
+    }
+    
+    /**
+     * @return Returns <i>true</i> if this is a line of the text protocol.
+     */
+    public boolean isText()
+    {
+        return line != null;
+    }
+    
+    /**
+     * Returns the name of the command for statistics, that is the first word of a
+     * text command after any request ID, or the name of the binary opcode.
+     * 
+     * @return the name of the command
+     */
+    public String getName()
+    {
+        if(line == null)
+        {
+            switch(opcode)
+            {
+                case BinaryProtocol.REFRESH: return "REFRESH";
+                case BinaryProtocol.SYNC: return "SYNC";
+                case BinaryProtocol.SUBSCRIBE: return "SUBSCRIBE";
+                case BinaryProtocol.SLIDESHOW: return "SLIDESHOW";
+                case BinaryProtocol.STOP: return "STOP";
+                case BinaryProtocol.PLAY: return "PLAY";
+                case BinaryProtocol.IMAGE: return "IMAGE";
+                case BinaryProtocol.TEXT: return "TEXT";
+                case BinaryProtocol.DELETE: return "DELETE";
+                case BinaryProtocol.SET_PLAYLIST: return "PLIST";
+                case BinaryProtocol.LIMIT: return "LIMIT";
+                default: return "STATS";
+            }
+        }
+        int start = 0;
+        if(line.startsWith("#"))
+        {
+            start = line.indexOf(' ') + 1;
+        }
+        int pos = line.indexOf(' ', start);
+        return (pos == -1) ? line.substring(start) : line.substring(start, pos);
+    }
+    
+    /**
+     * @return Returns the line of a text command.
+     */
+    public String getLine()
+    {
+        return line;
+    }
+    
+    /**
+     * @return Returns the opcode of a binary command.
+     */
+    public byte getOpcode()
+    {
+        return opcode;
+    }
+    
+    /**
+     * @return Returns the request ID of a binary command.
+     */
+    public long getRequestID()
+    {
+        return requestID;
+    }
+    
+    /**
+     * @return Returns the catalog epoch argument.
+     */
+    public String getEpoch()
+    {
+        return epoch;
+    }
+    
+    /**
+     * @return Returns the catalog version argument.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * @return Returns the bandwidth limit argument in kilobytes per second.
+     */
+    public long getRate()
+    {
+        return rate;
+    }
+    
+    /**
+     * @return Returns the file ID argument.
+     */
+    public int getID()
+    {
+        return id;
+    }
+    
+    /**
+     * @return Returns the file type argument.
+     */
+    public Configuration.FileType getType()
+    {
+        return type;
+    }
+    
+    /**
+     * @return Returns the text argument.
+     */
+    public String getText()
+    {
+        return text;
+    }
+    
+    /**
+     * @return Returns the file IDs of a playlist.
+     */
+    public List<Integer> getIDs()
+    {
+        return ids;
+    }
+}
@@ -23,20 +23,34 @@ import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.CharacterCodingException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Class for collecting char data read from a buffer and assembling strings from 
- * it when complete lines are available.
+ * it when complete lines are available. The commands are executed in order on
+ * the workers of the server's CommandExecutor, never on the reactor thread.
+ * <p>
+ * A client that has sent "SUBSCRIBE" is also sent events, lines starting with
+ * "EVENT", between the replies to its commands. Events that happen while
+ * earlier ones are still waiting to be sent are merged with them.
+ * <p>
+ * A command may start with a request ID, "#&lt;id&gt; ", which is then put in
+ * front of the first line of the reply. This lets a client send many commands
+ * without waiting and match the replies afterwards. Commands are still executed
+ * one at a time in the order received, and the lines of a reply are never
+ * separated by other output.
+ * <p>
+ * A client greeting with "PROJICAST BINARY" is answered "PROJICAST AUTH
+ * &lt;string&gt; BINARY" and talks the {@link BinaryProtocol} after login.
  */
 public class ControlSession extends BasicInputHandler
 {
@@ -50,6 +64,33 @@ public class ControlSession extends BasicInputHandler
     
     private List<Integer> tmpPlaylist;
     
+    //Reading from the client is paused while this many commands are waiting
+    private static final int MAX_PENDING = 256;
+    private static final int RESUME_PENDING = 64;
+    
+    private Executor serial;
+    private AtomicInteger pending = new AtomicInteger();
+    
+    //Replies are written through the codec, which changes to binary after login if asked for
+    private ControlCodec codec;
+    private boolean binaryRequested = false;
+    private volatile boolean binary = false;
+    
+    //The catalog version the client is known to have, kept up to date for events
+    private String knownEpoch = "-";
+    private long knownVersion = 0;
+    private boolean subscribed = false;
+    
+    //Events waiting to be sent, guarded by eventLock
+    private final Object eventLock = new Object();
+    private boolean eventsScheduled = false;
+    private boolean catalogChanged = false;
+    private Player.State playerState;
+    private List<Upload> uploads = new ArrayList<Upload>();
+    
+    //Upload events beyond this many are dropped, the catalog event still covers the files
+    private static final int MAX_UPLOAD_EVENTS = 64;
+    
     /**
      * Creates a new Session with the specified Charset and password.
      * 
@@ -59,40 +100,124 @@ public class ControlSession extends BasicInputHandler
      */
     public ControlSession(SocketChannel ch, Configuration configuration)
     {
-        super(ch, configuration.getCharset().newDecoder(), configuration.getCharset().newEncoder());
+        super(ch, configuration.getCharset().newDecoder(), configuration.getCharset().newEncoder(),
+                configuration.getBufferPool(), 4 * 1024);
         this.ch = ch;
         this.configuration = configuration;
+        serial = configuration.getCommandExecutor().newSerialExecutor();
+        codec = new TextControlCodec(this, configuration.getCharset().name());
     }
     
     public void input(ByteBuffer ibuf)
     {
+        //Collect all complete commands and hand them to the workers in one go
+        final List<ControlCommand> commands = new ArrayList<ControlCommand>();
         try
         {
-            cInput(ibuf);
+            if(binary)
+            {
+                ByteBuffer frame;
+                while((frame = BinaryProtocol.nextFrame(ibuf, MAX_LINE_LENGTH)) != null)
+                {
+                    commands.add(ControlCommand.decode(frame));
+                }
+            }
+            else
+            {
+                CharSequence command;
+                while((command = getLine(ibuf)) != null)
+                {
+                    commands.add(new ControlCommand(command.toString()));
+                }
+            }
         }
         catch(CharacterCodingException e)
         {
             System.err.println("Error while decoding characters: " + e.getMessage());
             close();
         }
-        String command = null;
+        catch(IOException e)
+        {
+            System.err.println("Error while reading command: " + e.getMessage());
+            close();
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Invalid command: " + e.getMessage());
+            close();
+        }
+        if(commands.isEmpty())
+        {
+            return;
+        }
         
-        //Until the are no commands left in the buffer, run them
-        do
+        final CommandExecutor executor = configuration.getCommandExecutor();
+        executor.enqueued(commands.size());
+        if(pending.addAndGet(commands.size()) >= MAX_PENDING)
+        {
+            setInputPaused(true);
+        }
+        serial.execute(new Runnable()
         {
-            command = getLine();
-            if(command != null)
+            public void run()
             {
-                if(state != State.LOGGED_IN)
+                for(ControlCommand command : commands)
                 {
-                    auth(command);
+                    long start = System.nanoTime();
+                    if(ch.isOpen())
+                    {
+                        execute(command);
+                    }
+                    executor.completed(command.getName(), System.nanoTime() - start);
+                    if(pending.decrementAndGet() == RESUME_PENDING)
+                    {
+                        setInputPaused(false);
+                    }
                 }
-                else
+            }
+        });
+    }
+    
+    /**
+     * Executes a command on a worker thread.
+     * 
+     * @param command  the command
+     */
+    private void execute(ControlCommand command)
+    {
+        codec.begin(command);
+        try
+        {
+            if(!command.isText())
+            {
+                processBinary(command);
+                return;
+            }
+            
+            String line = command.getLine();
+            if(line.startsWith("#"))
+            {
+                int pos = line.indexOf(' ');
+                if(pos == -1)
                 {
-                    process(command);
+                    close();
+                    return;
                 }
+                line = line.substring(pos + 1);
             }
-        } while(command != null);
+            if(state != State.LOGGED_IN)
+            {
+                auth(line);
+            }
+            else
+            {
+                process(line);
+            }
+        }
+        finally
+        {
+            codec.end();
+        }
     }
     
     /**
@@ -108,7 +233,14 @@ public class ControlSession extends BasicInputHandler
                 if(command.equals("PROJICAST"))
                 {
                     authString = Security.generate(128);
-                    writeCommand("PROJICAST AUTH " + authString);
+                    codec.ok("PROJICAST AUTH " + authString);
+                    state = State.AUTH_STRING_SENT;
+                }
+                else if(command.equals("PROJICAST BINARY"))
+                {
+                    authString = Security.generate(128);
+                    codec.ok("PROJICAST AUTH " + authString + " BINARY");
+                    binaryRequested = true;
                     state = State.AUTH_STRING_SENT;
                 }
                 else
@@ -124,13 +256,20 @@ public class ControlSession extends BasicInputHandler
                     String expect = Security.digest(configuration.getPassword() + authString);
                     if(split[1].equals(expect))
                     {
-                        writeCommand("AUTH OK");
+                        //Switch before replying, the client may send frames as soon as it sees AUTH OK
+                        binary = binaryRequested;
+                        codec.ok("AUTH OK");
+                        if(binary)
+                        {
+                            codec.end();
+                            codec = new BinaryControlCodec(this);
+                        }
                         sendFileList();
                         state = State.LOGGED_IN;
                     }
                     else
                     {
-                        writeCommand("ERROR Invalid auth");
+                        codec.error("Invalid auth");
                         close();
                     }
                 }
@@ -162,16 +301,42 @@ public class ControlSession extends BasicInputHandler
                     configuration.save();
                     return;
                 }
+                else if((split.length == 3) && split[0].equals("REFRESH"))
+                {
+                    configuration.getVideoManager().refresh();
+                    configuration.getImageManager().refresh();
+                    writeChanges(split[1], Long.parseLong(split[2]));
+                    configuration.save();
+                    return;
+                }
+                else if((split.length == 3) && split[0].equals("SYNC"))
+                {
+                    writeChanges(split[1], Long.parseLong(split[2]));
+                    return;
+                }
+                else if((split.length == 3) && split[0].equals("SUBSCRIBE"))
+                {
+                    subscribe(split[1], Long.parseLong(split[2]));
+                    return;
+                }
                 else if(command.equals("SLIDESHOW"))
                 {
-                    configuration.getPlayer().slideshow(configuration.playlistAsFiles());
-                    writeCommand("SLIDESHOW OK");
+                    slideshow();
+                    return;
+                }
+                else if(command.equals("STATS"))
+                {
+                    sendStats();
                     return;
                 }
                 else if(command.equals("STOP"))
                 {
-                    configuration.getPlayer().stop();
-                    writeCommand("STOP OK");
+                    stop();
+                    return;
+                }
+                else if((split.length == 2) && split[0].equals("LIMIT"))
+                {
+                    limit(Long.parseLong(split[1]));
                     return;
                 }
                 else if((split.length == 2) && split[0].equals("PLAY"))
@@ -231,6 +396,101 @@ public class ControlSession extends BasicInputHandler
         }
     }
     
+    /**
+     * Process a command of the binary protocol.
+     * 
+     * @param command  the command
+     */
+    private void processBinary(ControlCommand command)
+    {
+        try
+        {
+            switch(command.getOpcode())
+            {
+                case BinaryProtocol.REFRESH:
+                    configuration.getVideoManager().refresh();
+                    configuration.getImageManager().refresh();
+                    writeChanges(command.getEpoch(), command.getVersion());
+                    configuration.save();
+                    break;
+                case BinaryProtocol.SYNC:
+                    writeChanges(command.getEpoch(), command.getVersion());
+                    break;
+                case BinaryProtocol.SUBSCRIBE:
+                    subscribe(command.getEpoch(), command.getVersion());
+                    break;
+                case BinaryProtocol.SLIDESHOW:
+                    slideshow();
+                    break;
+                case BinaryProtocol.STOP:
+                    stop();
+                    break;
+                case BinaryProtocol.PLAY:
+                    playVideo(command.getID());
+                    break;
+                case BinaryProtocol.IMAGE:
+                    displayImage(command.getID());
+                    break;
+                case BinaryProtocol.TEXT:
+                    displayText(command.getText());
+                    break;
+                case BinaryProtocol.DELETE:
+                    deleteFile(command.getID(), command.getType());
+                    break;
+                case BinaryProtocol.SET_PLAYLIST:
+                    configuration.setSlideshowPlaylist(command.getIDs());
+                    codec.ok("PLIST OK");
+                    configuration.save();
+                    break;
+                case BinaryProtocol.STATS:
+                    sendStats();
+                    break;
+                case BinaryProtocol.LIMIT:
+                    limit(command.getRate());
+                    break;
+            }
+        }
+        catch(Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Starts the slideshow and replies thereafter.
+     */
+    private void slideshow()
+    {
+        configuration.getPlayer().slideshow(configuration.playlistAsFiles());
+        codec.ok("SLIDESHOW OK");
+    }
+    
+    /**
+     * Stops all playing and replies thereafter.
+     */
+    private void stop()
+    {
+        configuration.getPlayer().stop();
+        codec.ok("STOP OK");
+    }
+    
+    /**
+     * Changes the bandwidth limit for uploads and replies thereafter.
+     * 
+     * @param rate  the most kilobytes per second to receive in total, like the
+     *              transferLimit config key, 0 for no limit
+     */
+    private void limit(long rate)
+    {
+        if((rate < 0) || (rate > (Long.MAX_VALUE / 1024)))
+        {
+            codec.error("Invalid limit");
+            return;
+        }
+        configuration.getTransferScheduler().setRate(rate * 1024);
+        codec.ok("LIMIT OK");
+    }
+    
     /**
      * Plays the video file with the specified ID and replies thereafter.
      * 
@@ -244,11 +504,11 @@ public class ControlSession extends BasicInputHandler
         if(file != null)
         {
             configuration.getPlayer().playVideo(file);
-            writeCommand("PLAY OK");
+            codec.ok("PLAY OK");
         }
         else
         {
-            writeCommand("ERROR File not on server");
+            codec.error("File not on server");
         }
     }
     
@@ -272,11 +532,11 @@ public class ControlSession extends BasicInputHandler
             {
                 configuration.getImageManager().refresh();
             }
-            writeCommand("IMAGE OK");
+            codec.ok("IMAGE OK");
         }
         else
         {
-            writeCommand("ERROR File not on server");
+            codec.error("File not on server");
         }
     }
     
@@ -291,7 +551,7 @@ public class ControlSession extends BasicInputHandler
                 text,
                 new Font("Arial", Font.BOLD, 40),
                 Color.WHITE, 100, 100);
-        writeCommand("TEXT OK");
+        codec.ok("TEXT OK");
     }
     
     /**
@@ -312,16 +572,13 @@ public class ControlSession extends BasicInputHandler
                 manager = configuration.getImageManager();
                 break;
         }
-        File file = manager.getFile(id);
-        if(file != null)
+        if(manager.deleteFile(id))
         {
-            file.delete();
-            manager.refresh();
-            writeCommand("DELETE OK");
+            codec.ok("DELETE OK");
         }
         else
         {
-            writeCommand("ERROR File not on server");
+            codec.error("File not on server");
         }
     }
     
@@ -330,37 +587,217 @@ public class ControlSession extends BasicInputHandler
      */
     private void sendFileList()
     {
+        FileListSnapshot snapshot = configuration.getFileListSnapshot();
+        knownEpoch = configuration.getCatalog().getEpoch();
+        knownVersion = snapshot.getVersion();
+        codec.fileList(knownEpoch, snapshot);
+    }
+    
+    /**
+     * Writes the changes to the file lists and playlist made since the specified
+     * catalog version, or the whole list if the changes are no longer known, either
+     * as a reply or as an event. In the text protocol the client gets either
+     * "SYNC FULL &lt;epoch&gt; &lt;version&gt;" followed by the full list, or
+     * "SYNC DELTA &lt;epoch&gt; &lt;version&gt;" followed by the changes and
+     * "SYNC END".
+     * 
+     * @param epoch    the epoch the client's version belongs to
+     * @param version  the catalog version the client has
+     */
+    private void writeChanges(String epoch, long version)
+    {
+        CatalogLog catalog = configuration.getCatalog();
+        List<CatalogLog.Change> changes = catalog.changesSince(epoch, version);
+        knownEpoch = catalog.getEpoch();
+        if(changes == null)
+        {
+            FileListSnapshot snapshot = configuration.getFileListSnapshot();
+            knownVersion = snapshot.getVersion();
+            codec.syncFull(knownEpoch, snapshot);
+            return;
+        }
+        
+        if(!changes.isEmpty())
+        {
+            version = changes.get(changes.size() - 1).getVersion();
+        }
+        knownVersion = version;
+        codec.syncDelta(knownEpoch, version);
+        boolean playlistChanged = false;
+        for(CatalogLog.Change change : changes)
+        {
+            switch(change.getOperation())
+            {
+                case ADD:
+                    codec.added(change.getType(), change.getID(), change.getName());
+                    break;
+                case RENAME:
+                    codec.renamed(change.getType(), change.getID(), change.getName());
+                    break;
+                case REMOVE:
+                    codec.removed(change.getType(), change.getID());
+                    break;
+                case PLAYLIST:
+                    playlistChanged = true;
+                    break;
+            }
+        }
+        if(playlistChanged)
+        {
+            codec.playlist(configuration.getSlideshowPlaylist());
+        }
+        codec.syncEnd();
+    }
+    
+    /**
+     * Subscribes the client to events.
+     * 
+     * @param epoch    the epoch the client's version belongs to
+     * @param version  the catalog version the client has
+     */
+    private void subscribe(String epoch, long version)
+    {
+        knownEpoch = epoch;
+        knownVersion = version;
+        subscribed = true;
+        configuration.getEvents().subscribe(this);
+        codec.ok("SUBSCRIBE OK");
+        
+        //Catch the client up if it is already behind
+        CatalogLog catalog = configuration.getCatalog();
+        if(!epoch.equals(catalog.getEpoch()) || (version != catalog.getVersion()))
+        {
+            postCatalogChanged();
+        }
+    }
+    
+    /**
+     * Notes that the catalog has changed, to be sent to the client as an event.
+     */
+    public void postCatalogChanged()
+    {
+        synchronized(eventLock)
+        {
+            catalogChanged = true;
+            scheduleEvents();
+        }
+    }
+    
+    /**
+     * Notes that the state of the player has changed, to be sent to the client as an event.
+     * 
+     * @param state  the new state
+     */
+    public void postPlayerState(Player.State state)
+    {
+        synchronized(eventLock)
+        {
+            playerState = state;
+            scheduleEvents();
+        }
+    }
+    
+    /**
+     * Notes that a file has been uploaded, to be sent to the client as an event.
+     * 
+     * @param type      the type of the file
+     * @param filename  the name of the file
+     */
+    public void postUploadFinished(Configuration.FileType type, String filename)
+    {
+        synchronized(eventLock)
+        {
+            if(uploads.size() < MAX_UPLOAD_EVENTS)
+            {
+                uploads.add(new Upload(type, filename));
+            }
+            scheduleEvents();
+        }
+    }
+    
+    /**
+     * Makes sure the pending events will be sent. They are sent from the session's
+     * serial executor so that they never end up in the middle of a reply.
+     */
+    private void scheduleEvents()
+    {
+        if(!eventsScheduled)
+        {
+            eventsScheduled = true;
+            serial.execute(new Runnable()
+            {
+                public void run()
+                {
+                    sendEvents();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Sends all pending events to the client.
+     */
+    private void sendEvents()
+    {
+        boolean catalog;
+        Player.State player;
+        List<Upload> uploaded;
+        synchronized(eventLock)
+        {
+            catalog = catalogChanged;
+            player = playerState;
+            uploaded = uploads;
+            catalogChanged = false;
+            playerState = null;
+            uploads = new ArrayList<Upload>();
+            eventsScheduled = false;
+        }
+        if(!ch.isOpen() || !subscribed)
+        {
+            return;
+        }
+        
+        codec.begin(null);
         try
         {
-            writeCommand("LIST BEGIN");
-            Map<Integer, File> files = configuration.getVideoManager().getFileList();
-            String encodedName;
-            for(Map.Entry<Integer, File> entry : files.entrySet())
+            CatalogLog log = configuration.getCatalog();
+            if(catalog && (!knownEpoch.equals(log.getEpoch()) || (knownVersion != log.getVersion())))
             {
-                encodedName = URLEncoder.encode(entry.getValue().getName(), configuration.getCharset().name());
-                writeCommand("VIDEO " + entry.getKey() + " " + encodedName);
+                writeChanges(knownEpoch, knownVersion);
             }
-            
-            files = configuration.getImageManager().getFileList();
-            for(Map.Entry<Integer, File> entry : files.entrySet())
+            if(player != null)
             {
-                encodedName = URLEncoder.encode(entry.getValue().getName(), configuration.getCharset().name());
-                writeCommand("IMAGE " + entry.getKey() + " " + encodedName);
+                codec.playerState(player);
             }
-            
-            List<Integer> plist = configuration.getSlideshowPlaylist();
-            for(Integer item : plist)
+            for(Upload upload : uploaded)
             {
-                writeCommand("PLIST " + item.toString());
+                codec.uploaded(upload.type, upload.filename);
             }
-            
-            writeCommand("LIST END");
         }
-        catch(UnsupportedEncodingException e)
+        finally
         {
-            //should never happen
-            close();
+            codec.end();
+        }
+    }
+    
+    public void close()
+    {
+        configuration.getEvents().unsubscribe(this);
+        super.close();
+    }
+    
+    /**
+     * Sends the command queue depth and execution times to the client.
+     */
+    private void sendStats()
+    {
+        CommandExecutor executor = configuration.getCommandExecutor();
+        codec.statsQueue(executor.getQueueDepth());
+        for(Map.Entry<String, CommandExecutor.Stats> entry : executor.getStats().entrySet())
+        {
+            codec.stat(entry.getKey(), entry.getValue());
         }
+        codec.statsEnd();
     }
     
     /**
@@ -374,7 +811,7 @@ public class ControlSession extends BasicInputHandler
             {
                 subState = SubState.RECEIVING_PLAYLIST;
                 tmpPlaylist = new ArrayList<Integer>();
-                writeCommand("PLIST READY");
+                codec.ok("PLIST READY");
             }
             else if(subState == SubState.RECEIVING_PLAYLIST)
             {
@@ -383,7 +820,7 @@ public class ControlSession extends BasicInputHandler
                     configuration.setSlideshowPlaylist(tmpPlaylist);
                     tmpPlaylist = null;
                     subState = SubState.IDLE;
-                    writeCommand("PLIST OK");
+                    codec.ok("PLIST OK");
                     configuration.save();
                 }
                 else
@@ -397,4 +834,19 @@ public class ControlSession extends BasicInputHandler
             close();
         }
     }
+    
+    /**
+     * An upload waiting to be told about.
+     */
+    private static class Upload
+    {
+        private Configuration.FileType type;
+        private String filename;
+        
+        private Upload(Configuration.FileType type, String filename)
+        {
+            this.type = type;
+            this.filename = filename;
+        }
+    }
 }
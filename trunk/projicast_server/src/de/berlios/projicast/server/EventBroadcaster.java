@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.concurrent.CopyOnWriteArraySet;
+
+
+/**
+ * Passes catalog, player and upload events on to the control sessions that have
+ * subscribed to them. Sessions only take note of the events here and send them
+ * to their clients later, so none of these methods block.
+ */
+public class EventBroadcaster implements CatalogLog.Listener, Player.StateListener
+{
+    private CopyOnWriteArraySet<ControlSession> sessions;
+    
+    /**
+     * Constructs a new EventBroadcaster.
+     */
+    public EventBroadcaster()
+    {
+        sessions = new CopyOnWriteArraySet<ControlSession>();
+    }
+    
+    /**
+     * Starts sending events to the specified session.
+     * 
+     * @param session  the session to send events to
+     */
+    public void subscribe(ControlSession session)
+    {
+        sessions.add(session);
+    }
+    
+    /**
+     * Stops sending events to the specified session.
+     * 
+     * @param session  the session to stop sending events to
+     */
+    public void unsubscribe(ControlSession session)
+    {
+        sessions.remove(session);
+    }
+    
+    public void catalogChanged(long version)
+    {
+        for(ControlSession session : sessions)
+        {
+            session.postCatalogChanged();
+        }
+    }
+    
+    public void stateChanged(Player.State state)
+    {
+        for(ControlSession session : sessions)
+        {
+            session.postPlayerState(state);
+        }
+    }
+    
+    /**
+     * Tells the subscribed sessions that a file has been uploaded.
+     * 
+     * @param type      the type of the file
+     * @param filename  the name of the file
+     */
+    public void uploadFinished(Configuration.FileType type, String filename)
+    {
+        for(ControlSession session : sessions)
+        {
+            session.postUploadFinished(type, filename);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An immutable, pre-encoded copy of the file list as sent to clients, from
+ * "LIST BEGIN" to "LIST END", and of the same list in the binary protocol. A
+ * snapshot is built once for a given version of the catalog and then written to
+ * any number of sessions.
+ */
+public class FileListSnapshot
+{
+    private long version;
+    private ByteBuffer data;
+    private ByteBuffer binaryData;
+    
+    /**
+     * Builds a new snapshot. The version must be read before the contents so that
+     * the snapshot is at least as new as the version it is labelled with.
+     * 
+     * @param videoManager  the video files
+     * @param imageManager  the image files
+     * @param playlist      the slideshow playlist
+     * @param version       the catalog version
+     * @param charset       the charset to encode with
+     */
+    public FileListSnapshot(FileManager videoManager, FileManager imageManager,
+            List<Integer> playlist, long version, Charset charset)
+    {
+        this.version = version;
+        
+        Map<Integer, File> videos = videoManager.getFileList();
+        Map<Integer, File> images = imageManager.getFileList();
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Writer out = new OutputStreamWriter(bytes, charset);
+            out.write("LIST BEGIN\n");
+            writeFiles(out, "VIDEO ", videos, charset);
+            writeFiles(out, "IMAGE ", images, charset);
+            for(Integer item : playlist)
+            {
+                out.write("PLIST " + item + "\n");
+            }
+            out.write("LIST END\n");
+            out.close();
+            
+            data = toDirect(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+        catch(IOException e)
+        {
+            //Should never happen, we are writing to memory
+            throw new RuntimeException(e);
+        }
+        
+        BinaryProtocol.FrameWriter frames = new BinaryProtocol.FrameWriter();
+        writeFrames(frames, BinaryProtocol.TYPE_VIDEO, videos);
+        writeFrames(frames, BinaryProtocol.TYPE_IMAGE, images);
+        frames.begin(BinaryProtocol.PLAYLIST).putVarLong(playlist.size());
+        for(Integer item : playlist)
+        {
+            frames.putVarLong(item);
+        }
+        frames.end();
+        frames.begin(BinaryProtocol.SYNC_END).end();
+        binaryData = toDirect(frames.view());
+    }
+    
+    /**
+     * Copies the data into a read-only direct buffer.
+     */
+    private static ByteBuffer toDirect(ByteBuffer src)
+    {
+        ByteBuffer buf = ByteBuffer.allocateDirect(src.remaining());
+        buf.put(src);
+        buf.flip();
+        return buf.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Writes one frame per file.
+     */
+    private static void writeFrames(BinaryProtocol.FrameWriter frames, byte type, Map<Integer, File> files)
+    {
+        for(Map.Entry<Integer, File> entry : files.entrySet())
+        {
+            frames.begin(BinaryProtocol.FILE).put(type)
+                .putVarLong(entry.getKey()).putString(entry.getValue().getName()).end();
+        }
+    }
+    
+    /**
+     * Writes one line per file.
+     */
+    private static void writeFiles(Writer out, String prefix, Map<Integer, File> files, Charset charset)
+        throws IOException
+    {
+        for(Map.Entry<Integer, File> entry : files.entrySet())
+        {
+            out.write(prefix);
+            out.write(entry.getKey().toString());
+            out.write(' ');
+            out.write(URLEncoder.encode(entry.getValue().getName(), charset.name()));
+            out.write('\n');
+        }
+    }
+    
+    /**
+     * @return Returns the catalog version this snapshot was built for.
+     */
+    public long getVersion()
+    {
+        return version;
+    }
+    
+    /**
+     * Returns the list encoded in the binary protocol, the frames following a
+     * SYNC_FULL header up to and including SYNC_END.
+     * 
+     * @return the encoded list
+     */
+    public ByteBuffer getBinaryData()
+    {
+        return binaryData.duplicate();
+    }
+    
+    /**
+     * Returns the encoded list. Every call returns a new read-only view of the same
+     * data, with its own position and limit.
+     * 
+     * @return the encoded list
+     */
+    public ByteBuffer getData()
+    {
+        return data.duplicate();
+    }
+}
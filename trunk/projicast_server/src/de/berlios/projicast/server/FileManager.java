@@ -21,8 +21,9 @@ package de.berlios.projicast.server;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,9 +31,17 @@ import java.util.Map;
  */
 public class FileManager implements Serializable
 {
+    //Kept from the first release so that saved file lists stay readable
+    private static final long serialVersionUID = -7664879523839016544L;
+    
     private File path;
     private HashMap<Integer, File> fileList;
     private int highestKey;
+    private transient CatalogLog catalog;
+    private transient Configuration.FileType type;
+    private transient HashMap<Integer, long[]> fileInfo;
+    private transient HashMap<File, Integer> ids;
+    private transient ContentIndex index;
     
     /**
      * Constructs a new FileManager managing the specified path.
@@ -46,31 +55,136 @@ public class FileManager implements Serializable
         rebuild();
     }
     
+    /**
+     * Sets the log to record changes to the file list in.
+     * 
+     * @param catalog  the log to record changes in
+     * @param type     the type of the files managed
+     */
+    public synchronized void setCatalog(CatalogLog catalog, Configuration.FileType type)
+    {
+        this.catalog = catalog;
+        this.type = type;
+    }
+    
+    /**
+     * Sets the index to keep the hashes of the files in, and has the files in the
+     * list hashed if the index does not know them.
+     * 
+     * @param index  the index of the content of the files
+     */
+    public synchronized void setContentIndex(ContentIndex index)
+    {
+        this.index = index;
+        for(File file : fileList.values())
+        {
+            index.update(file);
+        }
+    }
+    
     /**
      * Refreshes the file list only adding files not already in the list and removing files
-     * not available anymore.
+     * not available anymore. A new file with the same size and modification time as a
+     * file that has disappeared is taken to be that file renamed, and keeps its ID.
      */
     public synchronized void refresh()
     {
-        Iterator<File> it = fileList.values().iterator();
-        while(it.hasNext())
+        if(fileInfo == null)
         {
-            File e = it.next();
+            fileInfo = new HashMap<Integer, long[]>();
+        }
+        ids();
+        
+        List<Integer> gone = new ArrayList<Integer>();
+        for(Map.Entry<Integer, File> entry : fileList.entrySet())
+        {
+            File e = entry.getValue();
             if(!e.exists())
             {
-                it.remove();
+                gone.add(entry.getKey());
+            }
+            else if(!fileInfo.containsKey(entry.getKey()))
+            {
+                remember(entry.getKey(), e);
             }
         }
         
         File[] files = path.listFiles();
         for(File file : files)
         {
-            if(!fileList.containsValue(file))
+            if(!ids.containsKey(file))
+            {
+                Integer id = findRenamed(gone, file);
+                if(id != null)
+                {
+                    gone.remove(id);
+                    File old = fileList.put(id, file);
+                    ids.remove(old);
+                    ids.put(file, id);
+                    record(CatalogLog.Operation.RENAME, id, file.getName());
+                    if(index != null)
+                    {
+                        index.rename(old, file);
+                    }
+                }
+                else
+                {
+                    highestKey++;
+                    id = highestKey;
+                    fileList.put(id, file);
+                    ids.put(file, id);
+                    record(CatalogLog.Operation.ADD, id, file.getName());
+                    if(index != null)
+                    {
+                        index.update(file);
+                    }
+                }
+                remember(id, file);
+            }
+        }
+        
+        for(Integer id : gone)
+        {
+            File old = fileList.remove(id);
+            ids.remove(old);
+            fileInfo.remove(id);
+            if(index != null)
             {
-                highestKey++;
-                fileList.put(highestKey, file);
+                index.remove(old);
             }
+            record(CatalogLog.Operation.REMOVE, id, null);
+        }
+    }
+    
+    /**
+     * Adds a file that has just been put in the managed path, without looking
+     * through the whole path. A file already in the list keeps its ID.
+     * 
+     * @param file  the file to add
+     * 
+     * @return the ID of the file
+     */
+    public synchronized int addFile(File file)
+    {
+        if(fileInfo == null)
+        {
+            fileInfo = new HashMap<Integer, long[]>();
+        }
+        int id = idForFile(file);
+        if(id == -1)
+        {
+            highestKey++;
+            id = highestKey;
+            fileList.put(id, file);
+            ids.put(file, id);
+            record(CatalogLog.Operation.ADD, id, file.getName());
+        }
+        remember(id, file);
+        if(index != null)
+        {
+            index.update(file);
         }
+        return id;
     }
     
     /**
@@ -81,10 +195,77 @@ public class FileManager implements Serializable
     {
         File[] files = path.listFiles();
         fileList.clear();
+        fileInfo = new HashMap<Integer, long[]>();
+        ids = new HashMap<File, Integer>();
         for(int i = 0; i < files.length; i++)
         {
             fileList.put(i, files[i]);
+            ids.put(files[i], i);
+            remember(i, files[i]);
             highestKey = i;
+            if(index != null)
+            {
+                index.update(files[i]);
+            }
+        }
+        record(CatalogLog.Operation.RESET, -1, null);
+    }
+    
+    /**
+     * Returns the ID of a file that has disappeared and has the same size and
+     * modification time as the specified file, or <i>null</i> if there is none.
+     */
+    private Integer findRenamed(List<Integer> gone, File file)
+    {
+        if(gone.isEmpty())
+        {
+            return null;
+        }
+        long length = file.length();
+        long modified = file.lastModified();
+        for(Integer id : gone)
+        {
+            long[] info = fileInfo.get(id);
+            if((info != null) && (info[0] == length) && (info[1] == modified))
+            {
+                return id;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Remembers the size and modification time of a file, to recognize it if renamed.
+     */
+    private void remember(int id, File file)
+    {
+        fileInfo.put(id, new long[] { file.length(), file.lastModified() });
+    }
+    
+    /**
+     * Returns the IDs by file, built from the file list if not there yet.
+     */
+    private HashMap<File, Integer> ids()
+    {
+        if(ids == null)
+        {
+            ids = new HashMap<File, Integer>();
+            for(Map.Entry<Integer, File> entry : fileList.entrySet())
+            {
+                ids.put(entry.getValue(), entry.getKey());
+            }
+        }
+        return ids;
+    }
+    
+    /**
+     * Records a change in the catalog, if there is one.
+     */
+    private void record(CatalogLog.Operation op, int id, String name)
+    {
+        if(catalog != null)
+        {
+            catalog.record(op, type, id, name);
         }
     }
     
@@ -101,13 +282,32 @@ public class FileManager implements Serializable
     }
     
     /**
-     * Deletes the file with the specified ID.
+     * Deletes the file with the specified ID and removes it from the list, without
+     * looking through the whole path.
      * 
      * @param id  the ID of the file to delete
+     * 
+     * @return <i>true</i> if the file was deleted
      */
-    public synchronized void deleteFile(int id)
+    public synchronized boolean deleteFile(int id)
     {
-        getFile(id).delete();
+        File file = getFile(id);
+        if((file == null) || (!file.delete() && file.exists()))
+        {
+            return false;
+        }
+        fileList.remove(id);
+        ids().remove(file);
+        if(fileInfo != null)
+        {
+            fileInfo.remove(id);
+        }
+        if(index != null)
+        {
+            index.remove(file);
+        }
+        record(CatalogLog.Operation.REMOVE, id, null);
+        return true;
     }
     
     /**
@@ -119,14 +319,35 @@ public class FileManager implements Serializable
      */
     public synchronized int idForFile(File file)
     {
+        Integer id = ids().get(file);
+        return (id != null) ? id : -1;
+    }
+    
+    /**
+     * Returns the size and modification time of each file in the list as they were
+     * when the file was added or last refreshed, so that the files need not be
+     * looked at again.
+     * 
+     * @return the size and modification time by file
+     */
+    public synchronized Map<File, long[]> getFileInfo()
+    {
+        if(fileInfo == null)
+        {
+            fileInfo = new HashMap<Integer, long[]>();
+        }
+        Map<File, long[]> info = new HashMap<File, long[]>(fileList.size() * 2);
         for(Map.Entry<Integer, File> entry : fileList.entrySet())
         {
-            if(entry.getValue().equals(file))
+            long[] known = fileInfo.get(entry.getKey());
+            if(known == null)
             {
-                return entry.getKey();
+                remember(entry.getKey(), entry.getValue());
+                known = fileInfo.get(entry.getKey());
             }
+            info.put(entry.getValue(), known);
         }
-        return -1;
+        return info;
     }
     
     /**
@@ -19,26 +19,122 @@
 
 package de.berlios.projicast.server;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.CharacterCodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 
 /**
  * Class for handling file transfer sessions.
+ * <p>
+ * Clients may send the login, the FILE header and the data without waiting for the
+ * replies in between. The header lines are split off at byte level, and whatever
+ * follows the FILE header in the same read is written to the file right away.
+ * The rest of the data is then received by the {@link TransferEngine} rather than
+ * the reactor, which closes the connection once nothing has moved on it for its
+ * idle timeout while no reply is pending.
+ * <p>
+ * Commands done on another thread, such as HAVE, SIGS, MANIFEST and REMOVE, may also
+ * be followed by further commands right away. Those are taken once the command has
+ * been answered.
+ * <p>
+ * A FILE header may end with an ID the client gives the content, making the upload
+ * resumable. Such uploads are written to the {@link StagingArea} and kept there if
+ * the connection breaks. The reply "FILE OK &lt;offset&gt;" tells the client how much
+ * of the file the server already has, and the data sent is what follows. The client
+ * must wait for this reply before sending data.
+ * <p>
+ * A resumable upload may also be split into ranges sent over several connections at
+ * once, each with the header "FILE &lt;type&gt; &lt;size&gt; &lt;name&gt; &lt;contentID&gt; RANGE
+ * &lt;start&gt; &lt;length&gt;" followed right away by the data of the range. The ranges are
+ * written at their position in a preallocated partial file, which is moved to its
+ * folder when the last range has arrived.
+ * <p>
+ * Before sending a file, a client may offer its SHA-256 hash with "HAVE &lt;type&gt;
+ * &lt;size&gt; &lt;name&gt; &lt;hash&gt;". If the {@link ContentIndex} knows the content, the
+ * file is made from the stored one and the reply is "HAVE OK". Otherwise the reply
+ * is "HAVE NO", and the client may go on with a FILE header.
+ * <p>
+ * A client sending "CHECK SHA-256" before the FILE header follows the data with
+ * the trailer "DIGEST &lt;hash&gt;", the SHA-256 hash of the data it sent on the
+ * connection. The server hashes the data as it receives it and replies "DIGEST OK",
+ * or "ERROR Digest mismatch" and drops what it received. The hash of a whole file
+ * is kept in the {@link ContentIndex}, so it need not be hashed again.
+ * <p>
+ * A client sending "BATCH" may send any number of files on the connection, each
+ * a FILE header without content ID followed by its data, and its trailer if
+ * checked. It need not wait for any reply in between. Each file is acknowledged
+ * by "FILE DONE &lt;n&gt;" once it is in its folder, or "FILE FAILED &lt;n&gt;", where
+ * n counts the FILE headers of the connection from 1. The acknowledgements come
+ * as the files are written to disk, interleaved with the other replies.
+ * <p>
+ * Many files can also be sent as one zip or tar archive with "ARCHIVE &lt;type&gt;
+ * &lt;size&gt; ZIP|TAR [PLAYLIST]" followed by the archive, which is extracted into
+ * the folder of the type as it arrives, without being stored itself. Once all of
+ * its files are in the folder they are added to the file list as a single change,
+ * with "PLAYLIST" also made the slideshow playlist in archive order, and the reply
+ * is "ARCHIVE DONE &lt;count&gt;". Folders in the archive are not kept.
+ * <p>
+ * A new version of a stored file can be sent as a delta. "SIGS &lt;type&gt; &lt;name&gt;
+ * [&lt;blockSize&gt;]" is answered by "SIGS OK &lt;size&gt; &lt;blockSize&gt; &lt;count&gt;" and
+ * the {@link BlockSignatures} of the stored file, or "SIGS NO". The client then
+ * sends "DELTA &lt;type&gt; &lt;size&gt; &lt;name&gt; &lt;blockSize&gt; &lt;length&gt;", answered by
+ * "DELTA OK", and length bytes of instructions: 'C' with the index and the number
+ * of blocks of the stored file to copy, or 'L' with a length and that many bytes
+ * of new data, the numbers as 32 bit integers. The new version is built in the
+ * staging area from these, and its digest, if checked, is that of the new version.
+ * <p>
+ * For keeping a folder in step with the server, "MANIFEST &lt;type&gt;" is answered by
+ * "MANIFEST OK &lt;count&gt;" and a line "&lt;size&gt; &lt;modified&gt; &lt;hash&gt; &lt;name&gt;"
+ * for each stored file, the hash "-" if not known yet. It is made from what the
+ * {@link FileManager} and the {@link ContentIndex} know, without looking at the
+ * files. "REMOVE &lt;type&gt; &lt;name&gt; [&lt;name&gt;...]" deletes files, as a single
+ * change to the file list, and is answered by "REMOVE DONE &lt;count&gt;".
+ * <p>
+ * Files are downloaded with "GET &lt;type&gt; &lt;id&gt; [&lt;offset&gt; [&lt;length&gt;]]",
+ * answered by "GET OK &lt;size&gt; &lt;offset&gt; &lt;length&gt;" and the bytes of the range.
+ * The bytes are sent with {@link FileChannel#transferTo}, a piece at a time whenever
+ * the connection is writable, so that downloads take turns on the reactor.
  */
 public class FileTransferSession extends BasicInputHandler
 {
-    private enum State { NEW, AUTH_STRING_SENT, AWAITING_FILE_INFO, TRANSFER_IN_PROGRESS }
+    /**
+     * The size of the buffer data is moved from the socket to the file with.
+     */
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    
+    /**
+     * The size of the buffer the lines and small files of a batch are read into.
+     */
+    private static final int LINE_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * The most bytes of a download sent each time the connection is writable.
+     */
+    private static final long SEND_CHUNK_SIZE = 256 * 1024;
     
-    private State state = State.NEW;
+    private enum State { NEW, AUTH_STRING_SENT, AWAITING_FILE_INFO, LINKING, TRANSFER_IN_PROGRESS, EXTRACTING,
+        REBUILDING, AWAITING_DIGEST, SENDING }
+    
+    private volatile State state = State.NEW;
     private String authString;
     private Configuration configuration;
     
@@ -46,8 +142,30 @@ public class FileTransferSession extends BasicInputHandler
     private long fileSize;
     private Configuration.FileType fileType;
     private File dest;
+    private File partial;
+    private boolean resumable = false;
+    private StagingArea.Assembly assembly;
     private FileChannel fch;
     private long written = 0;
+    private long rangeStart = 0;
+    private long end = 0;
+    private MessageDigest digest;
+    private String fileHash;
+    private FileChannel sendCh;
+    private long sendPos;
+    private long sendEnd;
+    private boolean batch = false;
+    private int fileCount = 0;
+    private TransferScheduler.Flow flow = new TransferScheduler.Flow();
+    private ArchiveReader.Format archiveFormat;
+    private boolean archivePlaylist;
+    private boolean archiveFailed;
+    private byte[] streamHead;
+    private List<File[]> archiveEntries;
+    private FileChannel baseCh;
+    private int blockSize;
+    //Files of a batch and archives handed over but not yet on disk, guarded by this
+    private int uncommitted = 0;
     
     /**
      * Constructs a new FileTransferSession with the specified SocketChannel and server configuration.
@@ -57,110 +175,1328 @@ public class FileTransferSession extends BasicInputHandler
      */
     public FileTransferSession(SocketChannel ch, Configuration configuration)
     {
-        super(ch, configuration.getCharset().newDecoder(), configuration.getCharset().newEncoder());
+        super(ch, configuration.getCharset().newDecoder(), configuration.getCharset().newEncoder(),
+                configuration.getBufferPool(), 64 * 1024);
         this.configuration = configuration;
+        setIdleTimeout(configuration.getTransferEngine().getIdleTimeout());
+    }
+    
+    public void input(ByteBuffer ibuf)
+    {
+        try
+        {
+            //The trailer and, in a batch, further files may have come along
+            while(true)
+            {
+                processLines(ibuf);
+                if(((state == State.EXTRACTING) || (state == State.REBUILDING)) && ch.isOpen())
+                {
+                    //What came along is the start of the stream, the rest is read as it comes
+                    streamHead = new byte[(int)Math.min(ibuf.remaining(), end)];
+                    ibuf.get(streamHead);
+                    if(isOwned())
+                    {
+                        readStream();
+                        continue;
+                    }
+                    //A short stream may have brought the trailer along
+                    final byte[] rest = new byte[ibuf.remaining()];
+                    ibuf.get(rest);
+                    detach(configuration.getTransferEngine(), new Runnable()
+                    {
+                        public void run()
+                        {
+                            serve(rest);
+                        }
+                    });
+                    return;
+                }
+                if((state != State.TRANSFER_IN_PROGRESS) || !ch.isOpen())
+                {
+                    break;
+                }
+                //Also for the data that came along with the header, or none for an empty file
+                receive(ibuf);
+                if(written < end)
+                {
+                    if(isOwned())
+                    {
+                        //Already served by a thread of its own
+                        transfer();
+                        continue;
+                    }
+                    detach(configuration.getTransferEngine(), new Runnable()
+                    {
+                        public void run()
+                        {
+                            serve(new byte[0]);
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+        catch (CharacterCodingException e)
+        {
+            System.err.println("Unable to decode characters: " + e.getMessage());
+            close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Error in file transfer: " + e.getMessage());
+            close();
+        }
+    }
+    
+    /**
+     * Handles the lines received while no data is being received.
+     */
+    private void processLines(ByteBuffer ibuf) throws IOException
+    {
+        CharSequence command;
+        while(((state == State.NEW) || (state == State.AUTH_STRING_SENT) || (state == State.AWAITING_FILE_INFO)
+                || (state == State.AWAITING_DIGEST)) && ch.isOpen()
+                && ((command = getLine(ibuf)) != null))
+        {
+            auth(command.toString());
+        }
+    }
+    
+    /**
+     * Writes data from buffer to file and keeps track of how much data has been received.
+     */
+    private void receive(ByteBuffer ibuf) throws IOException
+    {
+        try
+        {
+            //Make sure not too much is written, what follows is the trailer
+            int limit = ibuf.limit();
+            if((written + ibuf.remaining()) > end)
+            {
+                ibuf.limit(ibuf.position() + (int)(end - written));
+            }
+            if(digest != null)
+            {
+                digest.update(ibuf.duplicate());
+            }
+            while(ibuf.hasRemaining())
+            {
+                written += fch.write(ibuf, written);
+            }
+            ibuf.limit(limit);
+            if(written >= end)
+            {
+                received();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+        }
+    }
+        
+    /**
+     * Receives the rest of the file on a transfer thread, and then the trailer and
+     * the files following in a batch, until the connection is closed.
+     * 
+     * @param rest  what was received after an archive or a delta along with it
+     */
+    private void serve(byte[] rest)
+    {
+        if(state == State.TRANSFER_IN_PROGRESS)
+        {
+            transfer();
+        }
+        else
+        {
+            readStream();
+        }
+        ByteBuffer buf = pool.lease(LINE_BUFFER_SIZE);
+        try
+        {
+            if(rest.length > 0)
+            {
+                buf.put(rest);
+                buf.flip();
+                input(buf);
+                buf.compact();
+            }
+            while(ch.isOpen())
+            {
+                if(read(buf) == -1)
+                {
+                    close();
+                    break;
+                }
+                buf.flip();
+                input(buf);
+                buf.compact();
+            }
+        }
+        catch(IOException e)
+        {
+            if(ch.isOpen())
+            {
+                System.err.println("Error in file transfer: " + e.getMessage());
+            }
+            close();
+        }
+        finally
+        {
+            pool.release(buf);
+        }
+    }
+    
+    /**
+     * Reads from the channel, now owned by this thread, only as much as the upload's
+     * share of the bandwidth allows. The acknowledgements queued meanwhile are
+     * written by this thread while it waits.
+     */
+    private int read(ByteBuffer buf) throws IOException
+    {
+        TransferScheduler scheduler = configuration.getTransferScheduler();
+        int limit = buf.limit();
+        int grant = scheduler.acquire(flow, buf.remaining());
+        buf.limit(buf.position() + grant);
+        int n = readOwned(buf);
+        buf.limit(limit);
+        scheduler.giveBack(flow, grant - Math.max(n, 0));
+        return n;
+    }
+    
+    /**
+     * Moves the rest of the data from the channel, now owned by this thread, into the file.
+     */
+    private void transfer()
+    {
+        ByteBuffer buf = pool.lease(TRANSFER_BUFFER_SIZE);
+        try
+        {
+            while(written < end)
+            {
+                buf.clear();
+                if((end - written) < buf.capacity())
+                {
+                    buf.limit((int)(end - written));
+                }
+                if(read(buf) == -1)
+                {
+                    throw new IOException("Connection closed by client");
+                }
+                buf.flip();
+                if(digest != null)
+                {
+                    digest.update(buf.duplicate());
+                }
+                while(buf.hasRemaining())
+                {
+                    written += fch.write(buf, written);
+                }
+            }
+            received();
+        }
+        catch(IOException e)
+        {
+            if(ch.isOpen())
+            {
+                System.err.println("Error in file transfer: " + e.getMessage());
+            }
+            close();
+        }
+        finally
+        {
+            pool.release(buf);
+        }
+    }
+    
+    /**
+     * Reads an archive or a delta, on a thread of its own.
+     */
+    private void readStream()
+    {
+        if(state == State.EXTRACTING)
+        {
+            extract();
+        }
+        else
+        {
+            rebuild();
+        }
+    }
+    
+    /**
+     * Stream over the data of an archive or a delta: what came along with the
+     * command, then what is read from the connection, up to its end.
+     */
+    private class IncomingStream extends InputStream
+    {
+        private boolean hashed;
+        private int headPos = 0;
+        
+        /**
+         * @param hashed  whether the data as sent is what the digest is of
+         */
+        public IncomingStream(boolean hashed)
+        {
+            this.hashed = hashed;
+        }
+        
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if(written >= end)
+            {
+                return -1;
+            }
+            len = (int)Math.min(len, end - written);
+            int n;
+            if(headPos < streamHead.length)
+            {
+                n = Math.min(len, streamHead.length - headPos);
+                System.arraycopy(streamHead, headPos, b, off, n);
+                headPos += n;
+            }
+            else if((n = FileTransferSession.this.read(ByteBuffer.wrap(b, off, len))) == -1)
+            {
+                throw new IOException("Connection closed by client");
+            }
+            if(hashed && (digest != null))
+            {
+                digest.update(b, off, n);
+            }
+            written += n;
+            return n;
+        }
+    }
+    
+    /**
+     * Thrown when delta instructions do not fit the files.
+     */
+    private static class DeltaException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+    
+    /**
+     * Extracts the files of an archive as it arrives into temporary files.
+     */
+    private void extract()
+    {
+        InputStream in = new IncomingStream(true);
+        File path = (fileType == Configuration.FileType.VIDEO)
+            ? configuration.getVideoManager().getPath() : configuration.getImageManager().getPath();
+        StagingArea staging = configuration.getStagingArea();
+        ArchiveReader reader = new ArchiveReader(in, archiveFormat);
+        byte[] buf = new byte[64 * 1024];
+        try
+        {
+            String entry;
+            while((entry = reader.nextEntry()) != null)
+            {
+                //Only the name, nothing is written outside the folder
+                String name = new File(entry.replace('\\', '/')).getName();
+                if((name.length() == 0) || name.startsWith("."))
+                {
+                    continue;
+                }
+                File tmp = staging.createTemporary(0);
+                archiveEntries.add(new File[] { tmp, new File(path, name) });
+                OutputStream out = new FileOutputStream(tmp);
+                try
+                {
+                    int n;
+                    while((n = reader.read(buf, 0, buf.length)) != -1)
+                    {
+                        out.write(buf, 0, n);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            //Whatever follows the last file, such as the directory of a zip
+            while(in.read(buf, 0, buf.length) != -1)
+            {
+            }
+            received();
+        }
+        catch(IOException e)
+        {
+            //A damaged archive is still read to its end, to reply in step with the client
+            try
+            {
+                while(in.read(buf, 0, buf.length) != -1)
+                {
+                }
+            }
+            catch(IOException e2)
+            {
+                close();
+                return;
+            }
+            System.err.println("Unable to extract archive: " + e.getMessage());
+            archiveFailed = true;
+            received();
+        }
+    }
+    
+    /**
+     * Builds the new version of a file from the blocks of the stored one and the new
+     * data, as the instructions arrive.
+     */
+    private void rebuild()
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new IncomingStream(false), 64 * 1024));
+        ByteBuffer buf = pool.lease(TRANSFER_BUFFER_SIZE);
+        byte[] literal = new byte[64 * 1024];
+        try
+        {
+            long baseSize = baseCh.size();
+            long pos = 0;
+            while(pos < fileSize)
+            {
+                int op = in.read();
+                long from;
+                long length;
+                if(op == 'C')
+                {
+                    from = (in.readInt() & 0xFFFFFFFFL) * blockSize;
+                    length = Math.min((in.readInt() & 0xFFFFFFFFL) * blockSize, baseSize - from);
+                }
+                else if(op == 'L')
+                {
+                    from = -1;
+                    length = in.readInt() & 0xFFFFFFFFL;
+                }
+                else
+                {
+                    throw new DeltaException();
+                }
+                if((length <= 0) || ((pos + length) > fileSize))
+                {
+                    throw new DeltaException();
+                }
+                long stop = pos + length;
+                while(pos < stop)
+                {
+                    buf.clear();
+                    buf.limit((int)Math.min(buf.capacity(), stop - pos));
+                    if(from >= 0)
+                    {
+                        //From the stored file
+                        while(buf.hasRemaining())
+                        {
+                            if(baseCh.read(buf, from + buf.position()) == -1)
+                            {
+                                throw new DeltaException();
+                            }
+                        }
+                        from += buf.position();
+                    }
+                    else
+                    {
+                        //New data, from the instructions
+                        while(buf.hasRemaining())
+                        {
+                            int n = in.read(literal, 0, Math.min(literal.length, buf.remaining()));
+                            if(n == -1)
+                            {
+                                throw new DeltaException();
+                            }
+                            buf.put(literal, 0, n);
+                        }
+                    }
+                    buf.flip();
+                    if(digest != null)
+                    {
+                        digest.update(buf.duplicate());
+                    }
+                    while(buf.hasRemaining())
+                    {
+                        pos += fch.write(buf, pos);
+                    }
+                }
+            }
+            if(in.read() != -1)
+            {
+                throw new DeltaException();
+            }
+            baseCh.close();
+            baseCh = null;
+            received();
+        }
+        catch(DeltaException e)
+        {
+            System.err.println("Invalid delta for " + filename);
+            writeCommand("ERROR Invalid delta");
+            close();
+        }
+        catch(IOException e)
+        {
+            if(ch.isOpen())
+            {
+                System.err.println("Error in file transfer: " + e.getMessage());
+            }
+            close();
+        }
+        finally
+        {
+            pool.release(buf);
+        }
+    }
+    
+    /**
+     * Completes the file once all data has been received, or waits for the trailer
+     * if it is to be checked.
+     */
+    private void received()
+    {
+        if(digest != null)
+        {
+            state = State.AWAITING_DIGEST;
+        }
+        else
+        {
+            complete();
+        }
+    }
+    
+    /**
+     * Compares the digest sent by the client with that of the data received, and
+     * completes the file if they match.
+     * 
+     * @param trailer  the trailer sent by the client
+     */
+    private void checkDigest(String trailer)
+    {
+        String hash = ContentIndex.toHex(digest.digest());
+        if(!trailer.equals("DIGEST " + hash))
+        {
+            System.err.println("Digest mismatch for " + filename + ", upload dropped");
+            if(batch && (archiveFormat == null))
+            {
+                //The connection is still in step, only this file is lost
+                discard();
+                writeCommand("FILE FAILED " + fileCount);
+                nextFile();
+                return;
+            }
+            writeCommand("ERROR Digest mismatch");
+            //Not worth resuming
+            resumable = false;
+            close();
+            return;
+        }
+        writeCommand("DIGEST OK");
+        if((assembly == null) && (rangeStart == 0))
+        {
+            //The digest is that of the whole file
+            fileHash = hash;
+        }
+        complete();
+    }
+    
+    /**
+     * Hands the complete file over to be written to disk and moved to its folder.
+     */
+    private void complete()
+    {
+        if(archiveFormat != null)
+        {
+            completeArchive();
+            return;
+        }
+        final File target = dest;
+        final String hash = fileHash;
+        final Configuration.FileType type = fileType;
+        final String name = filename;
+        final int n = fileCount;
+        Flusher.Callback moved = new Flusher.Callback()
+        {
+            public void committed(boolean ok)
+            {
+                if(ok)
+                {
+                    if(hash != null)
+                    {
+                        configuration.getContentIndex().add(target, hash);
+                    }
+                    finished(target, type, name, batch ? ("FILE DONE " + n) : null);
+                }
+                else if(batch)
+                {
+                    writeCommand("FILE FAILED " + n);
+                }
+                if(batch)
+                {
+                    onDisk();
+                }
+            }
+        };
+        if(assembly != null)
+        {
+            //Only the last range to arrive completes the file
+            boolean whole = assembly.end(rangeStart, end - rangeStart, true);
+            close();
+            if(whole)
+            {
+                configuration.getStagingArea().commit(assembly, dest, moved);
+            }
+            return;
+        }
+        //The file is not this session's to close or delete any more
+        FileChannel ch = fch;
+        File file = partial;
+        fch = null;
+        partial = null;
+        if(batch)
+        {
+            synchronized(this)
+            {
+                uncommitted++;
+            }
+            nextFile();
+        }
+        else
+        {
+            close();
+        }
+        configuration.getStagingArea().commit(ch, file, dest, moved);
+    }
+    
+    /**
+     * Hands the files of an archive over to be written to disk and moved to their
+     * folder, and adds them to the file list together once all have been moved.
+     */
+    private void completeArchive()
+    {
+        final List<File[]> entries = archiveEntries;
+        final Configuration.FileType type = fileType;
+        final boolean playlist = archivePlaylist;
+        final boolean[] moved = new boolean[entries.size()];
+        final int[] left = { entries.size() };
+        if(archiveFailed)
+        {
+            writeCommand("ERROR Unable to extract archive");
+            close();
+            return;
+        }
+        archiveFormat = null;
+        archiveEntries = null;
+        streamHead = null;
+        nextFile();
+        if(entries.isEmpty())
+        {
+            writeCommand("ARCHIVE DONE 0");
+            return;
+        }
+        synchronized(this)
+        {
+            uncommitted++;
+        }
+        for(int i = 0; i < entries.size(); i++)
+        {
+            final int index = i;
+            File[] e = entries.get(i);
+            configuration.getStagingArea().commit(null, e[0], e[1], new Flusher.Callback()
+            {
+                public void committed(boolean ok)
+                {
+                    synchronized(moved)
+                    {
+                        moved[index] = ok;
+                        if(--left[0] > 0)
+                        {
+                            return;
+                        }
+                    }
+                    onDisk();
+                    //A file named twice in the archive is only added once
+                    final List<File> files = new ArrayList<File>();
+                    for(int j = 0; j < moved.length; j++)
+                    {
+                        File dest = entries.get(j)[1];
+                        if(moved[j] && !files.contains(dest))
+                        {
+                            files.add(dest);
+                        }
+                    }
+                    configuration.getCommandExecutor().execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            configuration.addFiles(type, files, playlist);
+                            for(File file : files)
+                            {
+                                configuration.getEvents().uploadFinished(type, file.getName());
+                            }
+                            writeCommand("ARCHIVE DONE " + files.size());
+                        }
+                    });
+                }
+            });
+        }
+    }
+    
+    /**
+     * Notes that a file of a batch or an archive handed over is on disk now.
+     */
+    private synchronized void onDisk()
+    {
+        uncommitted--;
+    }
+    
+    protected synchronized boolean hasPendingWork()
+    {
+        //The client waits for the acknowledgements or a command to be done
+        return (state == State.LINKING) || (uncommitted > 0);
+    }
+    
+    /**
+     * Deletes the files extracted from an archive not completed.
+     */
+    private void discardArchive()
+    {
+        StagingArea staging = configuration.getStagingArea();
+        for(File[] e : archiveEntries)
+        {
+            e[0].delete();
+            staging.release(e[0]);
+        }
+        archiveEntries = null;
+    }
+    
+    /**
+     * Gets ready for the next file of a batch.
+     */
+    private void nextFile()
+    {
+        written = 0;
+        end = 0;
+        fileHash = null;
+        state = State.AWAITING_FILE_INFO;
+    }
+    
+    /**
+     * Deletes the file being received.
+     */
+    private void discard()
+    {
+        try
+        {
+            fch.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        partial.delete();
+        fch = null;
+        partial = null;
+    }
+    
+    /**
+     * Adds the new file to the file list and tells subscribed clients about it
+     * in the background.
+     * 
+     * @param file   the new file
+     * @param type   the type of the file
+     * @param name   the name the file was uploaded as
+     * @param reply  the reply to send once the file is in the list, or <i>null</i>
+     */
+    private void finished(final File file, final Configuration.FileType type, final String name,
+            final String reply)
+    {
+        final FileManager manager = (type == Configuration.FileType.VIDEO)
+            ? configuration.getVideoManager() : configuration.getImageManager();
+        configuration.getCommandExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                manager.addFile(file);
+                configuration.getEvents().uploadFinished(type, name);
+                if(reply != null)
+                {
+                    writeCommand(reply);
+                }
+                if(state == State.LINKING)
+                {
+                    //A HAVE takes no further commands until answered
+                    ready();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Takes commands again once one done on another thread has been answered,
+     * starting with those the client sent meanwhile.
+     */
+    private void ready()
+    {
+        state = State.AWAITING_FILE_INFO;
+        reprocessInput();
+    }
+    
+    /**
+     * Authenticates with client.
+     * 
+     * @param command  the command received from the client
+     */
+    private void auth(String command)
+    {
+        switch(state)
+        {
+            case NEW:
+                if(command.equals("PROJICAST TRANSFER"))
+                {
+                    authString = Security.generate(128);
+                    writeCommand("PROJICAST TRANSFER AUTH " + authString);
+                    state = State.AUTH_STRING_SENT;
+                }
+                else
+                {
+                    close();
+                }
+                break;
+                
+            case AUTH_STRING_SENT:
+                String[] split = command.split(" ");
+                if((split.length == 2) && split[0].equals("AUTH"))
+                {
+                    String expect = Security.digest(configuration.getPassword() + authString);
+                    if(split[1].equals(expect))
+                    {
+                        writeCommand("AUTH OK");
+                        state = State.AWAITING_FILE_INFO;
+                    }
+                    else
+                    {
+                        writeCommand("ERROR Invalid auth");
+                        close();
+                    }
+                }
+                break;
+            case AWAITING_FILE_INFO:
+                if(command.startsWith("CHECK "))
+                {
+                    check(command.substring(6));
+                }
+                else if(command.startsWith("ARCHIVE "))
+                {
+                    archive(command);
+                }
+                else if(command.startsWith("SIGS "))
+                {
+                    signatures(command);
+                }
+                else if(command.startsWith("DELTA "))
+                {
+                    delta(command);
+                }
+                else if(command.startsWith("MANIFEST "))
+                {
+                    manifest(command.substring(9));
+                }
+                else if(command.startsWith("REMOVE "))
+                {
+                    remove(command);
+                }
+                else if(command.equals("BATCH"))
+                {
+                    batch = true;
+                    writeCommand("BATCH OK");
+                }
+                else if(command.startsWith("GET "))
+                {
+                    get(command);
+                }
+                else
+                {
+                    receiveFileInfo(command);
+                }
+                break;
+            case AWAITING_DIGEST:
+                checkDigest(command);
+                break;
+        }
+    }
+    
+    /**
+     * Starts sending a file, or a range of it, to the client.
+     * 
+     * @param command  the GET command received
+     */
+    private void get(String command)
+    {
+        String[] split = command.split(" ");
+        if((split.length < 3) || (split.length > 5))
+        {
+            close();
+            return;
+        }
+        FileManager manager;
+        if(split[1].equals("VIDEO"))
+        {
+            manager = configuration.getVideoManager();
+        }
+        else if(split[1].equals("IMAGE"))
+        {
+            manager = configuration.getImageManager();
+        }
+        else
+        {
+            close();
+            return;
+        }
+        try
+        {
+            File file = manager.getFile(Integer.parseInt(split[2]));
+            if((file == null) || !file.isFile())
+            {
+                writeCommand("ERROR No such file");
+                close();
+                return;
+            }
+            sendCh = new FileInputStream(file).getChannel();
+            long size = sendCh.size();
+            long offset = (split.length > 3) ? Long.parseLong(split[3]) : 0;
+            long length = (split.length > 4) ? Long.parseLong(split[4]) : (size - offset);
+            if((offset < 0) || (length < 0) || ((offset + length) > size))
+            {
+                writeCommand("ERROR Invalid range");
+                close();
+                return;
+            }
+            sendPos = offset;
+            sendEnd = offset + length;
+            state = State.SENDING;
+            writeCommand("GET OK " + size + " " + offset + " " + length);
+            boolean owned = isOwned();
+            if(owned || ch.isBlocking())
+            {
+                //Served by a thread of its own, nothing to share
+                if(owned)
+                {
+                    drain();
+                }
+                while(sendPos < sendEnd)
+                {
+                    long n = sendCh.transferTo(sendPos, sendEnd - sendPos, ch);
+                    sendPos += n;
+                    if((n == 0) && owned)
+                    {
+                        awaitWritable();
+                    }
+                }
+                close();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            close();
+        }
+        catch(IOException e)
+        {
+            if(ch.isOpen())
+            {
+                System.err.println("Error while sending file: " + e.getMessage());
+            }
+            close();
+        }
+    }
+    
+    public void output()
+    {
+        super.output();
+        //The reply goes out before the file
+        if((state == State.SENDING) && (getQueued() == 0) && ch.isOpen())
+        {
+            try
+            {
+                sendPos += sendCh.transferTo(sendPos, Math.min(SEND_CHUNK_SIZE, sendEnd - sendPos), ch);
+                if(sendPos >= sendEnd)
+                {
+                    close();
+                }
+            }
+            catch(IOException e)
+            {
+                close();
+            }
+        }
+    }
+    
+    protected boolean hasMoreOutput()
+    {
+        return state == State.SENDING;
+    }
+    
+    /**
+     * Sets up receiving an archive.
+     * 
+     * @param command  the ARCHIVE command received
+     */
+    private void archive(String command)
+    {
+        String[] split = command.split(" ");
+        if((split.length < 4) || (split.length > 5) || ((split.length == 5) && !split[4].equals("PLAYLIST")))
+        {
+            close();
+            return;
+        }
+        try
+        {
+            fileType = Configuration.FileType.valueOf(split[1]);
+            end = Long.parseLong(split[2]);
+            archiveFormat = ArchiveReader.Format.valueOf(split[3]);
+        }
+        catch(IllegalArgumentException e)
+        {
+            close();
+            return;
+        }
+        filename = "archive";
+        written = 0;
+        archivePlaylist = (split.length == 5);
+        archiveFailed = false;
+        archiveEntries = new ArrayList<File[]>();
+        state = State.EXTRACTING;
+        writeCommand("ARCHIVE OK");
     }
     
-    public void input(ByteBuffer ibuf)
+    /**
+     * Sends the block signatures of a stored file, computed by the transfer engine.
+     * 
+     * @param command  the SIGS command received
+     */
+    private void signatures(String command)
     {
+        String[] split = command.split(" ");
+        final File file;
+        final int size;
         try
         {
-            if(state != State.TRANSFER_IN_PROGRESS)
+            if((split.length < 3) || (split.length > 4))
             {
-                cInput(ibuf);
-                String command = getLine();
-                if(command != null)
-                {
-                    auth(command);
-                }
+                throw new IllegalArgumentException();
             }
-            else
+            file = storedFile(managerFor(Configuration.FileType.valueOf(split[1])).getPath(),
+                    URLDecoder.decode(split[2], configuration.getCharset().name()));
+            if(file == null)
             {
-                receive(ibuf);
+                throw new IllegalArgumentException();
+            }
+            size = (split.length == 4) ? Integer.parseInt(split[3]) : 0;
+            if((size != 0) && ((size < BlockSignatures.MIN_BLOCK_SIZE) || (size > BlockSignatures.MAX_BLOCK_SIZE)))
+            {
+                throw new IllegalArgumentException();
             }
         }
-        catch (CharacterCodingException e)
+        catch(IllegalArgumentException e)
         {
-            System.err.println("Unable to decode characters: " + e.getMessage());
             close();
+            return;
         }
-        catch (IOException e)
+        catch(UnsupportedEncodingException e)
         {
-            System.err.println("Error while writing to file: " + e.getMessage());
             close();
+            return;
         }
+        state = State.LINKING;
+        //Reads the whole file like an upload, so it waits its turn with the uploads
+        configuration.getTransferEngine().execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if(!file.isFile())
+                    {
+                        writeCommand("SIGS NO");
+                        ready();
+                        return;
+                    }
+                    //The file may be replaced meanwhile, what is opened is what counts
+                    FileInputStream in = new FileInputStream(file);
+                    long length;
+                    ByteBuffer sigs;
+                    int block;
+                    try
+                    {
+                        length = in.getChannel().size();
+                        block = (size != 0) ? size : BlockSignatures.defaultBlockSize(length);
+                        sigs = BlockSignatures.compute(in, block);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    writeCommand("SIGS OK " + length + " " + block + " "
+                            + (sigs.remaining() / BlockSignatures.SIGNATURE_LENGTH));
+                    writeShared(sigs.asReadOnlyBuffer());
+                    ready();
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Unable to compute signatures: " + e.getMessage());
+                    writeCommand("SIGS NO");
+                    ready();
+                }
+            }
+        });
     }
     
     /**
-     * Writes data from buffer to file and keeps track of how much data has been received.
+     * Sets up building a new version of a stored file from a delta.
+     * 
+     * @param command  the DELTA command received
      */
-    private void receive(ByteBuffer ibuf) throws IOException
+    private void delta(String command)
     {
+        String[] split = command.split(" ");
+        if(batch)
+        {
+            //Deltas wait for the reply, they are not for batches
+            close();
+            return;
+        }
         try
         {
-            //Make sure not too much is written
-            if((written + ibuf.limit()) > fileSize)
+            if(split.length != 6)
             {
-                ibuf.limit((int)(fileSize - written));
+                throw new IllegalArgumentException();
             }
-            int wrote = fch.write(ibuf);
-            written += wrote;
-            if(written >= fileSize)
+            fileType = Configuration.FileType.valueOf(split[1]);
+            fileSize = Long.parseLong(split[2]);
+            filename = URLDecoder.decode(split[3], configuration.getCharset().name());
+            blockSize = Integer.parseInt(split[4]);
+            end = Long.parseLong(split[5]);
+            dest = storedFile(managerFor(fileType).getPath(), filename);
+            if((dest == null) || (fileSize < 0) || (end < 0) || (blockSize < BlockSignatures.MIN_BLOCK_SIZE)
+                    || (blockSize > BlockSignatures.MAX_BLOCK_SIZE))
             {
-                fch.close();
-                close();
+                throw new IllegalArgumentException();
             }
         }
-        catch (IOException e)
+        catch(IllegalArgumentException e)
         {
             close();
-            fch.close();
+            return;
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            close();
+            return;
+        }
+        try
+        {
+            //Kept open, the stored file may be replaced meanwhile
+            baseCh = new FileInputStream(dest).getChannel();
+            partial = configuration.getStagingArea().createTemporary(fileSize);
+            fch = new RandomAccessFile(partial, "rw").getChannel();
+        }
+        catch(IOException e)
+        {
+            writeCommand("ERROR No such file");
+            close();
+            return;
         }
+        written = 0;
+        rangeStart = 0;
+        assembly = null;
+        resumable = false;
+        state = State.REBUILDING;
+        writeCommand("DELTA OK");
     }
-        
+    
     /**
-     * Authenticates with client.
+     * Sends the list of the stored files of a type, made by the command executor.
      * 
-     * @param command  the command received from the client
+     * @param type  the type asked for
      */
-    private void auth(String command)
+    private void manifest(String type)
     {
-        switch(state)
+        final FileManager manager;
+        try
         {
-            case NEW:
-                if(command.equals("PROJICAST TRANSFER"))
+            manager = managerFor(Configuration.FileType.valueOf(type));
+        }
+        catch(IllegalArgumentException e)
+        {
+            close();
+            return;
+        }
+        state = State.LINKING;
+        configuration.getCommandExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                Map<File, long[]> info = manager.getFileInfo();
+                ContentIndex index = configuration.getContentIndex();
+                StringBuilder sb = new StringBuilder(info.size() * 128);
+                sb.append("MANIFEST OK ").append(info.size()).append('\n');
+                try
                 {
-                    authString = Security.generate(128);
-                    writeCommand("PROJICAST TRANSFER AUTH " + authString);
-                    state = State.AUTH_STRING_SENT;
+                    for(Map.Entry<File, long[]> e : info.entrySet())
+                    {
+                        long[] known = e.getValue();
+                        String hash = index.getHash(e.getKey(), known[0], known[1]);
+                        sb.append(known[0]).append(' ').append(known[1]).append(' ')
+                            .append((hash != null) ? hash : "-").append(' ')
+                            .append(encodeName(e.getKey().getName()))
+                            .append('\n');
+                    }
+                    //All of it is ASCII once the names are encoded
+                    ByteBuffer data = ByteBuffer.wrap(sb.toString().getBytes(configuration.getCharset().name()));
+                    writeShared(data.asReadOnlyBuffer());
+                    ready();
                 }
-                else
+                catch(UnsupportedEncodingException e)
                 {
+                    //The charset is in use already
                     close();
                 }
-                break;
-                
-            case AUTH_STRING_SENT:
-                String[] split = command.split(" ");
-                if((split.length == 2) && split[0].equals("AUTH"))
+            }
+        });
+    }
+    
+    /**
+     * URL encodes a file name for the manifest. Most names need nothing done, so
+     * those are passed on as they are.
+     */
+    private String encodeName(String name) throws UnsupportedEncodingException
+    {
+        for(int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if(!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))
+                    || (c == '.') || (c == '-') || (c == '_')))
+            {
+                return URLEncoder.encode(name, configuration.getCharset().name());
+            }
+        }
+        return name;
+    }
+    
+    /**
+     * Deletes stored files, by the command executor.
+     * 
+     * @param command  the REMOVE command received
+     */
+    private void remove(String command)
+    {
+        String[] split = command.split(" ");
+        final FileManager manager;
+        final List<File> files = new ArrayList<File>();
+        try
+        {
+            if(split.length < 3)
+            {
+                throw new IllegalArgumentException();
+            }
+            manager = managerFor(Configuration.FileType.valueOf(split[1]));
+            for(int i = 2; i < split.length; i++)
+            {
+                files.add(new File(manager.getPath(), URLDecoder.decode(split[i], configuration.getCharset().name())));
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            close();
+            return;
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            close();
+            return;
+        }
+        state = State.LINKING;
+        configuration.getCommandExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                int removed = 0;
+                CatalogLog catalog = configuration.getCatalog();
+                catalog.hold();
+                try
                 {
-                    String expect = Security.digest(configuration.getPassword() + authString);
-                    if(split[1].equals(expect))
-                    {
-                        writeCommand("AUTH OK");
-                        state = State.AWAITING_FILE_INFO;
-                    }
-                    else
+                    for(File file : files)
                     {
-                        writeCommand("ERROR Invalid auth");
-                        close();
+                        int id = manager.idForFile(file);
+                        if((id != -1) && manager.deleteFile(id))
+                        {
+                            removed++;
+                        }
                     }
                 }
-                break;
-            case AWAITING_FILE_INFO:
-                receiveFileInfo(command);
-                break;
+                finally
+                {
+                    catalog.release();
+                }
+                writeCommand("REMOVE DONE " + removed);
+                ready();
+            }
+        });
+    }
+    
+    /**
+     * @return Returns the file manager for the type.
+     */
+    private FileManager managerFor(Configuration.FileType type)
+    {
+        return (type == Configuration.FileType.VIDEO)
+            ? configuration.getVideoManager() : configuration.getImageManager();
+    }
+    
+    /**
+     * Returns the file a client names in a folder, as long as the name is that of a
+     * file directly in the folder, like the names of the files of an archive.
+     * 
+     * @param folder  the folder of the type
+     * @param name    the name sent by the client
+     * 
+     * @return the file, or <i>null</i> if the name is not allowed
+     */
+    private static File storedFile(File folder, String name)
+    {
+        if(!new File(name.replace('\\', '/')).getName().equals(name) || (name.length() == 0)
+                || name.startsWith("."))
+        {
+            return null;
+        }
+        File file = new File(folder, name);
+        return folder.equals(file.getParentFile()) ? file : null;
+    }
+    
+    /**
+     * Sets up checking the data received against a digest sent after it.
+     * 
+     * @param algorithm  the digest algorithm asked for
+     */
+    private void check(String algorithm)
+    {
+        if(algorithm.equals("SHA-256"))
+        {
+            try
+            {
+                digest = MessageDigest.getInstance("SHA-256");
+                writeCommand("CHECK OK");
+                return;
+            }
+            catch(NoSuchAlgorithmException e)
+            {
+                //Answered as unsupported below
+            }
         }
+        writeCommand("ERROR Unsupported digest");
+        close();
     }
     
     /**
@@ -173,7 +1509,8 @@ public class FileTransferSession extends BasicInputHandler
         try
         {
             String[] split = command.split(" ");
-            if((split.length == 4) && split[0].equals("FILE"))
+            if((((split.length == 4) || (split.length == 5) || (split.length == 8)) && split[0].equals("FILE"))
+                    || ((split.length == 5) && split[0].equals("HAVE")))
             {
                 if(split[1].equals("VIDEO"))
                 {
@@ -190,6 +1527,7 @@ public class FileTransferSession extends BasicInputHandler
                 }
                 
                 fileSize = Long.parseLong(split[2]);
+                end = fileSize;
                 
                 filename = URLDecoder.decode(split[3], configuration.getCharset().name());
                 
@@ -205,8 +1543,44 @@ public class FileTransferSession extends BasicInputHandler
                         break;
                 }
                 
+                if(split[0].equals("HAVE"))
+                {
+                    File target = storedFile(path, filename);
+                    if(target == null)
+                    {
+                        close();
+                        return;
+                    }
+                    have(split[4], target);
+                    return;
+                }
+                if(batch && (split.length != 4))
+                {
+                    //Resumable uploads wait for the reply, they are not for batches
+                    close();
+                    return;
+                }
+                fileCount++;
                 dest = new File(path, filename);
-                fch = new FileOutputStream(dest).getChannel();
+                if(split.length == 5)
+                {
+                    resume(split[4]);
+                    return;
+                }
+                if(split.length == 8)
+                {
+                    if(split[5].equals("RANGE"))
+                    {
+                        range(split[4], Long.parseLong(split[6]), Long.parseLong(split[7]));
+                    }
+                    else
+                    {
+                        close();
+                    }
+                    return;
+                }
+                partial = configuration.getStagingArea().createTemporary(fileSize);
+                fch = new RandomAccessFile(partial, "rw").getChannel();
                 state = State.TRANSFER_IN_PROGRESS;
                 writeCommand("FILE OK");
             }
@@ -220,19 +1594,228 @@ public class FileTransferSession extends BasicInputHandler
             //Should nevere happen because we already got the encoding from the OS
             close();
         }
-        catch (FileNotFoundException e)
+        catch (IOException e)
         {
             System.err.println("Unable to create file: " + e.getMessage());
+            writeCommand("ERROR Unable to create file");
+            close();
+        }
+    }
+    
+    /**
+     * Makes the file from a stored one with the same content, if there is one. The
+     * file system work is done by the command executor, and the file is copied by
+     * the transfer engine where it cannot be linked.
+     * 
+     * @param hash    the SHA-256 hash of the content, in lower case hex
+     * @param target  the file to make
+     */
+    private void have(final String hash, final File target)
+    {
+        if(!hash.matches("[0-9a-f]{64}"))
+        {
+            close();
+            return;
+        }
+        final Configuration.FileType type = fileType;
+        final String name = filename;
+        final ContentIndex index = configuration.getContentIndex();
+        final StagingArea staging = configuration.getStagingArea();
+        final Flusher.Callback made = new Flusher.Callback()
+        {
+            public void committed(boolean moved)
+            {
+                if(moved)
+                {
+                    index.add(target, hash);
+                    finished(target, type, name, "HAVE OK");
+                }
+                else
+                {
+                    writeCommand("HAVE NO");
+                    ready();
+                }
+            }
+        };
+        state = State.LINKING;
+        configuration.getCommandExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                final File existing = index.find(hash, fileSize);
+                if((existing != null) && existing.equals(target))
+                {
+                    writeCommand("HAVE OK");
+                    ready();
+                }
+                else if(existing == null)
+                {
+                    writeCommand("HAVE NO");
+                    ready();
+                }
+                else if(!staging.link(existing, target, made))
+                {
+                    configuration.getTransferEngine().execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if(!staging.copy(existing, target, made))
+                            {
+                                writeCommand("HAVE NO");
+                                ready();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    /**
+     * Sets up receiving a resumable upload into its partial file.
+     * 
+     * @param contentID  the ID the client gave the content
+     */
+    private void resume(String contentID) throws IOException
+    {
+        if(!isValidContentID(contentID))
+        {
+            close();
+            return;
+        }
+        StagingArea staging = configuration.getStagingArea();
+        partial = staging.acquire(fileType, filename, fileSize, contentID);
+        if(partial == null)
+        {
+            writeCommand("ERROR Upload already in progress");
+            close();
+            return;
+        }
+        resumable = true;
+        written = partial.length();
+        if(written > fileSize)
+        {
+            partial.delete();
+            written = 0;
+        }
+        rangeStart = written;
+        fch = new RandomAccessFile(partial, "rw").getChannel();
+        state = State.TRANSFER_IN_PROGRESS;
+        writeCommand("FILE OK " + written);
+        expireStaged();
+    }
+    
+    /**
+     * Sets up receiving a range of an upload sent over several connections.
+     * 
+     * @param contentID  the ID the client gave the content
+     * @param start      the position of the range in the file
+     * @param length     the length of the range
+     */
+    private void range(String contentID, long start, long length) throws IOException
+    {
+        if(!isValidContentID(contentID))
+        {
+            close();
+            return;
+        }
+        StagingArea.Assembly a = configuration.getStagingArea().acquireAssembly(
+                fileType, filename, fileSize, contentID);
+        if(a == null)
+        {
+            writeCommand("ERROR Upload already in progress");
+            close();
+            return;
+        }
+        if(!a.begin(start, length))
+        {
+            writeCommand("ERROR Invalid range");
             close();
+            return;
         }
+        assembly = a;
+        fch = a.getChannel();
+        rangeStart = start;
+        written = start;
+        end = start + length;
+        state = State.TRANSFER_IN_PROGRESS;
+        writeCommand("FILE OK");
+        expireStaged();
+    }
+    
+    private static boolean isValidContentID(String contentID)
+    {
+        return contentID.matches("[A-Za-z0-9_.-]{1,64}");
+    }
+    
+    /**
+     * Deletes expired partial uploads in the background.
+     */
+    private void expireStaged()
+    {
+        final StagingArea staging = configuration.getStagingArea();
+        configuration.getCommandExecutor().execute(new Runnable()
+        {
+            public void run()
+            {
+                staging.expire();
+            }
+        });
     }
     
     public void close()
     {
         super.close();
-        if(written != fileSize)
+        if(sendCh != null)
+        {
+            try
+            {
+                sendCh.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if(assembly != null)
+        {
+            //The channel belongs to the Assembly, a range not complete is given up
+            assembly.end(rangeStart, end - rangeStart, false);
+        }
+        else if((fch != null) && fch.isOpen())
+        {
+            try
+            {
+                fch.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if(archiveEntries != null)
+        {
+            discardArchive();
+        }
+        if(baseCh != null)
         {
-            dest.delete();
+            try
+            {
+                baseCh.close();
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if(partial != null)
+        {
+            //Incomplete, kept for resuming if possible
+            if(!resumable)
+            {
+                partial.delete();
+            }
+            configuration.getStagingArea().release(partial);
         }
     }
 }
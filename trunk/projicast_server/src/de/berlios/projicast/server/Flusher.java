@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Thread making complete uploads durable and moving them to their folders. A file is
+ * written to disk, moved to its destination in one step, and only then handed on to
+ * be listed, so that no one ever sees an incomplete file.
+ * <p>
+ * How much is written to disk depends on the {@link Durability}. With BATCH, files
+ * completed while the last batch was written are written together, and each folder
+ * is written once per batch instead of once per file.
+ */
+public class Flusher extends Thread
+{
+    /**
+     * The longest time to wait for more files to join a batch.
+     */
+    private static final long BATCH_DELAY = 50;
+    
+    /**
+     * The most files waiting with their channel kept open. The channels of any
+     * further files are closed right away and opened again to be written, so that
+     * a flood of small files does not use up the file descriptors.
+     */
+    private static final int MAX_OPEN = 256;
+    
+    public enum Durability
+    {
+        /** Files are left to the operating system to write. */
+        NONE,
+        /** Files are written to disk in batches before being moved. */
+        BATCH,
+        /** Every file is written to disk on its own before being moved. */
+        ALWAYS
+    }
+    
+    /**
+     * Told when a file has been moved, or could not be.
+     */
+    public interface Callback
+    {
+        /**
+         * @param moved  <i>true</i> if the file is now at its destination
+         */
+        public void committed(boolean moved);
+    }
+    
+    private Durability durability;
+    private List<Commit> queue;
+    private int open = 0;
+    
+    /**
+     * Constructs and starts a new Flusher.
+     * 
+     * @param durability  how much to write to disk
+     */
+    public Flusher(Durability durability)
+    {
+        super("Flusher");
+        this.durability = durability;
+        queue = new ArrayList<Commit>();
+        setDaemon(true);
+        start();
+    }
+    
+    /**
+     * Closes a complete file, writes it to disk as the durability requires and moves
+     * it to its destination. Only with durability NONE is this done right away.
+     * 
+     * @param ch        the open channel of the file, or <i>null</i>
+     * @param file      the complete file
+     * @param dest      the file to move it to
+     * @param callback  told when done, may be <i>null</i>
+     */
+    public void commit(FileChannel ch, File file, File dest, Callback callback)
+    {
+        Commit commit = new Commit(ch, file, dest, callback);
+        if(durability == Durability.NONE)
+        {
+            commit.close();
+            commit.move();
+            commit.done();
+            return;
+        }
+        synchronized(this)
+        {
+            if(ch != null)
+            {
+                if(open < MAX_OPEN)
+                {
+                    open++;
+                }
+                else
+                {
+                    commit.close();
+                    commit.ch = null;
+                }
+            }
+            queue.add(commit);
+            notify();
+        }
+    }
+    
+    /**
+     * Moves a file to its destination in one step where the file system allows it,
+     * replacing any file there.
+     * 
+     * @param file  the file to move
+     * @param dest  the file to move it to
+     * 
+     * @return <i>true</i> if the file was moved
+     */
+    public static boolean move(File file, File dest)
+    {
+        try
+        {
+            try
+            {
+                Files.move(file.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e)
+            {
+                //Another file system, copied and then deleted
+                Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to move " + file + " to " + dest + ": " + e.getMessage());
+            return false;
+        }
+    }
+    
+    public void run()
+    {
+        while(true)
+        {
+            List<Commit> batch;
+            try
+            {
+                synchronized(this)
+                {
+                    while(queue.isEmpty())
+                    {
+                        wait();
+                    }
+                    if(durability == Durability.BATCH)
+                    {
+                        //Give uploads finishing at the same time a chance to join
+                        wait(BATCH_DELAY);
+                    }
+                    batch = queue;
+                    queue = new ArrayList<Commit>();
+                }
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            if(durability == Durability.ALWAYS)
+            {
+                for(Commit commit : batch)
+                {
+                    List<Commit> single = new ArrayList<Commit>(1);
+                    single.add(commit);
+                    flush(single);
+                }
+            }
+            else
+            {
+                flush(batch);
+            }
+        }
+    }
+    
+    /**
+     * Writes the files to disk, moves them and writes their folders to disk.
+     */
+    private void flush(List<Commit> batch)
+    {
+        Set<File> dirs = new HashSet<File>();
+        int closed = 0;
+        for(Commit commit : batch)
+        {
+            commit.force();
+            if(commit.ch != null)
+            {
+                commit.close();
+                closed++;
+            }
+        }
+        synchronized(this)
+        {
+            open -= closed;
+        }
+        for(Commit commit : batch)
+        {
+            if(commit.move())
+            {
+                dirs.add(commit.dest.getAbsoluteFile().getParentFile());
+            }
+        }
+        for(File dir : dirs)
+        {
+            forceDirectory(dir);
+        }
+        for(Commit commit : batch)
+        {
+            commit.done();
+        }
+    }
+    
+    /**
+     * Writes the entries of a folder to disk, where the platform allows it.
+     */
+    private static void forceDirectory(File dir)
+    {
+        try
+        {
+            FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try
+            {
+                ch.force(true);
+            }
+            finally
+            {
+                ch.close();
+            }
+        }
+        catch(IOException e)
+        {
+            //Not possible on all platforms, the move is still atomic
+        }
+    }
+    
+    /**
+     * A file waiting to be written and moved.
+     */
+    private static class Commit
+    {
+        private FileChannel ch;
+        private File file;
+        private File dest;
+        private Callback callback;
+        private boolean ok = true;
+        
+        public Commit(FileChannel ch, File file, File dest, Callback callback)
+        {
+            this.ch = ch;
+            this.file = file;
+            this.dest = dest;
+            this.callback = callback;
+        }
+        
+        public void force()
+        {
+            try
+            {
+                if(ch != null)
+                {
+                    ch.force(false);
+                }
+                else
+                {
+                    FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+                    try
+                    {
+                        fc.force(false);
+                    }
+                    finally
+                    {
+                        fc.close();
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                System.err.println("Unable to write " + file + " to disk: " + e.getMessage());
+                ok = false;
+            }
+        }
+        
+        public void close()
+        {
+            try
+            {
+                if(ch != null)
+                {
+                    ch.close();
+                }
+            }
+            catch(IOException e)
+            {
+                System.err.println("Unable to close " + file + ": " + e.getMessage());
+                ok = false;
+            }
+        }
+        
+        public boolean move()
+        {
+            ok = ok && Flusher.move(file, dest);
+            if(!ok)
+            {
+                file.delete();
+            }
+            return ok;
+        }
+        
+        public void done()
+        {
+            if(callback != null)
+            {
+                callback.committed(ok);
+            }
+        }
+    }
+}
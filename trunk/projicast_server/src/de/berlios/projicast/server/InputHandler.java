@@ -20,6 +20,7 @@
 package de.berlios.projicast.server;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
 
 /**
  * Interface for classes handling binary input from a channel.
@@ -27,12 +28,43 @@ import java.nio.ByteBuffer;
 public interface InputHandler
 {
     /**
-     * Inserts data into the buffer.
+     * Returns the buffer the next read from the channel goes into. The buffer is
+     * owned by the handler and must have room for at least one byte.
+     * 
+     * @return the buffer to read into, ready for putting data into it
+     */
+    public ByteBuffer getReadBuffer();
+    
+    /**
+     * Processes data read from the channel. The buffer is the read buffer, flipped
+     * so that the data lies between its position and limit. Data the handler does
+     * not consume is kept and presented again together with the next data read.
+     * 
+     * @param ibuf  the read buffer
      */
     public void input(ByteBuffer ibuf);
     
+    /**
+     * Called by the reactor once the channel has been registered with its selector.
+     * 
+     * @param reactor  the reactor servicing the channel
+     * @param key      the key the channel is registered with
+     */
+    public void attach(Reactor reactor, SelectionKey key);
+    
+    /**
+     * Called by the reactor when the channel is ready for writing pending output.
+     */
+    public void output();
+    
     /**
      * Closes the input handler.
      */
     public void close();
+    
+    /**
+     * Returns the buffers held by the handler to their pool. Called by the thread
+     * serving the channel once the handler is closed and will not be read into anymore.
+     */
+    public void releaseBuffers();
 }
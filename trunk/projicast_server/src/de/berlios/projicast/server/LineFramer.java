@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+
+/**
+ * Splits incoming bytes into lines. The bytes stay in the buffer they were read
+ * into and are scanned once for line terminators; bytes of an incomplete line are
+ * expected to be kept in front of the next data read, and only complete lines are
+ * decoded. Lines may be terminated by "\r\n", "\n" or "\r".
+ */
+public class LineFramer
+{
+    private CharsetDecoder decoder;
+    private int maxLineLength;
+    private CharBuffer chars;
+    private int scanned = 0;
+    private boolean skipLF = false;
+    
+    /**
+     * Constructs a new LineFramer.
+     * 
+     * @param decoder        the decoder to decode complete lines with
+     * @param maxLineLength  the maximum length of a line in bytes
+     */
+    public LineFramer(CharsetDecoder decoder, int maxLineLength)
+    {
+        this.decoder = decoder;
+        this.maxLineLength = maxLineLength;
+        chars = CharBuffer.allocate(256);
+    }
+    
+    /**
+     * Returns the next complete line from the specified buffer and moves the position
+     * of the buffer past it. The returned sequence is only valid until the next call
+     * to any method of this LineFramer; call <code>toString()</code> on it to keep it.
+     * 
+     * @param buf  the buffer holding received data between its position and limit
+     * 
+     * @return the next line without its terminator, or <i>null</i> if there is no complete line
+     * 
+     * @throws CharacterCodingException  if the line could not be decoded
+     * @throws IOException               if there is more than the maximum line length of
+     *                                   data without a line terminator
+     */
+    public CharSequence nextLine(ByteBuffer buf) throws IOException
+    {
+        int start = buf.position();
+        int end = buf.limit();
+        
+        //A "\r" at the end of the last chunk may be followed by the "\n" of a "\r\n"
+        if(skipLF && (start < end))
+        {
+            if(buf.get(start) == '\n')
+            {
+                start++;
+                buf.position(start);
+            }
+            skipLF = false;
+        }
+        
+        for(int i = start + scanned; i < end; i++)
+        {
+            byte b = buf.get(i);
+            if((b == '\n') || (b == '\r'))
+            {
+                if((i - start) > maxLineLength)
+                {
+                    throw new IOException("Line too long");
+                }
+                CharSequence line = decode(buf, start, i);
+                int next = i + 1;
+                if(b == '\r')
+                {
+                    if(next < end)
+                    {
+                        if(buf.get(next) == '\n')
+                        {
+                            next++;
+                        }
+                    }
+                    else
+                    {
+                        skipLF = true;
+                    }
+                }
+                buf.position(next);
+                scanned = 0;
+                return line;
+            }
+        }
+        scanned = end - start;
+        
+        if(scanned > maxLineLength)
+        {
+            throw new IOException("Line too long");
+        }
+        return null;
+    }
+    
+    /**
+     * Decodes a line into the reusable char buffer.
+     */
+    private CharSequence decode(ByteBuffer buf, int start, int end) throws CharacterCodingException
+    {
+        int maxChars = (int)Math.ceil((end - start) * (double)decoder.maxCharsPerByte());
+        if(chars.capacity() < maxChars)
+        {
+            chars = CharBuffer.allocate(maxChars);
+        }
+        ByteBuffer line = buf.duplicate();
+        line.limit(end);
+        line.position(start);
+        chars.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(line, chars, true);
+        if(result.isError())
+        {
+            result.throwException();
+        }
+        result = decoder.flush(chars);
+        if(result.isError())
+        {
+            result.throwException();
+        }
+        chars.flip();
+        return chars;
+    }
+}
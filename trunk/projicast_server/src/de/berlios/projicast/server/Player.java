@@ -47,6 +47,7 @@ public class Player
     private MPlayerThread mplayerThread;
     private State state = State.STOPPED;
     private Image defaultBackground;
+    private volatile StateListener stateListener;
     
     //This variable is for starting the slideshow automatically again after a video files
     //is played and the slideshow was running before
@@ -77,6 +78,42 @@ public class Player
         }
     }
     
+    /**
+     * Sets the listener to tell when the state of the player changes.
+     * 
+     * @param listener  the listener
+     */
+    public void setStateListener(StateListener listener)
+    {
+        stateListener = listener;
+    }
+    
+    /**
+     * @return Returns the state of the player.
+     */
+    public State getState()
+    {
+        return state;
+    }
+    
+    /**
+     * Changes the state and tells the listener about it.
+     * 
+     * @param newState  the new state
+     */
+    private void setState(State newState)
+    {
+        if(state != newState)
+        {
+            state = newState;
+            StateListener l = stateListener;
+            if(l != null)
+            {
+                l.stateChanged(newState);
+            }
+        }
+    }
+    
     /**
      * Starts the slideshow.
      */
@@ -87,7 +124,7 @@ public class Player
         internalStop();
         slideshowThread = new SlideshowThread(playlist, slideshowDelay);
         slideshowThread.start();
-        state = State.PLAYING_SLIDESHOW;
+        setState(State.PLAYING_SLIDESHOW);
     }
     
     /**
@@ -117,7 +154,7 @@ public class Player
     {
         internalStop();
         imageDisp.displayImage(file);
-        state = State.DISPLAYING_PICTURE;
+        setState(State.DISPLAYING_PICTURE);
     }
     
     /**
@@ -152,7 +189,7 @@ public class Player
         }
         
         imageDisp.displayImage(buffer);
-        state = State.DISPLAYING_PICTURE;
+        setState(State.DISPLAYING_PICTURE);
     }
     
     /**
@@ -183,7 +220,20 @@ public class Player
             case DISPLAYING_PICTURE:
                 break;
         }
-        state = State.STOPPED;
+        setState(State.STOPPED);
+    }
+    
+    /**
+     * Interface for being told when the state of a Player changes.
+     */
+    public interface StateListener
+    {
+        /**
+         * Called when the state of the player has changed.
+         * 
+         * @param state  the new state
+         */
+        void stateChanged(State state);
     }
     
     /**
@@ -223,7 +273,7 @@ public class Player
         
         public void run()
         {
-            state = Player.State.PLAYING_VIDEO;
+            setState(Player.State.PLAYING_VIDEO);
             try
             {
                 mplayer = Runtime.getRuntime().exec(
@@ -243,12 +293,12 @@ public class Player
                 }
                 else
                 {
-                    state = Player.State.STOPPED;
+                    setState(Player.State.STOPPED);
                 }
             }
             catch(IOException e)
             {
-                state = Player.State.STOPPED;
+                setState(Player.State.STOPPED);
                 e.printStackTrace();
             }
             catch(InterruptedException e)
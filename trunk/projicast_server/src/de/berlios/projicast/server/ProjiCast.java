@@ -49,6 +49,16 @@ public class ProjiCast
      * 8 - unable to create image dir
      * 9 - unable to create slideshow dir
      * 10 - invalid slideshow delay
+     * 11 - invalid number of reactor threads
+     * 12 - invalid number of worker threads
+     * 13 - invalid server mode
+     * 14 - invalid buffer memory size
+     * 15 - invalid number of transfer threads
+     * 16 - unable to create staging dir
+     * 17 - invalid partial upload expiry time
+     * 18 - invalid durability
+     * 19 - invalid transfer limit
+     * 20 - invalid transfer timeout
      */
     public static void main(String[] args) throws Exception
     {
@@ -89,6 +99,90 @@ public class ProjiCast
             System.exit(4);
         }
         
+        int reactorThreads = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            reactorThreads = Integer.parseInt(
+                    prop.getProperty("reactorThreads", Integer.toString(reactorThreads)));
+            if(reactorThreads < 1)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid number of reactor threads specified in config file!");
+            System.exit(11);
+        }
+        
+        int workerThreads = 4;
+        try
+        {
+            workerThreads = Integer.parseInt(prop.getProperty("workerThreads", "4"));
+            if(workerThreads < 1)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid number of worker threads specified in config file!");
+            System.exit(12);
+        }
+        
+        int transferThreads = 4;
+        try
+        {
+            transferThreads = Integer.parseInt(prop.getProperty("transferThreads", "4"));
+            if(transferThreads < 1)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid number of transfer threads specified in config file!");
+            System.exit(15);
+        }
+        
+        long transferTimeout = 60;
+        try
+        {
+            transferTimeout = Long.parseLong(prop.getProperty("transferTimeout", "60").trim());
+            if(transferTimeout < 0)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid transfer timeout specified in config file!");
+            System.exit(20);
+        }
+        
+        String serverMode = prop.getProperty("serverMode", "reactor");
+        if(!serverMode.equals("reactor") && !serverMode.equals("threads"))
+        {
+            System.err.println("Invalid server mode specified in config file!");
+            System.exit(13);
+        }
+        
+        long bufferMemory = 64;
+        try
+        {
+            bufferMemory = Long.parseLong(prop.getProperty("bufferMemory", "64"));
+            if(bufferMemory < 1)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid buffer memory size specified in config file!");
+            System.exit(14);
+        }
+        boolean debugBuffers = Boolean.valueOf(prop.getProperty("debugBuffers", "false"));
+        
         String mplayerPath = prop.getProperty("mplayerPath", "/usr/bin/mplayer");
         
         File videoPath = new File(prop.getProperty("videoPath", "video"));
@@ -108,6 +202,58 @@ public class ProjiCast
             System.exit(8);
         }
         
+        File stagingPath = new File(prop.getProperty("stagingPath", "staging"));
+        if(!stagingPath.exists() && !stagingPath.mkdirs())
+        {
+            System.err.println("Could not create the staging directory. Please create it " +
+                    "manually or specify another path in the configuration file.");
+            System.exit(16);
+        }
+        
+        long partialUploadExpiry = 24;
+        try
+        {
+            partialUploadExpiry = Long.parseLong(prop.getProperty("partialUploadExpiry", "24"));
+            if(partialUploadExpiry < 1)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid partial upload expiry time specified in config file!");
+            System.exit(17);
+        }
+        
+        Flusher.Durability durability = Flusher.Durability.BATCH;
+        try
+        {
+            durability = Flusher.Durability.valueOf(prop.getProperty("durability", "batch").trim().toUpperCase());
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Invalid durability specified in config file!");
+            System.exit(18);
+        }
+        
+        long transferLimit = 0;
+        try
+        {
+            transferLimit = Long.parseLong(prop.getProperty("transferLimit", "0").trim());
+            if(transferLimit < 0)
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            System.err.println("Invalid transfer limit specified in config file!");
+            System.exit(19);
+        }
+        
+        ContentIndex contentIndex = new ContentIndex(new File(prop.getProperty("contentIndexPath", "contentindex")));
+        contentIndex.load();
+        
         String strEffect = prop.getProperty("transitionEffect", "none");
         ImageDisplayer.TransitionEffect transEffect = ImageDisplayer.TransitionEffect.NONE;
         if(strEffect.equals("fade"))
@@ -175,10 +321,25 @@ public class ProjiCast
                 password, 
                 videoManager, 
                 imageManager,
-                new ArrayList<Integer>()); //TODO fix this
+                new ArrayList<Integer>(), //TODO fix this
+                new CommandExecutor(workerThreads),
+                new BufferPool(bufferMemory * 1024 * 1024, debugBuffers),
+                new TransferEngine(transferThreads, transferTimeout * 1000),
+                new StagingArea(stagingPath, partialUploadExpiry * 60 * 60 * 1000, durability),
+                contentIndex,
+                new TransferScheduler(transferLimit * 1024));
+        configuration.getStagingArea().expire();
         configuration.load();
         
-        ServerThread thread = new ServerThread(configuration, port, ftPort);
-        thread.start();
+        if(serverMode.equals("threads"))
+        {
+            BlockingServerThread thread = new BlockingServerThread(configuration, port, ftPort);
+            thread.start();
+        }
+        else
+        {
+            ServerThread thread = new ServerThread(configuration, port, ftPort, reactorThreads);
+            thread.start();
+        }
     }
 }
\ No newline at end of file
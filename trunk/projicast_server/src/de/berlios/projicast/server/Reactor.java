@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+/**
+ * A selector thread servicing its own share of the server's connections. Channels
+ * are handed to it by the ServerThread after being accepted and stay with the
+ * same Reactor until they are closed.
+ */
+public class Reactor extends Thread
+{
+    private volatile boolean running = true;
+    private Selector selector;
+    private Queue<Registration> pending;
+    private Queue<Runnable> tasks;
+    private Queue<Runnable> detached;
+    
+    /**
+     * Constructs a new Reactor with its own selector.
+     * 
+     * @param number  the number of this reactor, used for naming the thread
+     */
+    public Reactor(int number) throws IOException
+    {
+        super("Reactor-" + number);
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<Registration>();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        detached = new ConcurrentLinkedQueue<Runnable>();
+    }
+    
+    /**
+     * Hands a newly accepted channel over to this Reactor. The channel will be
+     * registered for reading with the specified handler the next time the
+     * reactor thread wakes up.
+     * 
+     * @param ch       the channel, which must be in non-blocking mode
+     * @param handler  the handler to pass read data to
+     */
+    public void register(SocketChannel ch, InputHandler handler)
+    {
+        pending.add(new Registration(ch, handler));
+        selector.wakeup();
+    }
+    
+    /**
+     * Runs the specified task on the reactor thread after the channels selected
+     * in the current round have been serviced.
+     * 
+     * @param task  the task to run
+     */
+    public void execute(Runnable task)
+    {
+        tasks.add(task);
+        wakeup();
+    }
+    
+    /**
+     * Takes the channel of the specified key away from this Reactor. The key is
+     * cancelled, and once the selector has let go of the channel the specified task
+     * is run on the reactor thread; from then on the channel may be put in blocking
+     * mode and served by another thread.
+     * 
+     * @param key   the key of the channel
+     * @param then  the task to run once the channel is free
+     */
+    public void detach(SelectionKey key, Runnable then)
+    {
+        key.cancel();
+        detached.add(then);
+        selector.wakeup();
+    }
+    
+    /**
+     * Wakes up the selector so that changed interest sets take effect. Does nothing
+     * when called from the reactor thread itself since it will select again anyway.
+     */
+    public void wakeup()
+    {
+        if(Thread.currentThread() != this)
+        {
+            selector.wakeup();
+        }
+    }
+    
+    /**
+     * Stops this Reactor.
+     */
+    public void cancel()
+    {
+        running = false;
+        selector.wakeup();
+    }
+    
+    public void run()
+    {
+        try
+        {
+            List<Runnable> freed = new ArrayList<Runnable>();
+            while(running)
+            {
+                //Cancelled keys are let go of by the next select, so only the
+                //channels detached before it are free afterwards
+                Runnable task;
+                while((task = detached.poll()) != null)
+                {
+                    freed.add(task);
+                }
+                if(freed.isEmpty())
+                {
+                    selector.select();
+                }
+                else
+                {
+                    selector.selectNow();
+                    for(Runnable r : freed)
+                    {
+                        r.run();
+                    }
+                    freed.clear();
+                }
+                registerPending();
+                
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> it = keys.iterator();
+                while(it.hasNext())
+                {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(key.isValid() && key.isWritable())
+                    {
+                        ((InputHandler)key.attachment()).output();
+                    }
+                    //Reads may have been suspended by the handler in the meantime
+                    if(key.isValid() && key.isReadable()
+                            && ((key.interestOps() & SelectionKey.OP_READ) != 0))
+                    {
+                        read(key);
+                    }
+                }
+                
+                while((task = tasks.poll()) != null)
+                {
+                    task.run();
+                }
+            }
+            selector.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Registers all channels handed to this Reactor since the last select.
+     */
+    private void registerPending()
+    {
+        Registration reg;
+        while((reg = pending.poll()) != null)
+        {
+            try
+            {
+                SelectionKey key = reg.ch.register(selector, SelectionKey.OP_READ, reg.handler);
+                reg.handler.attach(this, key);
+            }
+            catch(ClosedChannelException e)
+            {
+                reg.handler.close();
+                reg.handler.releaseBuffers();
+            }
+        }
+    }
+    
+    /**
+     * Reads from the channel of the specified key into the read buffer of its
+     * handler and passes the data on.
+     * 
+     * @param key  the readable key
+     */
+    private void read(SelectionKey key)
+    {
+        InputHandler session = (InputHandler)key.attachment();
+        SocketChannel ch = (SocketChannel)key.channel();
+        ByteBuffer buf = session.getReadBuffer();
+        int len = 0;
+        try
+        {
+            len = ch.read(buf);
+        }
+        catch(IOException e)
+        {
+            len = -1;
+        }
+        if(len > 0)
+        {
+            buf.flip();
+            session.input(buf);
+            buf.compact();
+        }
+        else if(len == -1)
+        {
+            session.close();
+        }
+    }
+    
+    /**
+     * A channel waiting to be registered with the selector.
+     */
+    private static class Registration
+    {
+        private SocketChannel ch;
+        private InputHandler handler;
+        
+        private Registration(SocketChannel ch, InputHandler handler)
+        {
+            this.ch = ch;
+            this.handler = handler;
+        }
+    }
+}
@@ -22,7 +22,6 @@ package de.berlios.projicast.server;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -33,7 +32,8 @@ import java.util.Set;
 
 
 /**
- * The main server thread.
+ * The main server thread. Accepts connections on both listening ports and hands
+ * them over to a pool of Reactors which do all reading and command handling.
  */
 public class ServerThread extends Thread
 {
@@ -41,48 +41,81 @@ public class ServerThread extends Thread
     private int port;
     private int ftPort;
     private Configuration configuration;
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+    private Selector selector;
     
     /**
      * Constructs a new ServerThread running on the specified ports with the
      * specified configuration.
      * 
-     * @param port           the port to listen for control sessions on
-     * @param ftPort         the port to listen for file transfer sessions on
-     * @param configuration  the server configuration to use
+     * @param configuration   the server configuration to use
+     * @param port            the port to listen for control sessions on
+     * @param ftPort          the port to listen for file transfer sessions on
+     * @param reactorThreads  the number of reactor threads to service connections with
      */
-    public ServerThread(Configuration configuration, int port, int ftPort)
+    public ServerThread(Configuration configuration, int port, int ftPort, int reactorThreads)
     {
         this.port = port;
         this.ftPort = ftPort;
         this.configuration = configuration;
+        reactors = new Reactor[reactorThreads];
     }
     
     public void cancel()
     {
         running = false;
+        for(Reactor reactor : reactors)
+        {
+            if(reactor != null)
+            {
+                reactor.cancel();
+            }
+        }
+        if(selector != null)
+        {
+            selector.wakeup();
+        }
+    }
+    
+    /**
+     * Hands an accepted channel over to the next reactor thread in turn.
+     * 
+     * @param ch       the accepted channel
+     * @param handler  the handler to read the channel with
+     */
+    public void dispatch(SocketChannel ch, InputHandler handler)
+    {
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        reactor.register(ch, handler);
     }
     
     public void run()
     {
         try
         {
-            Selector selector = Selector.open();
+            for(int i = 0; i < reactors.length; i++)
+            {
+                reactors[i] = new Reactor(i);
+                reactors[i].start();
+            }
+            
+            selector = Selector.open();
             //Control sessions
             ServerSocketChannel ssc = ServerSocketChannel.open();
             ServerSocket ss = ssc.socket();
             ssc.configureBlocking(false);
             ss.bind(new InetSocketAddress(port));
-            ssc.register(selector, SelectionKey.OP_ACCEPT, new ControlAcceptor(selector, configuration));
+            ssc.register(selector, SelectionKey.OP_ACCEPT, new ControlAcceptor(this, configuration));
             //File transfer sessions
             ssc = ServerSocketChannel.open();
             ss = ssc.socket();
             ssc.configureBlocking(false);
             ss.bind(new InetSocketAddress(ftPort));
-            ssc.register(selector, SelectionKey.OP_ACCEPT, new FileAcceptor(selector, configuration));
-            ByteBuffer buf = ByteBuffer.allocateDirect(8 * 4096);
+            ssc.register(selector, SelectionKey.OP_ACCEPT, new FileAcceptor(this, configuration));
             while(running)
             {
-                int len = 0;
                 Iterator<SelectionKey> it;
                 Set<SelectionKey> keys;
                 selector.select();
@@ -96,29 +129,6 @@ public class ServerThread extends Thread
                         Acceptor acc = (Acceptor)key.attachment();
                         acc.accept(key);
                     }
-                    if(key.isReadable())
-                    {
-                        InputHandler session = (InputHandler)key.attachment();
-                        SocketChannel ch = (SocketChannel)key.channel();
-                        try
-                        {
-                            len = ch.read(buf);
-                        }
-                        catch(IOException e)
-                        {
-                            e.printStackTrace();
-                        }
-                        if(len != -1)
-                        {
-                            buf.flip();
-                            session.input(buf);
-                            buf.clear();
-                        }
-                        else
-                        {
-                            session.close();
-                        }
-                    }
                     it.remove();
                 }
             }
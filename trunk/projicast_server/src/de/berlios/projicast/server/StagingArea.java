@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Directory keeping the partial files of resumable uploads. A partial file is found
+ * again by the type, name and size of the upload and an ID the client gives its
+ * content, so that an upload which broke off can be resumed where it stopped. Uploads
+ * that cannot be resumed are written to a temporary file here as well, so that no
+ * incomplete file is ever seen in the folders. When complete, a file is handed to
+ * the {@link Flusher} to be written to disk and moved to its folder. Partial files
+ * not written to for longer than the expiry time are deleted.
+ * <p>
+ * A file may also be uploaded in ranges over several connections at once. The
+ * ranges are written into the same preallocated partial file through an
+ * {@link Assembly}, which keeps track of the ranges received.
+ */
+public class StagingArea
+{
+    private File path;
+    private long expiry;
+    private Set<File> active;
+    private Map<File, Assembly> assemblies;
+    private Flusher flusher;
+    
+    /**
+     * Constructs a new StagingArea.
+     * 
+     * @param path        the directory to keep partial files in
+     * @param expiry      the time in milliseconds after which partial files are deleted
+     * @param durability  how much of a complete file to write to disk before moving it
+     */
+    public StagingArea(File path, long expiry, Flusher.Durability durability)
+    {
+        this.path = path;
+        this.expiry = expiry;
+        flusher = new Flusher(durability);
+        active = new HashSet<File>();
+        assemblies = new HashMap<File, Assembly>();
+    }
+    
+    /**
+     * Returns the partial file of an upload and marks it as being written to.
+     * 
+     * @param type       the type of the file
+     * @param name       the name of the file
+     * @param size       the size of the file
+     * @param contentID  the ID the client gave the content
+     * 
+     * @return the partial file, which may not exist yet, or <i>null</i> if the same
+     *         upload is already in progress
+     */
+    public synchronized File acquire(Configuration.FileType type, String name, long size, String contentID)
+    {
+        File partial = partialFile(type, name, size, contentID);
+        if(assemblies.containsKey(partial) || !active.add(partial))
+        {
+            return null;
+        }
+        return partial;
+    }
+    
+    /**
+     * Creates a temporary file for an upload that cannot be resumed, preallocated to
+     * the size of the upload, and marks it as being written to.
+     * 
+     * @param size  the size of the upload
+     * 
+     * @return the temporary file
+     * 
+     * @throws IOException  if the file could not be created
+     */
+    public File createTemporary(long size) throws IOException
+    {
+        File tmp = new File(path, Security.generate(16) + ".upload");
+        synchronized(this)
+        {
+            active.add(tmp);
+        }
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+            try
+            {
+                file.setLength(size);
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        catch(IOException e)
+        {
+            tmp.delete();
+            release(tmp);
+            throw e;
+        }
+        return tmp;
+    }
+    
+    /**
+     * Returns the Assembly receiving the ranges of an upload, creating it and its
+     * preallocated partial file for the first range.
+     * 
+     * @param type       the type of the file
+     * @param name       the name of the file
+     * @param size       the size of the file
+     * @param contentID  the ID the client gave the content
+     * 
+     * @return the Assembly, or <i>null</i> if the file is being uploaded as a whole
+     * 
+     * @throws IOException  if the partial file could not be created
+     */
+    public synchronized Assembly acquireAssembly(Configuration.FileType type, String name, long size,
+            String contentID) throws IOException
+    {
+        File partial = partialFile(type, name, size, contentID);
+        if(active.contains(partial))
+        {
+            return null;
+        }
+        Assembly assembly = assemblies.get(partial);
+        if(assembly == null)
+        {
+            assembly = new Assembly(partial, size);
+            assemblies.put(partial, assembly);
+        }
+        return assembly;
+    }
+    
+    /**
+     * Returns the partial file of an upload.
+     */
+    private File partialFile(Configuration.FileType type, String name, long size, String contentID)
+    {
+        return new File(path, Security.digest(type + "/" + name + "/" + size + "/" + contentID) + ".part");
+    }
+    
+    /**
+     * Marks a partial file as no longer being written to, so that the upload can be
+     * resumed by another connection.
+     * 
+     * @param partial  the partial file
+     */
+    public synchronized void release(File partial)
+    {
+        active.remove(partial);
+    }
+    
+    /**
+     * Has a complete file written to disk and moved to its destination. The file is
+     * marked as no longer being written to once moved.
+     * 
+     * @param ch        the open channel of the file, closed when written
+     * @param partial   the complete partial or temporary file
+     * @param dest      the file to move it to
+     * @param callback  told when the file has been moved, may be <i>null</i>
+     */
+    public void commit(FileChannel ch, final File partial, File dest, final Flusher.Callback callback)
+    {
+        flusher.commit(ch, partial, dest, new Flusher.Callback()
+        {
+            public void committed(boolean moved)
+            {
+                release(partial);
+                if(callback != null)
+                {
+                    callback.committed(moved);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Has the file of a complete Assembly written to disk and moved to its destination.
+     * 
+     * @param assembly  the complete Assembly
+     * @param dest      the file to move it to
+     * @param callback  told when the file has been moved, may be <i>null</i>
+     */
+    public void commit(Assembly assembly, File dest, Flusher.Callback callback)
+    {
+        synchronized(this)
+        {
+            assemblies.remove(assembly.partial);
+            active.add(assembly.partial);
+        }
+        commit(assembly.ch, assembly.partial, dest, callback);
+    }
+    
+    /**
+     * Makes a file with the same content as a stored one as a hard link. The link is
+     * made here and then moved to its destination.
+     * 
+     * @param existing  the stored file
+     * @param dest      the file to make
+     * @param callback  told when the file has been made, may be <i>null</i>
+     * 
+     * @return <i>false</i> if the file system does not allow a link, see {@link #copy}
+     */
+    public boolean link(File existing, File dest, Flusher.Callback callback)
+    {
+        File tmp = new File(path, Security.generate(16) + ".link");
+        synchronized(this)
+        {
+            active.add(tmp);
+        }
+        try
+        {
+            Files.createLink(tmp.toPath(), existing.toPath());
+        }
+        catch(IOException e)
+        {
+            release(tmp);
+            return false;
+        }
+        catch(UnsupportedOperationException e)
+        {
+            release(tmp);
+            return false;
+        }
+        commit(null, tmp, dest, callback);
+        return true;
+    }
+    
+    /**
+     * Makes a file with the same content as a stored one as a copy, where it cannot
+     * be linked. The copy is made here and then moved to its destination, so that it
+     * never appears incomplete. It takes as long as receiving the file would, so it
+     * is meant for a transfer thread.
+     * 
+     * @param existing  the stored file
+     * @param dest      the file to make
+     * @param callback  told when the file has been made, may be <i>null</i>
+     * 
+     * @return <i>false</i> if the file could not be copied
+     */
+    public boolean copy(File existing, File dest, Flusher.Callback callback)
+    {
+        File tmp = new File(path, Security.generate(16) + ".link");
+        synchronized(this)
+        {
+            active.add(tmp);
+        }
+        try
+        {
+            FileChannel in = new FileInputStream(existing).getChannel();
+            try
+            {
+                FileChannel out = new FileOutputStream(tmp).getChannel();
+                try
+                {
+                    long pos = 0;
+                    long size = in.size();
+                    while(pos < size)
+                    {
+                        pos += in.transferTo(pos, size - pos, out);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Unable to copy " + existing + " to " + dest + ": " + e.getMessage());
+            tmp.delete();
+            release(tmp);
+            return false;
+        }
+        commit(null, tmp, dest, callback);
+        return true;
+    }
+    
+    /**
+     * Deletes the partial files which have expired and are not being written to.
+     */
+    public void expire()
+    {
+        File[] files = path.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        long limit = System.currentTimeMillis() - expiry;
+        synchronized(this)
+        {
+            Iterator<Assembly> it = assemblies.values().iterator();
+            while(it.hasNext())
+            {
+                Assembly assembly = it.next();
+                if(assembly.isIdle() && (assembly.partial.lastModified() < limit))
+                {
+                    it.remove();
+                    try
+                    {
+                        assembly.ch.close();
+                    }
+                    catch(IOException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        for(File file : files)
+        {
+            synchronized(this)
+            {
+                String name = file.getName();
+                if((name.endsWith(".part") || name.endsWith(".upload") || name.endsWith(".link")) && !active.contains(file)
+                        && !assemblies.containsKey(file) && (file.lastModified() < limit))
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+    
+    /**
+     * The partial file of an upload sent in ranges over several connections, with the
+     * ranges received so far. Ranges are written with positional writes, so any number
+     * of connections may write to the channel at the same time.
+     */
+    public static class Assembly
+    {
+        private File partial;
+        private long size;
+        private FileChannel ch;
+        private List<long[]> received;
+        private List<long[]> inProgress;
+        private long receivedBytes = 0;
+        
+        private Assembly(File partial, long size) throws IOException
+        {
+            this.partial = partial;
+            this.size = size;
+            RandomAccessFile file = new RandomAccessFile(partial, "rw");
+            //Allocated at once so the ranges do not fragment the file
+            file.setLength(size);
+            ch = file.getChannel();
+            received = new ArrayList<long[]>();
+            inProgress = new ArrayList<long[]>();
+        }
+        
+        /**
+         * @return Returns the channel to write ranges to.
+         */
+        public FileChannel getChannel()
+        {
+            return ch;
+        }
+        
+        /**
+         * Notes that a range is about to be received.
+         * 
+         * @return <i>false</i> if the range is outside the file, is being received or
+         *         overlaps another range
+         */
+        public synchronized boolean begin(long start, long length)
+        {
+            if((start < 0) || (length <= 0) || ((start + length) > size) || !ch.isOpen())
+            {
+                return false;
+            }
+            //A range sent again, as when a client starts over, is simply received again
+            for(Iterator<long[]> it = received.iterator(); it.hasNext();)
+            {
+                long[] range = it.next();
+                if((range[0] == start) && (range[1] == length))
+                {
+                    it.remove();
+                    receivedBytes -= length;
+                }
+            }
+            if(overlaps(received, start, length) || overlaps(inProgress, start, length))
+            {
+                return false;
+            }
+            inProgress.add(new long[] { start, length });
+            return true;
+        }
+        
+        /**
+         * Notes that a range has been received or has been given up.
+         * 
+         * @param complete  <i>true</i> if the whole range has been written
+         * 
+         * @return <i>true</i> if the whole file has now been received
+         */
+        public synchronized boolean end(long start, long length, boolean complete)
+        {
+            for(Iterator<long[]> it = inProgress.iterator(); it.hasNext();)
+            {
+                long[] range = it.next();
+                if((range[0] == start) && (range[1] == length))
+                {
+                    it.remove();
+                    if(complete)
+                    {
+                        received.add(range);
+                        receivedBytes += length;
+                        return receivedBytes == size;
+                    }
+                    break;
+                }
+            }
+            return false;
+        }
+        
+        private synchronized boolean isIdle()
+        {
+            return inProgress.isEmpty();
+        }
+        
+        private static boolean overlaps(List<long[]> ranges, long start, long length)
+        {
+            for(long[] range : ranges)
+            {
+                if((start < (range[0] + range[1])) && (range[0] < (start + length)))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+
+
+/**
+ * ControlCodec for the line based text protocol. A request ID sent with a command
+ * is put in front of the first line of the reply, and events are prefixed "EVENT".
+ */
+public class TextControlCodec implements ControlCodec
+{
+    private BasicInputHandler session;
+    private String charset;
+    private String tag;
+    private boolean event;
+    
+    /**
+     * Constructs a new TextControlCodec.
+     * 
+     * @param session  the session to write to
+     * @param charset  the name of the charset file names are encoded with
+     */
+    public TextControlCodec(BasicInputHandler session, String charset)
+    {
+        this.session = session;
+        this.charset = charset;
+    }
+    
+    public void begin(ControlCommand command)
+    {
+        tag = null;
+        event = (command == null);
+        if(!event)
+        {
+            String line = command.getLine();
+            if(line.startsWith("#"))
+            {
+                tag = line.substring(0, line.indexOf(' ') + 1);
+            }
+        }
+    }
+    
+    public void end()
+    {
+        tag = null;
+    }
+    
+    /**
+     * Writes a line, with the request ID if it is the first line of the reply.
+     */
+    private void line(String line)
+    {
+        if(tag != null)
+        {
+            line = tag + line;
+            tag = null;
+        }
+        session.writeCommand(line);
+    }
+    
+    /**
+     * Writes the first line of a reply or event.
+     */
+    private void header(String line)
+    {
+        line(event ? ("EVENT " + line) : line);
+    }
+    
+    private String encode(String name)
+    {
+        try
+        {
+            return URLEncoder.encode(name, charset);
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            //Should never happen because we already got the encoding from the OS
+            throw new RuntimeException(e);
+        }
+    }
+    
+    public void ok(String text)
+    {
+        line(text);
+    }
+    
+    public void error(String message)
+    {
+        line("ERROR " + message);
+    }
+    
+    public void fileList(String epoch, FileListSnapshot snapshot)
+    {
+        session.writeShared(snapshot.getData());
+    }
+    
+    public void syncFull(String epoch, FileListSnapshot snapshot)
+    {
+        header("SYNC FULL " + epoch + " " + snapshot.getVersion());
+        session.writeShared(snapshot.getData());
+    }
+    
+    public void syncDelta(String epoch, long version)
+    {
+        header("SYNC DELTA " + epoch + " " + version);
+    }
+    
+    public void added(Configuration.FileType type, int id, String name)
+    {
+        line(type + " " + id + " " + encode(name));
+    }
+    
+    public void renamed(Configuration.FileType type, int id, String name)
+    {
+        line("RENAME " + type + " " + id + " " + encode(name));
+    }
+    
+    public void removed(Configuration.FileType type, int id)
+    {
+        line("REMOVE " + type + " " + id);
+    }
+    
+    public void playlist(List<Integer> ids)
+    {
+        line("PLIST RESET");
+        for(Integer id : ids)
+        {
+            line("PLIST " + id);
+        }
+    }
+    
+    public void syncEnd()
+    {
+        line("SYNC END");
+    }
+    
+    public void statsQueue(int depth)
+    {
+        line("STATS QUEUE " + depth);
+    }
+    
+    public void stat(String name, CommandExecutor.Stats stats)
+    {
+        line("STATS " + name + " " + stats.getCount() + " "
+                + stats.getAverageMicros() + " " + stats.getMaxMicros());
+    }
+    
+    public void statsEnd()
+    {
+        line("STATS END");
+    }
+    
+    public void playerState(Player.State state)
+    {
+        header("PLAYER " + state);
+    }
+    
+    public void uploaded(Configuration.FileType type, String filename)
+    {
+        header("UPLOAD " + type + " " + encode(filename));
+    }
+}
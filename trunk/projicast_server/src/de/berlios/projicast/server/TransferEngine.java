@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Pool of threads moving upload data from the network into files. Once the header
+ * of an upload has been accepted, its channel is taken away from the reactor and
+ * owned by one of these threads, which waits on it alone, so that large uploads
+ * neither wait for their turn in a selector loop nor hold up the control sessions.
+ * <p>
+ * Since a thread is taken for as long as the upload's connection lasts, a
+ * connection on which nothing moves for the idle timeout is closed, so that
+ * stalled clients do not keep the threads from other uploads.
+ */
+public class TransferEngine implements Executor
+{
+    /**
+     * The idle timeout used unless another is given, in milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+    
+    private ExecutorService pool;
+    private long idleTimeout;
+    
+    /**
+     * Constructs a new TransferEngine with the default idle timeout.
+     * 
+     * @param threads  the number of uploads received at the same time, further
+     *                 uploads wait for a thread to become free
+     */
+    public TransferEngine(int threads)
+    {
+        this(threads, DEFAULT_IDLE_TIMEOUT);
+    }
+    
+    /**
+     * Constructs a new TransferEngine.
+     * 
+     * @param threads      the number of uploads received at the same time, further
+     *                     uploads wait for a thread to become free
+     * @param idleTimeout  the time in milliseconds after which a connection on which
+     *                     nothing moves is closed, 0 for never
+     */
+    public TransferEngine(int threads, long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private int count = 0;
+            
+            public synchronized Thread newThread(Runnable r)
+            {
+                return new Thread(r, "Transfer-" + count++);
+            }
+        });
+    }
+    
+    /**
+     * @return Returns the time in milliseconds after which a connection on which
+     *         nothing moves is closed, 0 for never.
+     */
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+    
+    /**
+     * Runs the transfer of an upload on one of the threads.
+     * 
+     * @param transfer  the transfer to run
+     */
+    public void execute(Runnable transfer)
+    {
+        pool.execute(transfer);
+    }
+    
+    /**
+     * Stops the threads once the running and waiting transfers are done.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+}
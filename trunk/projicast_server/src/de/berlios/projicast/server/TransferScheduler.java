@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+
+
+/**
+ * Shares the bandwidth for receiving uploads among the uploads in progress. A token
+ * bucket caps the total rate, and the tokens are handed out by deficit round robin,
+ * a quantum per turn, so that every upload gets an equal share whatever the size of
+ * the reads it asks for. The cap can be changed while the server runs.
+ * <p>
+ * Connections are also marked for routers that prioritize traffic, control
+ * connections as interactive and file transfers as bulk data.
+ */
+public class TransferScheduler
+{
+    /**
+     * The bytes an upload may receive per turn.
+     */
+    private static final int QUANTUM = 64 * 1024;
+    
+    private static final int IPTOS_LOWDELAY = 0x10;
+    private static final int IPTOS_THROUGHPUT = 0x08;
+    
+    private long rate;
+    private double tokens = 0;
+    private long lastRefill;
+    private ArrayDeque<Flow> ring;
+    
+    /**
+     * Constructs a new TransferScheduler.
+     * 
+     * @param rate  the most bytes per second to receive in total, 0 for no limit
+     */
+    public TransferScheduler(long rate)
+    {
+        this.rate = rate;
+        ring = new ArrayDeque<Flow>();
+        lastRefill = System.nanoTime();
+    }
+    
+    /**
+     * Changes the limit. Uploads waiting for their turn go on at the new rate.
+     * 
+     * @param rate  the most bytes per second to receive in total, 0 for no limit
+     */
+    public synchronized void setRate(long rate)
+    {
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, burst());
+        notifyAll();
+    }
+    
+    /**
+     * @return Returns the most bytes per second received in total, 0 for no limit.
+     */
+    public synchronized long getRate()
+    {
+        return rate;
+    }
+    
+    /**
+     * Waits for the turn of an upload and returns how much it may receive.
+     * 
+     * @param flow  the upload
+     * @param want  the number of bytes the upload would like to receive
+     * 
+     * @return the number of bytes the upload may receive now, at most <code>want</code>
+     * 
+     * @throws IOException  if interrupted while waiting
+     */
+    public synchronized int acquire(Flow flow, int want) throws IOException
+    {
+        ring.addLast(flow);
+        try
+        {
+            while(true)
+            {
+                if(rate <= 0)
+                {
+                    return want;
+                }
+                if(ring.peekFirst() != flow)
+                {
+                    wait();
+                    continue;
+                }
+                if(!flow.turn)
+                {
+                    //Unused credit is only kept up to one quantum
+                    flow.deficit = Math.min(flow.deficit, QUANTUM) + QUANTUM;
+                    flow.turn = true;
+                }
+                int grant = (int)Math.min(want, flow.deficit);
+                refill();
+                if(tokens >= grant)
+                {
+                    tokens -= grant;
+                    flow.deficit -= grant;
+                    flow.turn = false;
+                    return grant;
+                }
+                wait(Math.max(1, (long)((grant - tokens) * 1000 / rate)));
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new IOException("Interrupted while waiting for bandwidth");
+        }
+        finally
+        {
+            ring.remove(flow);
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Gives back the part of a grant an upload did not receive.
+     * 
+     * @param flow    the upload
+     * @param unused  the number of bytes granted but not received
+     */
+    public synchronized void giveBack(Flow flow, int unused)
+    {
+        if((unused > 0) && (rate > 0))
+        {
+            tokens = Math.min(tokens + unused, burst());
+            flow.deficit += unused;
+            notifyAll();
+        }
+    }
+    
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(tokens + (now - lastRefill) * (double)rate / 1e9, burst());
+        lastRefill = now;
+    }
+    
+    /**
+     * Returns the most tokens saved up, a tenth of a second at the rate.
+     */
+    private double burst()
+    {
+        return Math.max(2 * QUANTUM, rate / 10);
+    }
+    
+    /**
+     * Marks a connection as interactive or as bulk data for routers.
+     * 
+     * @param socket   the connection
+     * @param control  <i>true</i> for a control connection
+     */
+    public static void mark(Socket socket, boolean control)
+    {
+        try
+        {
+            socket.setTrafficClass(control ? IPTOS_LOWDELAY : IPTOS_THROUGHPUT);
+        }
+        catch(IOException e)
+        {
+            //Only a hint
+        }
+    }
+    
+    /**
+     * An upload taking part in the sharing.
+     */
+    public static class Flow
+    {
+        private long deficit = 0;
+        private boolean turn = false;
+    }
+}
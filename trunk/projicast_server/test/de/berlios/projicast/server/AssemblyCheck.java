@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package de.berlios.projicast.server;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Checks the range bookkeeping of a {@link StagingArea.Assembly}: ranges outside the
+ * file or overlapping others are refused, a range given up or sent again may be
+ * received again, and the file is complete once all of its bytes have arrived.
+ * Exits with 1 if a check fails.
+ * <p>
+ * Usage: AssemblyCheck
+ */
+public class AssemblyCheck
+{
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws IOException
+    {
+        File path = File.createTempFile("projicast", "");
+        path.delete();
+        path.mkdir();
+        StagingArea staging = new StagingArea(path, 60 * 1000, Flusher.Durability.NONE);
+        StagingArea.Assembly assembly = staging.acquireAssembly(Configuration.FileType.VIDEO, "a.avi", 300, "id");
+        check("the same upload gets the same assembly",
+                assembly == staging.acquireAssembly(Configuration.FileType.VIDEO, "a.avi", 300, "id"));
+        
+        check("a range past the end is refused", !assembly.begin(200, 101));
+        check("an empty range is refused", !assembly.begin(0, 0));
+        check("a range is begun", assembly.begin(0, 100));
+        check("an overlapping range is refused", !assembly.begin(50, 100));
+        check("a range next to it is begun", assembly.begin(100, 100));
+        check("the file is not complete after a range", !assembly.end(0, 100, true));
+        check("a received range sent again is begun", assembly.begin(0, 100));
+        check("the file is not complete while it is received again", !assembly.end(0, 100, true));
+        
+        check("a range given up does not complete the file", !assembly.end(100, 100, false));
+        check("a range given up is begun again", assembly.begin(100, 100));
+        check("the file is not complete with a range missing", !assembly.end(100, 100, true));
+        check("the last range is begun", assembly.begin(200, 100));
+        check("the file is complete with the last range", assembly.end(200, 100, true));
+        
+        assembly.getChannel().close();
+        for(File file : path.listFiles())
+        {
+            file.delete();
+        }
+        path.delete();
+        
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+    
+    private static void check(String what, boolean ok)
+    {
+        if(!ok)
+        {
+            System.err.println("Failed: " + what);
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package de.berlios.projicast.server;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+
+/**
+ * Checks that the {@link BufferPool} hands out cleared buffers of the right size
+ * class, reuses released ones, never hands out a buffer released twice more than
+ * once, and falls back to heap buffers past its memory limit. Exits with 1 if a
+ * check fails.
+ * <p>
+ * Usage: BufferPoolCheck
+ */
+public class BufferPoolCheck
+{
+    private static int failures = 0;
+    
+    public static void main(String[] args)
+    {
+        BufferPool pool = new BufferPool(BufferPool.SLAB_SIZE, false);
+        int count = BufferPool.SLAB_SIZE / (4 * 1024);
+        ByteBuffer small = pool.lease(100);
+        check("a small lease gets the smallest size class", small.isDirect() && (small.capacity() == 4 * 1024));
+        check("one slab is allocated", pool.getAllocated() == BufferPool.SLAB_SIZE);
+        small.put((byte)1);
+        pool.release(small);
+        Set<ByteBuffer> leased = lease(pool, count);
+        check("a released buffer is reused", leased.contains(small));
+        check("a leased buffer is cleared", (small.position() == 0) && (small.limit() == small.capacity()));
+        check("the slab is used up before another is allocated", pool.getAllocated() == BufferPool.SLAB_SIZE);
+        
+        //The second release is ignored, so the buffer is not handed out twice
+        pool.release(small);
+        for(ByteBuffer buf : leased)
+        {
+            pool.release(buf);
+        }
+        check("a buffer released twice is handed out once", lease(pool, count).size() == count);
+        
+        ByteBuffer large = pool.lease(1024 * 1024);
+        check("a lease larger than any size class gets a heap buffer",
+                !large.isDirect() && (large.capacity() == 1024 * 1024));
+        ByteBuffer over = pool.lease(16 * 1024);
+        check("a lease past the memory limit gets a heap buffer", !over.isDirect() && (over.capacity() == 16 * 1024));
+        check("nothing more is allocated past the limit", pool.getAllocated() == BufferPool.SLAB_SIZE);
+        pool.release(large);
+        pool.release(over);
+        
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+    
+    /**
+     * Leases buffers of the smallest size class.
+     * 
+     * @return the direct buffers leased, by identity
+     */
+    private static Set<ByteBuffer> lease(BufferPool pool, int count)
+    {
+        Set<ByteBuffer> leased = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        for(int i = 0; i < count; i++)
+        {
+            ByteBuffer buf = pool.lease(4 * 1024);
+            if(buf.isDirect())
+            {
+                leased.add(buf);
+            }
+        }
+        return leased;
+    }
+    
+    private static void check(String what, boolean ok)
+    {
+        if(!ok)
+        {
+            System.err.println("Failed: " + what);
+            failures++;
+        }
+    }
+}
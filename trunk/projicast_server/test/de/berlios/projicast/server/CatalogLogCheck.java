@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package de.berlios.projicast.server;
+
+import java.util.List;
+
+
+/**
+ * Checks that a client refreshing while files are added as one change, see
+ * {@link Configuration#addFiles}, is not told of part of them only. It does as a
+ * control session does: asks for the changes since the version it has and takes
+ * the version of the last change as its new one. Exits with 1 if a check fails.
+ * <p>
+ * Usage: CatalogLogCheck
+ */
+public class CatalogLogCheck
+{
+    private static int failures = 0;
+    
+    public static void main(String[] args)
+    {
+        CatalogLog log = new CatalogLog(100);
+        String epoch = log.getEpoch();
+        long known = log.getVersion();
+        log.record(CatalogLog.Operation.ADD, Configuration.FileType.IMAGE, 0, "a.jpg");
+        
+        //A refresh in the middle of a held addFiles, by a client one change behind
+        log.hold();
+        log.record(CatalogLog.Operation.ADD, Configuration.FileType.IMAGE, 1, "b.jpg");
+        List<CatalogLog.Change> changes = log.changesSince(epoch, known);
+        check("only the change made before the hold is sent", (changes != null) && (changes.size() == 1)
+                && (changes.get(0).getID() == 0));
+        known = refreshed(known, changes);
+        check("the client is not ahead of the catalog", known == log.getVersion());
+        log.record(CatalogLog.Operation.ADD, Configuration.FileType.IMAGE, 2, "c.jpg");
+        log.record(CatalogLog.Operation.PLAYLIST, null, -1, null);
+        changes = log.changesSince(epoch, known);
+        check("held changes are not sent", (changes != null) && changes.isEmpty());
+        known = refreshed(known, changes);
+        log.release();
+        
+        //The next refresh gets all of them
+        changes = log.changesSince(epoch, known);
+        check("all changes are sent after the release", (changes != null) && (changes.size() == 3));
+        known = refreshed(known, changes);
+        check("the client is at the current version", known == log.getVersion());
+        changes = log.changesSince(epoch, known);
+        check("nothing is left to send", (changes != null) && changes.isEmpty());
+        
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+    
+    /**
+     * Returns the version a client has after being sent the changes.
+     */
+    private static long refreshed(long version, List<CatalogLog.Change> changes)
+    {
+        return ((changes == null) || changes.isEmpty()) ? version : changes.get(changes.size() - 1).getVersion();
+    }
+    
+    private static void check(String what, boolean ok)
+    {
+        if(!ok)
+        {
+            System.err.println("Failed: " + what);
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2005 Emil Eriksson <shadewind[at]gmail[dot]com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package de.berlios.projicast.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+/**
+ * Checks that the {@link LineFramer} splits lines at all three terminators, also
+ * when a line or a "\r\n" arrives in pieces, decodes characters of more than one
+ * byte, and refuses overlong lines. Exits with 1 if a check fails.
+ * <p>
+ * Usage: LineFramerCheck
+ */
+public class LineFramerCheck
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private static int failures = 0;
+    
+    public static void main(String[] args) throws IOException
+    {
+        LineFramer framer = new LineFramer(UTF8.newDecoder(), 16);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.put("one\ntwo\r\nthree\rfo".getBytes(UTF8));
+        buf.flip();
+        check("a line ended by \\n", "one".equals(line(framer, buf)));
+        check("a line ended by \\r\\n", "two".equals(line(framer, buf)));
+        check("a line ended by \\r", "three".equals(line(framer, buf)));
+        check("an incomplete line is not returned", line(framer, buf) == null);
+        check("an incomplete line is left in the buffer", buf.remaining() == 2);
+        
+        //The rest arrives, kept in front of it as a session does
+        buf.compact();
+        buf.put("ur\r".getBytes(UTF8));
+        buf.flip();
+        check("a line completed by the next read", "four".equals(line(framer, buf)));
+        buf.compact();
+        buf.put("\n\u00e4\u20ac\n".getBytes(UTF8));
+        buf.flip();
+        check("the \\n of a \\r\\n split between reads is skipped", "\u00e4\u20ac".equals(line(framer, buf)));
+        check("nothing is left", !buf.hasRemaining());
+        
+        buf.clear();
+        buf.put("01234567890123456789".getBytes(UTF8));
+        buf.flip();
+        try
+        {
+            framer.nextLine(buf);
+            check("an overlong line is refused", false);
+        }
+        catch(IOException e)
+        {
+            //Refused as it should be
+        }
+        
+        if(failures > 0)
+        {
+            System.exit(1);
+        }
+        System.out.println("All checks passed.");
+    }
+    
+    private static String line(LineFramer framer, ByteBuffer buf) throws IOException
+    {
+        CharSequence line = framer.nextLine(buf);
+        return (line != null) ? line.toString() : null;
+    }
+    
+    private static void check(String what, boolean ok)
+    {
+        if(!ok)
+        {
+            System.err.println("Failed: " + what);
+            failures++;
+        }
+    }
+}